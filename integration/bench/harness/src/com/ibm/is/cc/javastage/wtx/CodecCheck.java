@@ -0,0 +1,202 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.*;
+import com.ibm.is.cc.javastage.wtxmeta.ColumnDef;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+
+/*******************************************************************************
+
+Checks the bytes the input codecs of the stage write for binary columns, so 
+that changes to the codecs do not change the card data maps are given without
+anyone noticing.  A row of nulls and a row of values are written for a 
+BINARY, a VARBINARY and a LONGVARBINARY column, in binary and in string 
+presentation, with a charset whose hex is written straight as bytes and one
+whose hex is encoded as text.
+
+A null BINARY is written as nothing.  A null VARBINARY or LONGVARBINARY is
+written as a zero size, as a 4 byte integer, and a delimiter, in string
+presentation as well as binary.
+
+Exits with status 1 if any bytes differ.
+
+Usage:  CodecCheck
+
+*******************************************************************************/
+
+public class CodecCheck
+{
+   private final static String DELIMITER = "|";
+
+   private static int _failures = 0;
+
+
+   public static void main(String[] args) throws Exception
+   {
+      byte[] value = new byte[] {0x0A, (byte) 0xFF};
+      byte[] zeroSize = new byte[4];
+
+      for (String charset : new String[] {"ISO-8859-1", "UTF-16LE"})
+      {
+         // Binary presentation: the size of a varbinary value is in the
+         // native byte order
+         byte[] size = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(value.length).array();
+         check("binary nulls " + charset, false, charset, null,
+               concat(text(DELIMITER, charset),
+                      zeroSize, text(DELIMITER, charset), text(DELIMITER, charset),
+                      zeroSize, text(DELIMITER, charset), text("\n", charset)));
+         check("binary values " + charset, false, charset, value,
+               concat(value, text(DELIMITER, charset),
+                      size, text(DELIMITER, charset), value, text(DELIMITER, charset),
+                      size, text(DELIMITER, charset), value, text("\n", charset)));
+
+         // String presentation: values are in hex, but null varbinary items
+         // keep their zero size
+         check("string nulls " + charset, true, charset, null,
+               concat(text(DELIMITER, charset),
+                      zeroSize, text(DELIMITER, charset), text(DELIMITER, charset),
+                      zeroSize, text(DELIMITER, charset), text("\n", charset)));
+         check("string values " + charset, true, charset, value,
+               text("0AFF|0AFF|0AFF\n", charset));
+      }
+
+      if (_failures > 0)
+      {
+         System.out.println(_failures + " check(s) failed");
+         System.exit(1);
+      }
+      System.out.println("All codec checks passed");
+   }
+
+
+   // Writes a row with the value in each column and compares the card data
+   private static void check(String name, boolean fUseStrings, String charset, byte[] value, byte[] expected) 
+      throws Exception
+   {
+      List<ColumnDef> columns = new ArrayList<ColumnDef>();
+      columns.add(newColumn("Digest", ColumnDef.SQL_TYPE_BINARY, 2));
+      columns.add(newColumn("Payload", ColumnDef.SQL_TYPE_VARBINARY, 16));
+      columns.add(newColumn("Document", ColumnDef.SQL_TYPE_LONGVARBINARY, 16));
+
+      Properties linkProperties = new Properties();
+      linkProperties.setProperty("Card", "1");
+      linkProperties.setProperty("UseStrings", Boolean.toString(fUseStrings));
+      linkProperties.setProperty("Charset", charset);
+      linkProperties.setProperty("Delimiter", DELIMITER);
+      linkProperties.setProperty("Terminator", "<NL>");
+
+      Properties stageProperties = new Properties();
+      stageProperties.setProperty("MapFile", "check.mmc");
+      stageProperties.setProperty("Engine", "StandIn");
+
+      List<ColumnMetadata> metadata = StageProxies.newColumns(columns);
+      InputLink inputLink = StageProxies.newInputLink(metadata, linkProperties, new StageProxies.RowSource()
+      {
+         public Object[] nextRow()
+         {
+            return null;
+         }
+      });
+      OutputLink outputLink = StageProxies.newOutputLink(metadata, linkProperties, new StageProxies.RecordSink()
+      {
+         public void writeRecord(Object[] values)
+         {
+         }
+      });
+      Configuration configuration = StageProxies.newConfiguration(stageProperties, inputLink, outputLink);
+
+      WTXStage stage = new WTXStage();
+      stage.validateConfiguration(configuration, true);
+      stage.prepareConversions();
+
+      WTXCard card = stage.getInputCard(0);
+      stage.selectCard(card);
+      WTXSpillDirectory spillDirectory = new WTXSpillDirectory(new File(System.getProperty("java.io.tmpdir")));
+      WTXCardBuffer cardData = new WTXCardBuffer(spillDirectory, Integer.MAX_VALUE);
+      for (WTXStage.ColumnCodec codec : stage.getInputPlan(0))
+      {
+         codec.write(cardData, value);
+      }
+      cardData.write(stage.getBytesFromString(card.getTerminator()));
+
+      ByteArrayOutputStream actual = new ByteArrayOutputStream();
+      cardData.writeTo(actual);
+      cardData.close();
+      if (Arrays.equals(actual.toByteArray(), expected))
+      {
+         System.out.println("OK    " + name);
+      }
+      else
+      {
+         System.out.println("FAIL  " + name + ": expected " + toHex(expected) + ", got " + toHex(actual.toByteArray()));
+         _failures++;
+      }
+   }
+
+
+   private static ColumnDef newColumn(String name, int sqlType, int precision)
+   {
+      ColumnDef column = new ColumnDef();
+      column.setName(name);
+      column.setSqlType(sqlType);
+      column.setPrecision(precision);
+      column.setIsNullable(true);
+      return column;
+   }
+
+
+   private static byte[] text(String text, String charset) throws Exception
+   {
+      return text.getBytes(charset);
+   }
+
+
+   private static byte[] concat(byte[]... parts)
+   {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      for (byte[] part : parts)
+      {
+         bytes.write(part, 0, part.length);
+      }
+      return bytes.toByteArray();
+   }
+
+
+   private static String toHex(byte[] bytes)
+   {
+      StringBuilder hex = new StringBuilder();
+      for (byte b : bytes)
+      {
+         hex.append(String.format("%02X", b & 0xFF));
+      }
+      return hex.toString();
+   }
+}
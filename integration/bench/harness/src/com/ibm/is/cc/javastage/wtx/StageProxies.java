@@ -0,0 +1,242 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.*;
+import com.ibm.is.cc.javastage.wtxmeta.ColumnDef;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+
+// Stand-ins for the DataStage Java Integration API objects the stage is
+// given, so it can run outside a DataStage job.  They are proxies over plain
+// Java objects: the columns are described by ColumnDef, rows are read from a
+// RowSource and records written to an output link go to a RecordSink.
+//
+// Each link reuses a single record, so a row must be used before the next
+// one is read.  The stage is not given a reject link.
+class StageProxies
+{
+   // Supplies the rows of an input link
+   interface RowSource
+   {
+      // Returns the values of the next row, or null if there are no more
+      Object[] nextRow();
+   }
+
+
+   // Receives the records written to an output link
+   interface RecordSink
+   {
+      void writeRecord(Object[] values);
+   }
+
+
+   static List<ColumnMetadata> newColumns(List<ColumnDef> columns)
+   {
+      List<ColumnMetadata> metadata = new ArrayList<ColumnMetadata>();
+      for (ColumnDef column : columns)
+      {
+         metadata.add(newColumn(column));
+      }
+      return metadata;
+   }
+
+
+   static ColumnMetadata newColumn(final ColumnDef column)
+   {
+      return newProxy(ColumnMetadata.class, new Answers()
+      {
+         Object answer(String method, Object[] args)
+         {
+            if (method.equals("getName"))                   return column.getName();
+            if (method.equals("getSQLType"))                return Integer.valueOf(column.getSqlType());
+            if (method.equals("getPrecision"))              return Integer.valueOf(column.getPrecision());
+            if (method.equals("getScale"))                  return Integer.valueOf(column.getScale());
+            if (method.equals("hasMicrosecondResolution"))  return Boolean.valueOf(column.isExtended());
+            if (method.equals("isNullable"))                return Boolean.valueOf(column.isNullable());
+            if (method.equals("getDescription"))            return "";
+            return NO_ANSWER;
+         }
+      });
+   }
+
+
+   static InputLink newInputLink(final List<ColumnMetadata> metadata, final Properties properties,
+                                 final RowSource rows)
+   {
+      final Object[][] row = new Object[1][];
+      final InputRecord record = newProxy(InputRecord.class, new Answers()
+      {
+         Object answer(String method, Object[] args)
+         {
+            if (method.equals("getValue") && args[0] instanceof Integer)
+            {
+               return row[0][(Integer) args[0]];
+            }
+            return NO_ANSWER;
+         }
+      });
+
+      return newProxy(InputLink.class, new LinkAnswers(Link.LinkType.INPUT, metadata, properties)
+      {
+         Object answer(String method, Object[] args)
+         {
+            if (method.equals("readRecord"))
+            {
+               row[0] = rows.nextRow();
+               return (row[0] == null) ? null : record;
+            }
+            return super.answer(method, args);
+         }
+      });
+   }
+
+
+   static OutputLink newOutputLink(final List<ColumnMetadata> metadata, final Properties properties,
+                                   final RecordSink sink)
+   {
+      final Object[] values = new Object[metadata.size()];
+      final OutputRecord record = newProxy(OutputRecord.class, new Answers()
+      {
+         Object answer(String method, Object[] args)
+         {
+            if (method.equals("setValue") && args[0] instanceof Integer)
+            {
+               values[(Integer) args[0]] = args[1];
+               return null;
+            }
+            return NO_ANSWER;
+         }
+      });
+
+      return newProxy(OutputLink.class, new LinkAnswers(Link.LinkType.STREAM, metadata, properties)
+      {
+         Object answer(String method, Object[] args)
+         {
+            if (method.equals("getOutputRecord"))
+            {
+               Arrays.fill(values, null);
+               return record;
+            }
+            if (method.equals("writeRecord"))
+            {
+               sink.writeRecord(values);
+               return null;
+            }
+            return super.answer(method, args);
+         }
+      });
+   }
+
+
+   static Configuration newConfiguration(final Properties properties, 
+                                         final InputLink inputLink, final OutputLink outputLink)
+   {
+      return newProxy(Configuration.class, new Answers()
+      {
+         Object answer(String method, Object[] args)
+         {
+            if (method.equals("getUserProperties"))         return properties;
+            if (method.equals("getInputLinkCount"))         return Integer.valueOf(1);
+            if (method.equals("getStreamOutputLinkCount"))  return Integer.valueOf(1);
+            if (method.equals("getRejectLinkCount"))        return Integer.valueOf(0);
+            if (method.equals("getInputLinks"))             return Arrays.asList(inputLink);
+            if (method.equals("getOutputLinks"))            return Arrays.asList(outputLink);
+            if (method.equals("getInputLink"))              return inputLink;
+            if (method.equals("getOutputLink"))             return outputLink;
+            if (method.equals("getStreamOutputLink"))       return outputLink;
+            return NO_ANSWER;
+         }
+      });
+   }
+
+
+   // Answers the calls made to a proxy by method name.  Calls that are not
+   // answered return null, or zero or false for primitive types.
+   private static abstract class Answers
+   {
+      final static Object NO_ANSWER = new Object();
+
+      abstract Object answer(String method, Object[] args);
+   }
+
+
+   private static class LinkAnswers extends Answers
+   {
+      private Link.LinkType        _linkType;
+      private List<ColumnMetadata> _metadata;
+      private Properties           _properties;
+
+      LinkAnswers(Link.LinkType linkType, List<ColumnMetadata> metadata, Properties properties)
+      {
+         _linkType = linkType;
+         _metadata = metadata;
+         _properties = properties;
+      }
+
+      Object answer(String method, Object[] args)
+      {
+         if (method.equals("getColumnMetadata"))  return _metadata;
+         if (method.equals("getColumn"))          return _metadata.get((Integer) args[0]);
+         if (method.equals("getUserProperties"))  return _properties;
+         if (method.equals("getLinkType"))        return _linkType;
+         if (method.equals("getLinkIndex"))       return Integer.valueOf(0);
+         return NO_ANSWER;
+      }
+   }
+
+
+   private static <T> T newProxy(final Class<T> type, final Answers answers)
+   {
+      InvocationHandler handler = new InvocationHandler()
+      {
+         public Object invoke(Object proxy, Method method, Object[] args)
+         {
+            String name = method.getName();
+            if (name.equals("equals"))    return Boolean.valueOf(proxy == args[0]);
+            if (name.equals("hashCode"))  return Integer.valueOf(System.identityHashCode(proxy));
+            if (name.equals("toString"))  return type.getSimpleName();
+
+            Object answer = answers.answer(name, (args == null) ? new Object[0] : args);
+            if (answer != Answers.NO_ANSWER)
+            {
+               return answer;
+            }
+
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isPrimitive() && returnType != void.class)
+            {
+               return Array.get(Array.newInstance(returnType, 1), 0);
+            }
+            return null;
+         }
+      };
+      return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+   }
+}
@@ -0,0 +1,348 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.*;
+import com.ibm.is.cc.javastage.wtxmeta.ColumnDef;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+
+/*******************************************************************************
+
+Measures the throughput of the stage from end to end.  The rows of the example
+data files are replayed through process() in RunEach=Wave and RunEach=Row 
+mode, using the stand-in map engine, which echoes each input card to the 
+output card.  For each file and mode it reports:
+
+  rows/s      rows passed through the stage per second
+  MB/s        card data per second, by the size of the rows in the file
+  alloc MB/s  memory allocated per second by all threads
+  peak heap   the sum of the peak use of the heap memory pools
+
+The files are read with the stage's own output card parser, using the column
+definitions of the example jobs, and are repeated to make up the row count.
+Each run is preceded by a shorter run to warm up the JVM.
+
+No WebSphere TX install or DataStage job is needed, but the DataStage and
+WebSphere TX jars must be on the class path since the stage refers to them.
+
+Usage:  ThroughputHarness [rows] [data-directory]
+
+*******************************************************************************/
+
+public class ThroughputHarness
+{
+   private final static String[] MODES = {"Wave", "Row"};
+
+   private String          _file;
+   private List<ColumnDef> _columns = new ArrayList<ColumnDef>();
+   private Properties      _linkProperties = new Properties();
+   private Object[][]      _sourceRows;
+   private long            _sourceBytes;
+
+
+   public static void main(String[] args) throws Exception
+   {
+      int rows = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+      File dataDirectory = new File((args.length > 1) ? args[1] : "../examples/data");
+
+      List<ThroughputHarness> examples = new ArrayList<ThroughputHarness>();
+      examples.add(allTypes(false));
+      examples.add(allTypes(true));
+      examples.add(fixedWidth());
+      examples.add(unicode());
+
+      System.out.println("Rows: "+rows);
+      for (ThroughputHarness example : examples)
+      {
+         example.load(dataDirectory);
+         for (String mode : MODES)
+         {
+            example.run(mode, Math.max(rows / 10, 1));
+            example.report(mode, example.run(mode, rows));
+         }
+      }
+   }
+
+
+   // AllTypes.dat holds a column of every type, delimited, with numbers in
+   // binary and Windows line ends.  StringTypes.dat holds the same columns as 
+   // text, with Unix line ends.
+   private static ThroughputHarness allTypes(boolean fStrings)
+   {
+      ThroughputHarness example = new ThroughputHarness(fStrings ? "StringTypes.dat" : "AllTypes.dat");
+      example.addColumn("C_BigInt", ColumnDef.SQL_TYPE_BIGINT, 0, 0, false);
+      example.addColumn("C_Binary", ColumnDef.SQL_TYPE_BINARY, 10, 0, false);
+      example.addColumn("C_Bit", ColumnDef.SQL_TYPE_BIT, 0, 0, false);
+      example.addColumn("C_Char", ColumnDef.SQL_TYPE_CHAR, 10, 0, false);
+      example.addColumn("C_Date", ColumnDef.SQL_TYPE_DATE, 0, 0, false);
+      example.addColumn("C_Decimal", ColumnDef.SQL_TYPE_DECIMAL, 8, 2, false);
+      example.addColumn("C_Double", ColumnDef.SQL_TYPE_DOUBLE, 0, 0, false);
+      example.addColumn("C_Float", ColumnDef.SQL_TYPE_FLOAT, 0, 0, false);
+      example.addColumn("C_Integer", ColumnDef.SQL_TYPE_INTEGER, 0, 0, false);
+      example.addColumn("C_LongNVarChar", ColumnDef.SQL_TYPE_WLONGVARCHAR, 10, 0, false);
+      example.addColumn("C_LongVarBinary", ColumnDef.SQL_TYPE_LONGVARBINARY, 10, 0, false);
+      example.addColumn("C_LongVarChar", ColumnDef.SQL_TYPE_LONGVARCHAR, 10, 0, false);
+      example.addColumn("C_NChar", ColumnDef.SQL_TYPE_WCHAR, 10, 0, false);
+      example.addColumn("C_Numeric", ColumnDef.SQL_TYPE_NUMERIC, 8, 2, false);
+      example.addColumn("C_NVarChar", ColumnDef.SQL_TYPE_WVARCHAR, 10, 0, false);
+      example.addColumn("C_Real", ColumnDef.SQL_TYPE_REAL, 0, 0, false);
+      example.addColumn("C_SmallInt", ColumnDef.SQL_TYPE_SMALLINT, 0, 0, false);
+      example.addColumn("C_Time", ColumnDef.SQL_TYPE_TIME, 0, 0, true);
+      example.addColumn("C_Timestamp", ColumnDef.SQL_TYPE_TIMESTAMP, 0, 0, true);
+      example.addColumn("C_TinyInt", ColumnDef.SQL_TYPE_TINYINT, 0, 0, false);
+      example.addColumn("C_VarBinary", ColumnDef.SQL_TYPE_VARBINARY, 10, 0, false);
+      example.addColumn("C_VarChar", ColumnDef.SQL_TYPE_VARCHAR, 10, 0, false);
+      example.setSyntax("|", fStrings ? "<NLU>" : "<NLW>", fStrings, null);
+      return example;
+   }
+
+
+   // FixedWidth.dat holds the columns of a fixed length, without delimiters
+   private static ThroughputHarness fixedWidth()
+   {
+      ThroughputHarness example = new ThroughputHarness("FixedWidth.dat");
+      example.addColumn("C_Binary", ColumnDef.SQL_TYPE_BINARY, 10, 0, false);
+      example.addColumn("C_Bit", ColumnDef.SQL_TYPE_BIT, 0, 0, false);
+      example.addColumn("C_Char", ColumnDef.SQL_TYPE_CHAR, 10, 0, false);
+      example.addColumn("C_Date", ColumnDef.SQL_TYPE_DATE, 0, 0, false);
+      example.addColumn("C_Double", ColumnDef.SQL_TYPE_DOUBLE, 0, 0, false);
+      example.addColumn("C_Float", ColumnDef.SQL_TYPE_FLOAT, 0, 0, false);
+      example.addColumn("C_Integer", ColumnDef.SQL_TYPE_INTEGER, 0, 0, false);
+      example.addColumn("C_NChar", ColumnDef.SQL_TYPE_WCHAR, 10, 0, false);
+      example.addColumn("C_Real", ColumnDef.SQL_TYPE_REAL, 0, 0, false);
+      example.addColumn("C_SmallInt", ColumnDef.SQL_TYPE_SMALLINT, 0, 0, false);
+      example.addColumn("C_TimeNoFractional", ColumnDef.SQL_TYPE_TIME, 0, 0, false);
+      example.addColumn("C_TimestampNoFractional", ColumnDef.SQL_TYPE_TIMESTAMP, 0, 0, false);
+      example.addColumn("C_TinyInt", ColumnDef.SQL_TYPE_TINYINT, 0, 0, false);
+      example.setSyntax(null, null, false, null);
+      return example;
+   }
+
+
+   // Unicode.dat holds text columns in UTF-16
+   private static ThroughputHarness unicode()
+   {
+      ThroughputHarness example = new ThroughputHarness("Unicode.dat");
+      example.addColumn("C_UnicodeInt", ColumnDef.SQL_TYPE_INTEGER, 0, 0, false);
+      example.addColumn("C_UnicodeDate", ColumnDef.SQL_TYPE_DATE, 0, 0, false);
+      example.addColumn("C_UnicodeVarChar", ColumnDef.SQL_TYPE_VARCHAR, 10, 0, false);
+      example.setSyntax("|", "<NLW>", true, "UTF-16LE");
+      return example;
+   }
+
+
+   public ThroughputHarness(String file)
+   {
+      _file = file;
+   }
+
+
+   private void addColumn(String name, int sqlType, int precision, int scale, boolean fMicroseconds)
+   {
+      ColumnDef column = new ColumnDef();
+      column.setName(name);
+      column.setSqlType(sqlType);
+      column.setPrecision(precision);
+      column.setScale(scale);
+      column.setIsExtended(fMicroseconds);
+      column.setIsNullable(true);
+      _columns.add(column);
+   }
+
+
+   private void setSyntax(String delimiter, String terminator, boolean fUseStrings, String charset)
+   {
+      _linkProperties.setProperty("Card", "1");
+      _linkProperties.setProperty("UseStrings", Boolean.toString(fUseStrings));
+      if (delimiter != null)
+      {
+         _linkProperties.setProperty("Delimiter", delimiter);
+      }
+      if (terminator != null)
+      {
+         _linkProperties.setProperty("Terminator", terminator);
+      }
+      if (charset != null)
+      {
+         _linkProperties.setProperty("Charset", charset);
+      }
+   }
+
+
+   // Reads the rows of the file as a map's output card
+   public void load(File dataDirectory) throws Exception
+   {
+      byte[] data = Files.readAllBytes(new File(dataDirectory, _file).toPath());
+      _sourceBytes = data.length;
+
+      final List<Object[]> rows = new ArrayList<Object[]>();
+      WTXStage stage = newStage(new Properties(), null, new StageProxies.RecordSink()
+      {
+         public void writeRecord(Object[] values)
+         {
+            rows.add(values.clone());
+         }
+      });
+      stage.prepareConversions();
+
+      WTXSpillDirectory spillDirectory = new WTXSpillDirectory(new File(System.getProperty("java.io.tmpdir")));
+      WTXCardBuffer cardData = new WTXCardBuffer(spillDirectory, Integer.MAX_VALUE);
+      cardData.write(data);
+      stage.processOutputLink(0, cardData);
+      cardData.close();
+
+      if (rows.isEmpty())
+      {
+         throw new Exception("No rows were read from "+_file);
+      }
+      _sourceRows = rows.toArray(new Object[0][]);
+   }
+
+
+   // Passes the rows through the stage and returns the measurements
+   public Measurement run(String mode, final int rowCount) throws Exception
+   {
+      Properties stageProperties = new Properties();
+      stageProperties.setProperty("MapFile", _file);
+      stageProperties.setProperty("Engine", "StandIn");
+      stageProperties.setProperty("RunEach", mode);
+
+      final long[] written = new long[1];
+      WTXStage stage = newStage(stageProperties, 
+         new StageProxies.RowSource()
+         {
+            private int _row = 0;
+
+            public Object[] nextRow()
+            {
+               return (_row < rowCount) ? _sourceRows[_row++ % _sourceRows.length] : null;
+            }
+         },
+         new StageProxies.RecordSink()
+         {
+            public void writeRecord(Object[] values)
+            {
+               written[0]++;
+            }
+         });
+
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      {
+         pool.resetPeakUsage();
+      }
+      long allocatedBefore = getAllocatedBytes();
+      long start = System.nanoTime();
+
+      stage.initialize();
+      stage.process();
+      stage.terminate();
+
+      Measurement measurement = new Measurement();
+      measurement._nanos = System.nanoTime() - start;
+      measurement._allocatedBytes = getAllocatedBytes() - allocatedBefore;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+      {
+         if (pool.getType() == MemoryType.HEAP)
+         {
+            measurement._peakHeapBytes += pool.getPeakUsage().getUsed();
+         }
+      }
+      measurement._rows = rowCount;
+      measurement._bytes = _sourceBytes * rowCount / _sourceRows.length;
+
+      if (written[0] != rowCount)
+      {
+         throw new Exception(_file+" in "+mode+" mode wrote "+written[0]+" of "+rowCount+" rows");
+      }
+      return measurement;
+   }
+
+
+   private WTXStage newStage(Properties stageProperties, StageProxies.RowSource rows,
+                             StageProxies.RecordSink sink) throws Exception
+   {
+      if (stageProperties.getProperty("MapFile") == null)
+      {
+         stageProperties.setProperty("MapFile", _file);
+      }
+      List<ColumnMetadata> metadata = StageProxies.newColumns(_columns);
+      InputLink inputLink = StageProxies.newInputLink(metadata, _linkProperties, rows);
+      OutputLink outputLink = StageProxies.newOutputLink(metadata, _linkProperties, sink);
+
+      WTXStage stage = new WTXStage();
+      stage.validateConfiguration(StageProxies.newConfiguration(stageProperties, inputLink, outputLink), true);
+      return stage;
+   }
+
+
+   // The bytes allocated so far by the live threads of the JVM
+   private static long getAllocatedBytes()
+   {
+      java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+      if (!(threads instanceof com.sun.management.ThreadMXBean))
+      {
+         return 0;
+      }
+      com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+      long total = 0;
+      for (long allocated : allocations.getThreadAllocatedBytes(threads.getAllThreadIds()))
+      {
+         if (allocated > 0)
+         {
+            total += allocated;
+         }
+      }
+      return total;
+   }
+
+
+   private void report(String mode, Measurement measurement)
+   {
+      double seconds = measurement._nanos / 1e9;
+      double megabyte = 1024.0 * 1024.0;
+      System.out.println(String.format("%-16s %-5s %12.0f rows/s %9.2f MB/s   alloc %9.2f MB/s   peak heap %8.2f MB",
+                                       _file, mode,
+                                       measurement._rows / seconds,
+                                       measurement._bytes / megabyte / seconds,
+                                       measurement._allocatedBytes / megabyte / seconds,
+                                       measurement._peakHeapBytes / megabyte));
+   }
+
+
+   private static class Measurement
+   {
+      long _rows;
+      long _bytes;
+      long _nanos;
+      long _allocatedBytes;
+      long _peakHeapBytes;
+   }
+}
@@ -0,0 +1,83 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// Parses output card data into records: the per-column switch of the output
+// card parser with parseString, findDelimiter and the parsing of numbers,
+// dates and times.  Times are per row.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+   final static int ROWS = 1000;
+
+   @Param({StageFixture.DELIMITED, StageFixture.FIXED_WIDTH})
+   public String layout;
+
+   @Param({StageFixture.STRING, StageFixture.BINARY})
+   public String presentation;
+
+   @Param({"ISO-8859-1", "UTF-8", "UTF-16LE"})
+   public String charset;
+
+   private StageFixture  _fixture;
+   private WTXCardBuffer _cardData;
+
+
+   @Setup
+   public void setup() throws Exception
+   {
+      _fixture = new StageFixture(layout, presentation, charset, ROWS);
+      _cardData = _fixture.newCardData();
+
+      // Make sure every row parses, or the times mean nothing
+      _fixture.getStage().processOutputLink(0, _cardData);
+      if (_fixture.getRecordsWritten() != ROWS)
+      {
+         throw new IllegalStateException("Parsed "+_fixture.getRecordsWritten()+" of "+ROWS+" rows");
+      }
+   }
+
+
+   @TearDown
+   public void tearDown()
+   {
+      _cardData.close();
+   }
+
+
+   @Benchmark
+   @OperationsPerInvocation(ROWS)
+   public long parseRows() throws Exception
+   {
+      _fixture.getStage().processOutputLink(0, _cardData);
+      return _fixture.getRecordsWritten();
+   }
+}
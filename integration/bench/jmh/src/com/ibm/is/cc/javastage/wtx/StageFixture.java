@@ -0,0 +1,318 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.*;
+import com.ibm.is.cc.javastage.wtxmeta.ColumnDef;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+
+// A WTXStage with one input link and one output link, set up without
+// DataStage through StageProxies.  The rows are synthetic, with a column for
+// each SQL type in ColumnDef that the connector transfers.
+//
+// Fixed-width layouts have no delimiters, so every value must have the same
+// length in every row.  Their rows leave out the columns whose length varies:
+// variable length binary and hex binary.
+class StageFixture
+{
+   // Layouts
+   final static String DELIMITED = "Delimited";
+   final static String FIXED_WIDTH = "FixedWidth";
+
+   // Presentations
+   final static String STRING = "String";
+   final static String BINARY = "Binary";
+
+   private WTXStage        _stage = new WTXStage();
+   private List<ColumnDef> _columns = new ArrayList<ColumnDef>();
+   private Object[][]      _rows;
+   private boolean         _fUseStrings;
+   private long            _recordsWritten = 0;
+
+
+   StageFixture(String layout, String presentation, String charset, int rowCount) throws Exception
+   {
+      boolean fFixedWidth = layout.equals(FIXED_WIDTH);
+      _fUseStrings = presentation.equals(STRING);
+
+      addColumn("Code", ColumnDef.SQL_TYPE_CHAR, 12, false);
+      addColumn("Name", ColumnDef.SQL_TYPE_VARCHAR, 20, false);
+      addColumn("Comment", ColumnDef.SQL_TYPE_WVARCHAR, 24, false);
+      addColumn("Id", ColumnDef.SQL_TYPE_INTEGER, 10, false);
+      addColumn("Quantity", ColumnDef.SQL_TYPE_SMALLINT, 5, false);
+      addColumn("Level", ColumnDef.SQL_TYPE_TINYINT, 3, false);
+      addColumn("Flag", ColumnDef.SQL_TYPE_BIT, 1, false);
+      addColumn("Rate", ColumnDef.SQL_TYPE_DOUBLE, 6, false);
+      addColumn("Ratio", ColumnDef.SQL_TYPE_REAL, 6, false);
+      addColumn("Total", ColumnDef.SQL_TYPE_BIGINT, 19, false);
+      addColumn("Price", ColumnDef.SQL_TYPE_DECIMAL, 7, false);
+      addColumn("Shipped", ColumnDef.SQL_TYPE_DATE, 10, false);
+      addColumn("Cutoff", ColumnDef.SQL_TYPE_TIME, 8, false);
+      addColumn("Created", ColumnDef.SQL_TYPE_TIMESTAMP, 19, false);
+      addColumn("Elapsed", ColumnDef.SQL_TYPE_TIME, 15, true);
+      addColumn("Updated", ColumnDef.SQL_TYPE_TIMESTAMP, 26, true);
+      if (!fFixedWidth)
+      {
+         addColumn("Payload", ColumnDef.SQL_TYPE_VARBINARY, 16, false);
+      }
+      if (!fFixedWidth || !_fUseStrings)
+      {
+         addColumn("Digest", ColumnDef.SQL_TYPE_BINARY, 8, false);
+      }
+
+      _rows = new Object[rowCount][];
+      for (int row = 0;  row < rowCount;  row++)
+      {
+         _rows[row] = newRow(row, !fFixedWidth);
+      }
+
+      // The link properties set the card syntax
+      Properties linkProperties = new Properties();
+      linkProperties.setProperty("Card", "1");
+      linkProperties.setProperty("UseStrings", Boolean.toString(_fUseStrings));
+      linkProperties.setProperty("Charset", charset);
+      if (!fFixedWidth)
+      {
+         linkProperties.setProperty("Delimiter", "|");
+         linkProperties.setProperty("Terminator", "<NL>");
+         linkProperties.setProperty("ReleaseChar", "\\");
+      }
+
+      Properties stageProperties = new Properties();
+      stageProperties.setProperty("MapFile", "benchmark.mmc");
+      stageProperties.setProperty("Engine", "StandIn");
+
+      // The input link is not read; records written to the output link are counted
+      List<ColumnMetadata> metadata = StageProxies.newColumns(_columns);
+      InputLink inputLink = StageProxies.newInputLink(metadata, linkProperties, new StageProxies.RowSource()
+      {
+         public Object[] nextRow()
+         {
+            return null;
+         }
+      });
+      OutputLink outputLink = StageProxies.newOutputLink(metadata, linkProperties, new StageProxies.RecordSink()
+      {
+         public void writeRecord(Object[] values)
+         {
+            _recordsWritten++;
+         }
+      });
+      Configuration configuration = StageProxies.newConfiguration(stageProperties, inputLink, outputLink);
+
+      _stage.validateConfiguration(configuration, true);
+      _stage.prepareConversions();
+   }
+
+
+   WTXStage getStage()
+   {
+      return _stage;
+   }
+
+
+   // The card of the input link.  The output link has the same syntax.
+   WTXCard getCard()
+   {
+      return _stage.getInputCard(0);
+   }
+
+
+   List<ColumnDef> getColumns()
+   {
+      return _columns;
+   }
+
+
+   Object[][] getRows()
+   {
+      return _rows;
+   }
+
+
+   long getRecordsWritten()
+   {
+      return _recordsWritten;
+   }
+
+
+   // Writes the rows to the stream as the data of the input card, with the
+   // codecs the stage uses for the input link
+   void writeRows(WTXCardWriter outputStream) throws Exception
+   {
+      _stage.selectCard(getCard());
+      WTXStage.ColumnCodec[] codecs = _stage.getInputPlan(0);
+      byte[] terminator = _stage.getBytesFromString(getCard().getTerminator());
+
+      for (Object[] row : _rows)
+      {
+         for (WTXStage.ColumnCodec codec : codecs)
+         {
+            codec.write(outputStream, row[codec.getColumn()]);
+         }
+         if (terminator != null)
+         {
+            outputStream.write(terminator);
+         }
+      }
+   }
+
+
+   // The rows as they are written to an output card by a map
+   WTXCardBuffer newCardData() throws Exception
+   {
+      File directory = new File(System.getProperty("java.io.tmpdir"));
+      WTXCardBuffer cardData = new WTXCardBuffer(new WTXSpillDirectory(directory), Integer.MAX_VALUE);
+      writeRows(cardData);
+      return cardData;
+   }
+
+
+   private void addColumn(String name, int sqlType, int precision, boolean fMicroseconds)
+   {
+      ColumnDef column = new ColumnDef();
+      column.setName(name);
+      column.setSqlType(sqlType);
+      column.setPrecision(precision);
+      column.setIsExtended(fMicroseconds);
+      column.setIsNullable(true);
+      _columns.add(column);
+   }
+
+
+   // Builds the values of a row.  Values shown as text have a length equal to
+   // the precision of their column.
+   private Object[] newRow(int row, boolean fSyntax)
+   {
+      Object[] values = new Object[_columns.size()];
+      String date = String.format("20%02d-%02d-%02d", 10 + row % 20, 1 + row % 12, 1 + row % 28);
+      String time = String.format("%02d:%02d:%02d", row % 24, row % 60, (row * 7) % 60);
+
+      for (int col = 0;  col < values.length;  col++)
+      {
+         ColumnDef column = _columns.get(col);
+         int precision = column.getPrecision();
+         switch (column.getSqlType())
+         {
+         case ColumnDef.SQL_TYPE_CHAR:
+            values[col] = pad("C" + row, precision);
+            break;
+
+         case ColumnDef.SQL_TYPE_VARCHAR:
+            // Some names contain the delimiter and release characters
+            values[col] = pad((fSyntax && row % 8 == 0) ? "Name|" + row + "\\x" : "Name " + row, precision);
+            break;
+
+         case ColumnDef.SQL_TYPE_WVARCHAR:
+            values[col] = pad("Caf\u00e9 \u00fcber " + row + " \u00df", precision);
+            break;
+
+         case ColumnDef.SQL_TYPE_INTEGER:
+            values[col] = Long.valueOf(1000000000L + row);
+            break;
+
+         case ColumnDef.SQL_TYPE_SMALLINT:
+            values[col] = Integer.valueOf(10000 + row % 90000);
+            break;
+
+         case ColumnDef.SQL_TYPE_TINYINT:
+            values[col] = Short.valueOf((short) (100 + row % 900));
+            break;
+
+         case ColumnDef.SQL_TYPE_BIT:
+            values[col] = Integer.valueOf(row % 2);
+            break;
+
+         case ColumnDef.SQL_TYPE_DOUBLE:
+            values[col] = Double.valueOf(1000 + row % 9000 + 0.5);
+            break;
+
+         case ColumnDef.SQL_TYPE_REAL:
+            values[col] = Float.valueOf(1000 + row % 9000 + 0.5f);
+            break;
+
+         case ColumnDef.SQL_TYPE_BIGINT:
+            values[col] = BigInteger.valueOf(1000000000000000000L + row);
+            break;
+
+         case ColumnDef.SQL_TYPE_DECIMAL:
+            values[col] = BigDecimal.valueOf(100000 + row % 900000, 2);
+            break;
+
+         case ColumnDef.SQL_TYPE_DATE:
+            values[col] = Date.valueOf(date);
+            break;
+
+         case ColumnDef.SQL_TYPE_TIME:
+            Time timeValue = Time.valueOf(time);
+            if (column.isExtended())
+            {
+               timeValue = new Time(timeValue.getTime() + row % 1000);
+            }
+            values[col] = timeValue;
+            break;
+
+         case ColumnDef.SQL_TYPE_TIMESTAMP:
+            Timestamp timestampValue = Timestamp.valueOf(date + " " + time);
+            if (column.isExtended())
+            {
+               timestampValue.setNanos((row % 1000000) * 1000);
+            }
+            values[col] = timestampValue;
+            break;
+
+         case ColumnDef.SQL_TYPE_BINARY:
+         case ColumnDef.SQL_TYPE_VARBINARY:
+            int length = (column.getSqlType() == ColumnDef.SQL_TYPE_BINARY) ? precision : 1 + row % precision;
+            byte[] bytes = new byte[length];
+            for (int i = 0;  i < length;  i++)
+            {
+               bytes[i] = (byte) (row * 31 + i);
+            }
+            values[col] = bytes;
+            break;
+         }
+      }
+      return values;
+   }
+
+
+   private static String pad(String value, int length)
+   {
+      StringBuilder padded = new StringBuilder(value);
+      while (padded.length() < length)
+      {
+         padded.append('.');
+      }
+      padded.setLength(length);
+      return padded.toString();
+   }
+}
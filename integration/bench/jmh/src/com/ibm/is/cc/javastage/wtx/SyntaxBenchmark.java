@@ -0,0 +1,167 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// The syntax handling of string values on their own: escaping and encoding
+// strings for the input card, and finding and decoding them in the output
+// card.  The card is delimited by "|" with "\" as the release character.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SyntaxBenchmark
+{
+   // A value without syntax characters and one that needs escaping
+   final static String PLAIN = "Customer 1234567 Caf\u00e9";
+   final static String SYNTAX = "Part|1234\\567|Caf\u00e9";
+
+   @Param({"ISO-8859-1", "UTF-8", "UTF-16LE"})
+   public String charset;
+
+   private WTXStage   _stage;
+   private byte[]     _delimiter;
+   private byte[]     _plainBytes;
+   private byte[]     _syntaxBytes;
+   private ByteArrayOutputStream _released = new ByteArrayOutputStream();
+   private ByteBuffer _plainData;
+   private ByteBuffer _syntaxData;
+   private ByteBuffer _fixedWidthData;
+
+
+   @Setup
+   public void setup() throws Exception
+   {
+      StageFixture fixture = new StageFixture(StageFixture.DELIMITED, StageFixture.STRING, charset, 1);
+      _stage = fixture.getStage();
+      _stage.selectCard(fixture.getCard());
+      _delimiter = _stage.getBytesFromString("|");
+      _plainBytes = _stage.getBytesFromString(PLAIN);
+      _syntaxBytes = _stage.getBytesFromString(SYNTAX);
+
+      _plainData = newCardData(_stage.escapeSyntax(PLAIN), _delimiter);
+      _syntaxData = newCardData(_stage.escapeSyntax(SYNTAX), _delimiter);
+
+      // The value is followed by another so it is known to be complete
+      _fixedWidthData = newCardData(PLAIN, _stage.getBytesFromString(PLAIN));
+   }
+
+
+   private ByteBuffer newCardData(String value, byte[] following) throws Exception
+   {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      data.write(_stage.getBytesFromString(value));
+      data.write(following);
+      ByteBuffer buffer = ByteBuffer.wrap(data.toByteArray());
+      buffer.order(ByteOrder.nativeOrder());
+      return buffer;
+   }
+
+
+   @Benchmark
+   public String escapePlain()
+   {
+      return _stage.escapeSyntax(PLAIN);
+   }
+
+
+   @Benchmark
+   public String escapeSyntax()
+   {
+      return _stage.escapeSyntax(SYNTAX);
+   }
+
+
+   // Releasing the syntax in the encoded bytes applies to single byte
+   // charsets and UTF-8 only
+   @Benchmark
+   public int writeReleasedPlain() throws Exception
+   {
+      _released.reset();
+      _stage.writeReleased(_released, _plainBytes);
+      return _released.size();
+   }
+
+
+   @Benchmark
+   public int writeReleasedSyntax() throws Exception
+   {
+      _released.reset();
+      _stage.writeReleased(_released, _syntaxBytes);
+      return _released.size();
+   }
+
+
+   @Benchmark
+   public byte[] getBytesFromString() throws Exception
+   {
+      return _stage.getBytesFromString(PLAIN);
+   }
+
+
+   @Benchmark
+   public int findDelimiterPlain()
+   {
+      _plainData.position(0);
+      return _stage.findDelimiter(_plainData, _delimiter);
+   }
+
+
+   @Benchmark
+   public int findDelimiterSyntax()
+   {
+      _syntaxData.position(0);
+      return _stage.findDelimiter(_syntaxData, _delimiter);
+   }
+
+
+   @Benchmark
+   public String parseDelimitedPlain() throws Exception
+   {
+      _plainData.position(0);
+      return _stage.parseString(_plainData, _delimiter, PLAIN.length(), false);
+   }
+
+
+   @Benchmark
+   public String parseDelimitedSyntax() throws Exception
+   {
+      _syntaxData.position(0);
+      return _stage.parseString(_syntaxData, _delimiter, SYNTAX.length(), false);
+   }
+
+
+   @Benchmark
+   public String parseFixedWidth() throws Exception
+   {
+      _fixedWidthData.position(0);
+      return _stage.parseString(_fixedWidthData, null, PLAIN.length(), false);
+   }
+}
@@ -0,0 +1,137 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+
+// Formatting and parsing of dates, times and timestamps, with and without
+// fractions of a second.  Values are formatted into a byte array as they are
+// written to card data.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TemporalBenchmark
+{
+   private WTXTemporalText _temporalText = new WTXTemporalText();
+   private byte[]          _bytes = new byte[WTXTemporalText.MAX_LENGTH];
+   private Date            _date;
+   private Time            _time;
+   private Timestamp       _timestamp;
+   private String          _dateText;
+   private String          _timeText;
+   private String          _timeMicrosecondsText;
+   private String          _timestampText;
+   private String          _timestampMicrosecondsText;
+
+
+   @Setup
+   public void setup() throws Exception
+   {
+      _date = Date.valueOf("2013-06-30");
+      _time = new Time(Time.valueOf("23:59:58").getTime() + 123);
+      _timestamp = Timestamp.valueOf("2013-06-30 23:59:58.123456");
+
+      _dateText = "2013-06-30";
+      _timeText = "23:59:58";
+      _timeMicrosecondsText = "23:59:58.123000";
+      _timestampText = "2013-06-30 23:59:58";
+      _timestampMicrosecondsText = "2013-06-30 23:59:58.123456";
+   }
+
+
+   @Benchmark
+   public int formatDate()
+   {
+      return _temporalText.formatDate(_date, _bytes);
+   }
+
+
+   @Benchmark
+   public int formatTime()
+   {
+      return _temporalText.formatTime(_time, false, _bytes);
+   }
+
+
+   @Benchmark
+   public int formatTimeMicroseconds()
+   {
+      return _temporalText.formatTime(_time, true, _bytes);
+   }
+
+
+   @Benchmark
+   public int formatTimestamp()
+   {
+      return _temporalText.formatTimestamp(_timestamp, false, _bytes);
+   }
+
+
+   @Benchmark
+   public int formatTimestampMicroseconds()
+   {
+      return _temporalText.formatTimestamp(_timestamp, true, _bytes);
+   }
+
+
+   @Benchmark
+   public Date parseDate()
+   {
+      return _temporalText.parseDate(_dateText);
+   }
+
+
+   @Benchmark
+   public Time parseTime()
+   {
+      return _temporalText.parseTime(_timeText);
+   }
+
+
+   @Benchmark
+   public Time parseTimeMicroseconds()
+   {
+      return _temporalText.parseTime(_timeMicrosecondsText);
+   }
+
+
+   @Benchmark
+   public Timestamp parseTimestamp()
+   {
+      return _temporalText.parseTimestamp(_timestampText);
+   }
+
+
+   @Benchmark
+   public Timestamp parseTimestampMicroseconds()
+   {
+      return _temporalText.parseTimestamp(_timestampMicrosecondsText);
+   }
+}
@@ -0,0 +1,148 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx.bench;
+
+import com.ibm.is.cc.javastage.wtx.WTXInputCard;
+import com.ibm.is.cc.javastage.wtx.WTXMapExecutionResults;
+import com.ibm.is.cc.javastage.wtx.WTXMapRunner;
+import com.ibm.is.cc.javastage.wtx.WTXOutputCard;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+
+/*******************************************************************************
+
+Measures the per-row latency of running a map in RunEach=Row mode through
+WTXMapRunner with ReuseMap off, where a map instance is created and unloaded
+for every run as before instances were pooled, against ReuseMap on, where an
+instance is reset and run again.
+
+The map must have an input card 1 and an output card 1.  Both are overridden
+to streams, as the stage does, and each run is given a row of row-bytes bytes.
+A WebSphere TX install is needed: the dtxpi jar on the class path and its 
+native libraries on the library path.
+
+Usage:  MapInstancePoolBenchmark map-file [rows] [row-bytes]
+
+*******************************************************************************/
+
+public class MapInstancePoolBenchmark
+{
+   private String _mapFile;
+   private byte[] _row;
+
+
+   public static void main(String[] args) throws Exception
+   {
+      if (args.length < 1)
+      {
+         System.out.println("Usage: MapInstancePoolBenchmark map-file [rows] [row-bytes]");
+         System.exit(1);
+      }
+      String mapFile = args[0];
+      int rows = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+      int rowBytes = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+
+      MapInstancePoolBenchmark benchmark = new MapInstancePoolBenchmark(mapFile, rowBytes);
+
+      // Warm up both paths before measuring
+      benchmark.run(false, rows / 10);
+      benchmark.run(true, rows / 10);
+
+      System.out.println("Map: "+mapFile+", rows: "+rows+", row: "+rowBytes+" bytes");
+      report("ReuseMap off", benchmark.run(false, rows));
+      report("ReuseMap on ", benchmark.run(true, rows));
+   }
+
+
+   public MapInstancePoolBenchmark(String mapFile, int rowBytes)
+   {
+      _mapFile = mapFile;
+      _row = new byte[rowBytes];
+      Arrays.fill(_row, (byte) 'x');
+   }
+
+
+   // Runs the map once for every row with a runner of its own, which reports
+   // the instances it created and reused when it is unloaded
+   public long[] run(boolean fReuseMap, int rows) throws Exception
+   {
+      WTXMapRunner runner = new WTXMapRunner(null, null, null, null);
+      try
+      {
+         runner.setReuseInstances(fReuseMap);
+         runner.loadMap(_mapFile);
+
+         WTXInputCard input = new WTXInputCard(0, 1);
+         WTXOutputCard output = new WTXOutputCard(0, 1);
+         ByteArrayOutputStream outputData = new ByteArrayOutputStream();
+         output.setOutputStream(outputData);
+         runner.overrideInput(input);
+         runner.overrideOutput(output);
+
+         long[] latencies = new long[rows];
+         for (int row = 0;  row < rows;  row++)
+         {
+            input.setInputData(_row, _row.length);
+            outputData.reset();
+
+            long start = System.nanoTime();
+            WTXMapExecutionResults results = runner.executeMap();
+            latencies[row] = System.nanoTime() - start;
+
+            if (results.isError())
+            {
+               throw new Exception("Map run failed: "+results.getResponseMessage());
+            }
+         }
+         return latencies;
+      }
+      finally
+      {
+         runner.unload();
+         runner.close();
+      }
+   }
+
+
+   private static void report(String label, long[] latencies)
+   {
+      long total = 0;
+      for (long latency : latencies)
+      {
+         total += latency;
+      }
+      long[] sorted = latencies.clone();
+      Arrays.sort(sorted);
+
+      System.out.println(label+":  mean "+format(total / sorted.length)+
+                         "  p50 "+format(sorted[sorted.length / 2])+
+                         "  p99 "+format(sorted[(int) (sorted.length * 0.99)])+
+                         "  max "+format(sorted[sorted.length - 1]));
+   }
+
+
+   private static String format(long nanos)
+   {
+      return String.format("%8.2f us", nanos / 1000.0);
+   }
+}
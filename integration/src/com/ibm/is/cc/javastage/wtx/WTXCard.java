@@ -20,6 +20,8 @@
 
 package com.ibm.is.cc.javastage.wtx;
 
+import java.io.UnsupportedEncodingException;
+
 public abstract class WTXCard
 {
    protected int     _cardNumber;
@@ -32,6 +34,9 @@ public abstract class WTXCard
    protected boolean _transferAll = true;
    protected int     _location;
 
+   // Created when the card's string data is first converted
+   private WTXTextEncoding _textEncoding = null;
+
 
    public void setDelimiter(String delimiter)
    {
@@ -61,6 +66,7 @@ public abstract class WTXCard
    public void setCharset(String charset)
    {
       _charset = charset;
+      _textEncoding = null;
    }
 
    public void setDelimiterLocation(int location)
@@ -112,4 +118,13 @@ public abstract class WTXCard
    {
       return _location;
    }
+
+   public WTXTextEncoding getTextEncoding() throws UnsupportedEncodingException
+   {
+      if (_textEncoding == null)
+      {
+         _textEncoding = WTXTextEncoding.forName(_charset);
+      }
+      return _textEncoding;
+   }
 }
@@ -0,0 +1,246 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+
+// Holds the data of a card.  Data is kept in memory up to the spill threshold;
+// beyond that it is written to a temporary file in the spill directory, which
+// is mapped into memory a region at a time.  This lets a card hold more data
+// than fits on the heap, or in a single array.
+//
+// Java has no call to unmap a region.  The regions of a spill file are dropped
+// when the buffer is reset or closed, but their address space is only given
+// back once they are garbage collected, so a buffer may hold address space up
+// to the size of its largest spill until then.  Spilling waves of several 
+// gigabytes needs a 64-bit JVM.
+//
+// A buffer is meant to be reset and used again for the next data of the card.
+// It keeps a moving average of the size of its data: memory grows straight to
+// the average, and is given back when it is emptied if it has grown well past
+// the average.  The memory part is the array of the card writer, so data is
+// written straight into it.  A buffer is not safe to use from more than one
+// thread.
+public class WTXCardBuffer extends WTXCardWriter
+{
+   private WTXSpillDirectory _spillDirectory;
+   private int    _spillThreshold;
+   private long   _averageSize = -1;
+
+   // The spill file and the regions of it that are mapped
+   private File                        _spillFile = null;
+   private RandomAccessFile            _spillAccess = null;
+   private ArrayList<MappedByteBuffer> _regions = new ArrayList<MappedByteBuffer>();
+   private long                        _spillCount = 0;
+
+   private final static int INITIAL_HEAP_SIZE = 4096;
+   private final static int REGION_SIZE = 64 * 1024 * 1024;
+   private final static int COPY_SIZE = 64 * 1024;
+
+   // Memory past this multiple of the average size is given back on reset
+   private final static int TRIM_FACTOR = 4;
+
+
+   public WTXCardBuffer(WTXSpillDirectory spillDirectory, int spillThreshold)
+   {
+      super(new byte[0]);
+      _spillDirectory = spillDirectory;
+      _spillThreshold = spillThreshold;
+   }
+
+
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      // Fill the memory part of the buffer first
+      if (_bufferCount + len > _buffer.length)
+      {
+         growHeap(len);
+      }
+      int n = Math.min(len, _buffer.length - _bufferCount);
+      System.arraycopy(b, off, _buffer, _bufferCount, n);
+      _bufferCount += n;
+
+      if (n < len)
+      {
+         spill(b, off + n, len - n);
+      }
+   }
+
+
+   // The number of bytes in the buffer
+   public long size()
+   {
+      return _bufferCount + _spillCount;
+   }
+
+
+   public boolean isSpilled()
+   {
+      return _spillFile != null;
+   }
+
+
+   // Writes the content of the buffer to a stream
+   public void writeTo(OutputStream out) throws IOException
+   {
+      out.write(_buffer, 0, _bufferCount);
+
+      if (!_regions.isEmpty())
+      {
+         byte[] copy = new byte[COPY_SIZE];
+         long remaining = _spillCount;
+         for (MappedByteBuffer region : _regions)
+         {
+            ByteBuffer view = region.duplicate();
+            view.position(0);
+            int regionCount = (int) Math.min(remaining, REGION_SIZE);
+            view.limit(regionCount);
+            while (view.hasRemaining())
+            {
+               int n = Math.min(copy.length, view.remaining());
+               view.get(copy, 0, n);
+               out.write(copy, 0, n);
+            }
+            remaining -= regionCount;
+         }
+      }
+   }
+
+
+   // Empties the buffer.  The memory is kept for the next data unless it is
+   // much more than the data usually needs; the spill file is deleted.
+   public void reset()
+   {
+      // Weight the last size by an eighth
+      long size = size();
+      _averageSize = (_averageSize < 0) ? size : _averageSize + (size - _averageSize) / 8;
+      if (_buffer.length > INITIAL_HEAP_SIZE && _buffer.length > TRIM_FACTOR * _averageSize)
+      {
+         setBuffer(new byte[0]);
+      }
+
+      _bufferCount = 0;
+      deleteSpillFile();
+   }
+
+
+   // Releases the memory and deletes the spill file.  The references to the
+   // mapped regions are dropped so they can be unmapped by the collector.
+   public void close()
+   {
+      reset();
+      setBuffer(new byte[0]);
+   }
+
+
+   // A value goes in the memory part of the buffer if it fits below the spill
+   // threshold; otherwise it is spilled
+   protected boolean makeRoom(int length)
+   {
+      return growHeap(length) && _bufferCount + length <= _buffer.length;
+   }
+
+
+   // Grows the memory part of the buffer to hold more bytes, if the spill
+   // threshold allows.  Returns false if it is full.
+   private boolean growHeap(int needed)
+   {
+      if (_buffer.length >= _spillThreshold)
+      {
+         return false;
+      }
+      long wanted = Math.max((long) _bufferCount + needed, Math.max(_buffer.length * 2L, INITIAL_HEAP_SIZE));
+      if (_buffer.length == 0 && _averageSize > 0)
+      {
+         // Allow for the data being a little larger than usual
+         wanted = Math.max(wanted, _averageSize + _averageSize / 4);
+      }
+      setBuffer(Arrays.copyOf(_buffer, (int) Math.min(wanted, _spillThreshold)));
+      return true;
+   }
+
+
+   // Writes data past the spill threshold to the spill file
+   private void spill(byte[] b, int off, int len) throws IOException
+   {
+      if (_spillFile == null)
+      {
+         _spillFile = File.createTempFile("wtxcard", ".tmp", _spillDirectory.getDirectory());
+         _spillAccess = new RandomAccessFile(_spillFile, "rw");
+      }
+
+      while (len > 0)
+      {
+         long position = _spillCount;
+         int regionNum = (int) (position / REGION_SIZE);
+         if (regionNum == _regions.size())
+         {
+            _regions.add(_spillAccess.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                       (long) regionNum * REGION_SIZE, REGION_SIZE));
+         }
+         MappedByteBuffer region = _regions.get(regionNum);
+         int regionOffset = (int) (position % REGION_SIZE);
+         int n = Math.min(len, REGION_SIZE - regionOffset);
+         region.position(regionOffset);
+         region.put(b, off, n);
+         _spillCount += n;
+         off += n;
+         len -= n;
+      }
+   }
+
+
+   // The mapped regions are released when they are garbage collected, as
+   // Java has no call to unmap them.  If the file cannot be deleted while
+   // they are still mapped it is deleted when the JVM exits.
+   private void deleteSpillFile()
+   {
+      if (_spillFile == null)
+      {
+         return;
+      }
+
+      _regions.clear();
+      _spillCount = 0;
+      try
+      {
+         _spillAccess.close();
+      }
+      catch (IOException e)
+      {
+      }
+      if (!_spillFile.delete())
+      {
+         _spillFile.deleteOnExit();
+      }
+      _spillAccess = null;
+      _spillFile = null;
+   }
+}
@@ -0,0 +1,405 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Captures the input and output card data of sampled map runs to files, so a
+// problem with a map can be reproduced outside the job.  Every Nth run is 
+// sampled.  The data of a sampled run is copied and queued, and a thread of 
+// the capture writes it to a directory of its own under the capture 
+// directory.  Only the most recent run directories are kept.
+//
+// The queue is bounded: if the writer falls behind, sampled runs are dropped
+// rather than holding up the map runs.  The card data of a run is held in 
+// memory until it is written, so a run is dropped as well once its cards come
+// to more than the byte limit; a card that is larger on its own, such as one
+// that spilled to disk, is never copied.  At most the queued runs and one run
+// per thread are held, each no larger than the limit.  Runs can be sampled 
+// from several worker threads.
+public class WTXCardCapture
+{
+   private File                _directory;
+   private int                 _every;
+   private int                 _keep;
+   private long                _maxBytes;
+   private AtomicLong          _runCount = new AtomicLong();
+   private AtomicLong          _dropCount = new AtomicLong();
+   private AtomicLong          _oversizedCount = new AtomicLong();
+   private BlockingQueue<Run>  _queue = new ArrayBlockingQueue<Run>(QUEUE_SIZE);
+   private Thread              _writer;
+
+   // Owned by the writer thread
+   private LinkedList<File>    _runDirectories = new LinkedList<File>();
+   private long                _writtenCount = 0;
+   private String              _error = null;
+
+   // The number of sampled runs that can wait to be written
+   private final static int QUEUE_SIZE = 8;
+
+   // Queued after the last run to stop the writer
+   private final static Run END = new Run(-1, 0);
+
+
+   // Captures to a new directory under the given directory, one run in every 
+   // 'every', keeping the last 'keep' runs of no more than maxBytes of card
+   // data each
+   public WTXCardCapture(File directory, int every, int keep, long maxBytes) throws Exception
+   {
+      try
+      {
+         directory.mkdirs();
+         _directory = Files.createTempDirectory(directory.toPath(), "wtx").toFile();
+      }
+      catch (IOException e)
+      {
+         throw new Exception("Could not create a directory in capture directory "+directory+": "+e.getMessage());
+      }
+      _every = every;
+      _keep = keep;
+      _maxBytes = maxBytes;
+
+      _writer = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            writeRuns();
+         }
+      }, "WTXCardCapture");
+      _writer.setDaemon(true);
+      _writer.start();
+   }
+
+
+   public File getDirectory()
+   {
+      return _directory;
+   }
+
+
+   // Counts a map run.  Returns the run to add its card data to if it is 
+   // sampled, otherwise null.
+   public Run sample()
+   {
+      long run = _runCount.getAndIncrement();
+      return (run % _every == 0) ? new Run(run, _maxBytes) : null;
+   }
+
+
+   // Queues a sampled run to be written, unless it is over the byte limit or 
+   // the queue is full
+   public void submit(Run run)
+   {
+      if (run.isOversized())
+      {
+         _oversizedCount.incrementAndGet();
+      }
+      else if (!_queue.offer(run))
+      {
+         _dropCount.incrementAndGet();
+      }
+   }
+
+
+   // Writes the runs still queued and stops the writer
+   public void close()
+   {
+      try
+      {
+         _queue.put(END);
+         _writer.join();
+      }
+      catch (InterruptedException e)
+      {
+         _writer.interrupt();
+         Thread.currentThread().interrupt();
+      }
+
+      Logger.information("Captured the card data of "+_writtenCount+" map runs in "+_directory+".");
+      if (_dropCount.get() > 0)
+      {
+         Logger.warning("The card data of "+_dropCount.get()+" sampled map runs was not captured, "+
+                        "because the capture fell behind.");
+      }
+      if (_oversizedCount.get() > 0)
+      {
+         Logger.warning("The card data of "+_oversizedCount.get()+" sampled map runs was not captured, "+
+                        "because it came to more than "+_maxBytes+" bytes.");
+      }
+      if (_error != null)
+      {
+         Logger.warning("Could not capture card data: "+_error);
+      }
+   }
+
+
+   // Runs on the writer thread
+   private void writeRuns()
+   {
+      try
+      {
+         Run run;
+         while ((run = _queue.take()) != END)
+         {
+            try
+            {
+               writeRun(run);
+            }
+            catch (IOException e)
+            {
+               // Report the first failure when the capture is closed
+               if (_error == null)
+               {
+                  _error = e.getMessage();
+               }
+            }
+         }
+      }
+      catch (InterruptedException e)
+      {
+      }
+   }
+
+
+   private void writeRun(Run run) throws IOException
+   {
+      File runDirectory = new File(_directory, String.format("run%010d", run._number));
+      if (!runDirectory.mkdir())
+      {
+         throw new IOException("Could not create directory "+runDirectory);
+      }
+      _runDirectories.addLast(runDirectory);
+
+      for (int i = 0;  i < run._names.size();  i++)
+      {
+         FileOutputStream out = new FileOutputStream(new File(runDirectory, run._names.get(i)));
+         try
+         {
+            run._cards.get(i)._data.writeTo(out);
+         }
+         finally
+         {
+            out.close();
+         }
+      }
+
+      if (run._results != null)
+      {
+         PrintWriter writer = new PrintWriter(new File(runDirectory, "results.txt"), "UTF-8");
+         writer.println("Result code: "+run._results.getResultCode());
+         writer.println("Message: "+run._results.getResponseMessage());
+         writer.close();
+      }
+      _writtenCount++;
+
+      // Remove the oldest runs
+      while (_runDirectories.size() > _keep)
+      {
+         deleteDirectory(_runDirectories.removeFirst());
+      }
+   }
+
+
+   private static void deleteDirectory(File directory)
+   {
+      File[] files = directory.listFiles();
+      for (int i = 0;  files != null && i < files.length;  i++)
+      {
+         files[i].delete();
+      }
+      directory.delete();
+   }
+
+
+   // The card data of a sampled map run.  Each card is copied, since the 
+   // buffers of the stage are used again as soon as the run is over.  Once
+   // the copies come to more than the byte limit they are let go, and the 
+   // rest of the cards of the run are not copied.
+   public static class Run
+   {
+      private long                  _number;
+      private long                  _maxBytes;
+      private long                  _bytes = 0;
+      private boolean               _fOversized = false;
+      private ArrayList<String>     _names = new ArrayList<String>();
+      private ArrayList<CardCopy>   _cards = new ArrayList<CardCopy>();
+      private WTXMapExecutionResults _results = null;
+
+      Run(long number, long maxBytes)
+      {
+         _number = number;
+         _maxBytes = maxBytes;
+      }
+
+      public void addInput(int cardNumber, byte[] data, int offset, int count)
+      {
+         newCard("input", cardNumber).write(data, offset, count);
+      }
+
+      public void addInput(int cardNumber, WTXCardBuffer data) throws IOException
+      {
+         addCard("input", cardNumber, data);
+      }
+
+      public void addOutput(int cardNumber, WTXCardBuffer data) throws IOException
+      {
+         addCard("output", cardNumber, data);
+      }
+
+      // Returns the stream to copy the data of an input card into as it is
+      // passed on in pages
+      public OutputStream copyInput(int cardNumber)
+      {
+         return newCard("input", cardNumber);
+      }
+
+      // Returns a stream that writes to the given stream and copies the data
+      // into the run as well, for an output card that is parsed as it is
+      // produced
+      public OutputStream teeOutput(int cardNumber, OutputStream out)
+      {
+         return new TeeStream(out, newCard("output", cardNumber));
+      }
+
+      public void setResults(WTXMapExecutionResults results)
+      {
+         _results = results;
+      }
+
+      // True if the card data came to more than the byte limit
+      public boolean isOversized()
+      {
+         return _fOversized;
+      }
+
+      // A card whose size is known is checked against the limit before it is
+      // copied, so a large card is never read
+      private void addCard(String kind, int cardNumber, WTXCardBuffer data) throws IOException
+      {
+         CardCopy card = newCard(kind, cardNumber);
+         if (reserve(data.size()))
+         {
+            data.writeTo(card._data);
+         }
+      }
+
+      private CardCopy newCard(String kind, int cardNumber)
+      {
+         CardCopy card = new CardCopy();
+         _names.add(kind+cardNumber+".dat");
+         _cards.add(card);
+         return card;
+      }
+
+      // Counts bytes about to be copied.  Returns false, and lets go of the
+      // copies made so far, if they take the run over the limit.
+      private boolean reserve(long count)
+      {
+         if (_fOversized)
+         {
+            return false;
+         }
+         if (_bytes + count > _maxBytes)
+         {
+            _fOversized = true;
+            for (CardCopy card : _cards)
+            {
+               card._data = null;
+            }
+            return false;
+         }
+         _bytes += count;
+         return true;
+      }
+
+
+      // The copy of a card, as long as the run is within the limit
+      private class CardCopy extends OutputStream
+      {
+         private ByteArrayOutputStream _data = new ByteArrayOutputStream();
+
+         public void write(int b)
+         {
+            if (reserve(1))
+            {
+               _data.write(b);
+            }
+         }
+
+         public void write(byte[] b, int off, int len)
+         {
+            if (reserve(len))
+            {
+               _data.write(b, off, len);
+            }
+         }
+      }
+   }
+
+
+   private static class TeeStream extends OutputStream
+   {
+      private OutputStream _out;
+      private OutputStream _copy;
+
+      TeeStream(OutputStream out, OutputStream copy)
+      {
+         _out = out;
+         _copy = copy;
+      }
+
+      public void write(int b) throws IOException
+      {
+         _out.write(b);
+         _copy.write(b);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         _out.write(b, off, len);
+         _copy.write(b, off, len);
+      }
+
+      public void flush() throws IOException
+      {
+         _out.flush();
+      }
+
+      public void close() throws IOException
+      {
+         _out.close();
+      }
+   }
+}
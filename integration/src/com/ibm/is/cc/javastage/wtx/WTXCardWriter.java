@@ -0,0 +1,176 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+
+// The base of the buffers that the data of an input card is written into.  A
+// writer holds the data in an array of its own, and binary numbers are stored
+// straight into that array in the native byte order through a ByteBuffer view
+// of it, so each is a single store rather than a copy from a scratch array 
+// through the layers of a DataOutputStream.  The view is made again whenever
+// the array is replaced as it grows.
+//
+// Unlike DataOutputStream a writer is not synchronized; it is used by the 
+// thread that builds the card.
+public abstract class WTXCardWriter extends OutputStream
+{
+   protected byte[]   _buffer;
+   protected int      _bufferCount = 0;
+   private ByteBuffer _view;
+   private ByteBuffer _scratch = null;
+
+
+   protected WTXCardWriter(byte[] buffer)
+   {
+      setBuffer(buffer);
+   }
+
+
+   // Makes room in the array for length more bytes, by growing it or by 
+   // passing its content on.  Returns false if the bytes cannot go in the
+   // array, in which case they are written with write(byte[], int, int).
+   protected abstract boolean makeRoom(int length) throws IOException;
+
+
+   // The number of bytes written
+   public abstract long size();
+
+
+   // Replaces the array the data is held in, keeping the count
+   protected void setBuffer(byte[] buffer)
+   {
+      _buffer = buffer;
+      _view = ByteBuffer.wrap(buffer);
+      _view.order(ByteOrder.nativeOrder());
+   }
+
+
+   public void write(int b) throws IOException
+   {
+      if (_bufferCount < _buffer.length || makeRoom(1))
+      {
+         _buffer[_bufferCount++] = (byte) b;
+      }
+      else
+      {
+         write(new byte[] {(byte) b}, 0, 1);
+      }
+   }
+
+
+   public void writeLong(long value) throws IOException
+   {
+      if (hasRoom(8))
+      {
+         _view.putLong(_bufferCount, value);
+         _bufferCount += 8;
+      }
+      else
+      {
+         getScratch().putLong(0, value);
+         write(_scratch.array(), 0, 8);
+      }
+   }
+
+
+   public void writeInt(int value) throws IOException
+   {
+      if (hasRoom(4))
+      {
+         _view.putInt(_bufferCount, value);
+         _bufferCount += 4;
+      }
+      else
+      {
+         getScratch().putInt(0, value);
+         write(_scratch.array(), 0, 4);
+      }
+   }
+
+
+   public void writeShort(short value) throws IOException
+   {
+      if (hasRoom(2))
+      {
+         _view.putShort(_bufferCount, value);
+         _bufferCount += 2;
+      }
+      else
+      {
+         getScratch().putShort(0, value);
+         write(_scratch.array(), 0, 2);
+      }
+   }
+
+
+   public void writeDouble(double value) throws IOException
+   {
+      if (hasRoom(8))
+      {
+         _view.putDouble(_bufferCount, value);
+         _bufferCount += 8;
+      }
+      else
+      {
+         getScratch().putDouble(0, value);
+         write(_scratch.array(), 0, 8);
+      }
+   }
+
+
+   public void writeFloat(float value) throws IOException
+   {
+      if (hasRoom(4))
+      {
+         _view.putFloat(_bufferCount, value);
+         _bufferCount += 4;
+      }
+      else
+      {
+         getScratch().putFloat(0, value);
+         write(_scratch.array(), 0, 4);
+      }
+   }
+
+
+   private boolean hasRoom(int length) throws IOException
+   {
+      return _bufferCount + length <= _buffer.length || makeRoom(length);
+   }
+
+
+   // A value that cannot go in the array, such as one past the spill threshold
+   // of a card buffer, is put together here first
+   private ByteBuffer getScratch()
+   {
+      if (_scratch == null)
+      {
+         _scratch = ByteBuffer.allocate(8);
+         _scratch.order(ByteOrder.nativeOrder());
+      }
+      return _scratch;
+   }
+}
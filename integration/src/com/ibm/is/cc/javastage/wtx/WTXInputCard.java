@@ -24,7 +24,9 @@ public class WTXInputCard extends WTXCard
 {
    // For input links
    private byte[]  _inputData;
+   private int     _byteOffset;
    private int     _byteCount;
+   private WTXCardBuffer _inputBuffer;
 
    public WTXInputCard(int linkNum, int cardNum)
    {
@@ -33,9 +35,30 @@ public class WTXInputCard extends WTXCard
    }
 
    public void setInputData(byte[] data, int count)
+   {
+      setInputData(data, 0, count);
+   }
+
+   public void setInputData(byte[] data, int offset, int count)
    {
       _inputData = data;
+      _byteOffset = offset;
       _byteCount = count;
+      _inputBuffer = null;
+   }
+
+   // Use the content of a card buffer as the input data
+   public void setInputData(WTXCardBuffer buffer)
+   {
+      _inputData = null;
+      _byteOffset = 0;
+      _byteCount = 0;
+      _inputBuffer = buffer;
+   }
+
+   public WTXCardBuffer getInputBuffer()
+   {
+      return _inputBuffer;
    }
 
    public byte[] getInputData()
@@ -43,6 +66,11 @@ public class WTXInputCard extends WTXCard
       return _inputData;
    }
 
+   public int getInputDataOffset()
+   {
+      return _byteOffset;
+   }
+
    public int getInputDataCount()
    {
       return _byteCount;
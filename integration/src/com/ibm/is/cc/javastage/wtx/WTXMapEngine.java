@@ -0,0 +1,62 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+
+// Runs a map for the stage.  WTXMapRunner runs maps with WebSphere TX;
+// WTXStandInEngine stands in for it where TX is not installed.
+public interface WTXMapEngine
+{
+   // Loads the map the engine runs
+   void loadMap(String mapFile) throws Exception;
+
+   // Controls whether map instances are reused across runs.  The stand-in
+   // engine has no map instances and ignores it.
+   void setReuseInstances(boolean fReuseInstances);
+
+   // Tells the engine that a run returning a warning fails, so its outputs
+   // are not wanted.  The runs of the stand-in engine never return a 
+   // warning, so it ignores it.
+   void setFailOnWarning(boolean fFailOnWarning);
+
+   // Overrides a card of the map with data passed by the stage
+   void overrideInput(WTXInputCard override) throws Exception;
+   void overrideOutput(WTXOutputCard override);
+
+   // Opens an input card so that its data can be written while it is being
+   // produced, before executeMap() is called.  The data is passed to the card
+   // in pages of pageSize bytes.  The data set on the card object is ignored
+   // for the next run.
+   WTXPagedCardWriter openInputCard(int cardNum, int pageSize) throws Exception;
+
+   // Runs the map with the data of the input cards and writes the data of the
+   // output cards to their output streams
+   WTXMapExecutionResults executeMap() throws Exception;
+
+   // Discards input cards that were opened for a run that will not happen
+   void cancelRun();
+
+   // Unloads the map
+   void unload() throws Exception;
+
+   // Releases the engine
+   void close();
+}
@@ -20,15 +20,37 @@
 
 package com.ibm.is.cc.javastage.wtx;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 
 public class WTXMapExecutionResults
 {
+    // The phases of a map run that are timed
+    public final static int PHASE_CREATE_INSTANCE = 0;
+    public final static int PHASE_WRITE_INPUT = 1;
+    public final static int PHASE_RUN_MAP = 2;
+    public final static int PHASE_READ_OUTPUT = 3;
+    public final static int PHASE_UNLOAD = 4;
+    public final static int PHASE_COUNT = 5;
+
+    private final static String[] PHASE_NAMES =
+    {
+        "Create instance", "Write input", "Run map", "Read output", "Unload"
+    };
+
     private int    _mapInstance;
     private int    _returnCode;
     private String _returnMessage;
 
+    // Nanoseconds spent in each phase, and the bytes moved indexed by card
+    // number.  A card that moved no data through the stage has no count (-1).
+    private long[] _phaseNanos = new long[PHASE_COUNT];
+    private long[] _inputCardBytes = NO_CARDS;
+    private long[] _outputCardBytes = NO_CARDS;
+
+    private final static long[] NO_CARDS = new long[0];
+
     public WTXMapExecutionResults()
     {
     }
@@ -63,6 +85,55 @@ public class WTXMapExecutionResults
         return _returnCode;
     }
 
+    public void setPhaseNanos(int phase, long nanos)
+    {
+        _phaseNanos[phase] = nanos;
+    }
+
+    public long getPhaseNanos(int phase)
+    {
+        return _phaseNanos[phase];
+    }
+
+    public static String getPhaseName(int phase)
+    {
+        return PHASE_NAMES[phase];
+    }
+
+    public void setInputCardBytes(int cardNum, long count)
+    {
+        _inputCardBytes = setCardBytes(_inputCardBytes, cardNum, count);
+    }
+
+    // The bytes written to each input card, indexed by card number
+    public long[] getInputCardBytes()
+    {
+        return _inputCardBytes;
+    }
+
+    public void setOutputCardBytes(int cardNum, long count)
+    {
+        _outputCardBytes = setCardBytes(_outputCardBytes, cardNum, count);
+    }
+
+    // The bytes read from each output card, indexed by card number
+    public long[] getOutputCardBytes()
+    {
+        return _outputCardBytes;
+    }
+
+    private static long[] setCardBytes(long[] cardBytes, int cardNum, long count)
+    {
+        if (cardNum >= cardBytes.length)
+        {
+            int length = cardBytes.length;
+            cardBytes = Arrays.copyOf(cardBytes, cardNum + 1);
+            Arrays.fill(cardBytes, length, cardNum, -1);
+        }
+        cardBytes[cardNum] = count;
+        return cardBytes;
+    }
+
     public boolean isError()
     {
         return !(isWarning() || isSuccess());
@@ -90,7 +161,13 @@ public class WTXMapExecutionResults
         String s = "";
         s += "Map instance: " + _mapInstance + " ";
         s += "Return code: " + _returnCode + " ";
-        s += "Message: " + _returnMessage + "\n";
+        s += "Message: " + _returnMessage + " ";
+        for (int phase = 0;  phase < PHASE_COUNT;  phase++)
+        {
+            s += PHASE_NAMES[phase] + ": " + _phaseNanos[phase] + " ns ";
+        }
+        s += "Input bytes: " + Arrays.toString(_inputCardBytes) + " ";
+        s += "Output bytes: " + Arrays.toString(_outputCardBytes) + "\n";
         return s;
     }
 }
\ No newline at end of file
@@ -0,0 +1,205 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.Logger;
+import com.ibm.websphere.dtx.dtxpi.MException;
+import com.ibm.websphere.dtx.dtxpi.MMap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+// Keeps the compiled maps registered with the engine so that map runners in
+// the same JVM which use the same map share one copy, instead of each reading
+// and registering the map file.  A map is looked up by the canonical path,
+// size and modification time of its file.  Only when that misses is the file
+// read and hashed, outside the lock, so that a touched or copied map with the
+// same content still shares the registered copy while a recompiled map is
+// loaded again.  Each copy is registered under its own name, so maps in
+// different directories with the same base name do not replace each other.
+// A map is unloaded when the last runner using it releases it.
+public class WTXMapImageCache
+{
+   private static HashMap<String,Image> _images = new HashMap<String,Image>();
+   private static HashMap<String,Image> _contents = new HashMap<String,Image>();
+   private static long _hits = 0;
+   private static long _misses = 0;
+   private static long _imageCount = 0;
+
+
+   // A map registered with the engine
+   public static class Image
+   {
+      private String            _name;
+      private String            _hash;
+      private MMap              _map;
+      private ArrayList<String> _keys = new ArrayList<String>();
+      private int               _users = 0;
+
+      private Image(String name, String hash, MMap map)
+      {
+         _name = name;
+         _hash = hash;
+         _map = map;
+      }
+
+      // The name the map is registered under, which map instances must be
+      // created with
+      public String getName()
+      {
+         return _name;
+      }
+   }
+
+
+   // Gets the registered map for a map file, loading and registering it if it
+   // is not cached.  Each call must be matched by a call to release().
+   public static Image acquire(String mapFile, String mapName) throws Exception
+   {
+      File file = new File(mapFile);
+      String key = file.getCanonicalPath()+"|"+file.length()+"|"+file.lastModified();
+
+      synchronized (WTXMapImageCache.class)
+      {
+         Image image = _images.get(key);
+         if (image != null)
+         {
+            _hits++;
+            image._users++;
+            Logger.information("Map cache hit for "+mapFile+" (hits: "+_hits+", misses: "+_misses+")");
+            return image;
+         }
+      }
+
+      // Read and hash the file without holding up the runners of other maps
+      byte[] mapBytes = readMapFile(file);
+      String hash = hash(mapBytes);
+
+      synchronized (WTXMapImageCache.class)
+      {
+         // Another runner may have loaded the same file meanwhile, or the
+         // same content may be cached under another path or time
+         Image image = _images.get(key);
+         if (image == null)
+         {
+            image = _contents.get(hash);
+            if (image == null)
+            {
+               _misses++;
+               String name = mapName+"#"+(++_imageCount);
+               image = new Image(name, hash, new MMap(name, mapFile, mapBytes));
+               _contents.put(hash, image);
+               Logger.information("Map cache miss for "+mapFile+", loaded "+mapBytes.length+" bytes "+
+                                  "(hits: "+_hits+", misses: "+_misses+")");
+            }
+            else
+            {
+               _hits++;
+               Logger.information("Map cache hit for "+mapFile+" by content (hits: "+_hits+", misses: "+_misses+")");
+            }
+            image._keys.add(key);
+            _images.put(key, image);
+         }
+         else
+         {
+            _hits++;
+         }
+         image._users++;
+         return image;
+      }
+   }
+
+
+   // Releases a map got from acquire().  The map is unloaded when it has no
+   // more users.
+   public static synchronized void release(Image image) throws MException
+   {
+      if (--image._users > 0)
+      {
+         return;
+      }
+
+      for (String key : image._keys)
+      {
+         _images.remove(key);
+      }
+      _contents.remove(image._hash);
+      image._map.unload();
+   }
+
+
+   // Reads the whole map file
+   private static byte[] readMapFile(File file) throws Exception
+   {
+      FileChannel channel;
+      try
+      {
+         channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      }
+      catch (IOException e)
+      {
+         throw new Exception("Map file "+file.getPath()+" could not be opened.");
+      }
+
+      try
+      {
+         long size = channel.size();
+         if (size > Integer.MAX_VALUE)
+         {
+            throw new Exception("Map file "+file.getPath()+" is too large.");
+         }
+
+         ByteBuffer buffer = ByteBuffer.allocate((int) size);
+         while (buffer.hasRemaining())
+         {
+            if (channel.read(buffer) < 0)
+            {
+               throw new Exception("Map file "+file.getPath()+" could not be read.");
+            }
+         }
+         return buffer.array();
+      }
+      finally
+      {
+         channel.close();
+      }
+   }
+
+
+   private static String hash(byte[] data) throws Exception
+   {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest.digest(data))
+      {
+         hex.append(Character.forDigit((b >> 4) & 0x0F, 16));
+         hex.append(Character.forDigit(b & 0x0F, 16));
+      }
+      return hex.toString();
+   }
+}
@@ -0,0 +1,145 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.util.LinkedList;
+
+
+// Keeps prepared map instances so they can be handed out again instead of
+// being constructed and unloaded for every map run.  The factory decides how
+// an instance is built, how it is returned to a clean state between runs and
+// how it is destroyed.
+public class WTXMapInstancePool<T>
+{
+   public interface Factory<T>
+   {
+      // Builds a new instance ready to be run
+      T create() throws Exception;
+
+      // Returns a used instance to the state create() leaves it in
+      void reset(T instance) throws Exception;
+
+      // Releases all resources held by the instance
+      void destroy(T instance);
+   }
+
+   private Factory<T>    _factory;
+   private LinkedList<T> _idle = new LinkedList<T>();
+   private int           _maxIdle;
+   private long          _created = 0;
+   private long          _reused = 0;
+
+
+   public WTXMapInstancePool(Factory<T> factory, int maxIdle)
+   {
+      _factory = factory;
+      _maxIdle = maxIdle;
+   }
+
+
+   // Get an idle instance or create a new one if there is none
+   public T acquire() throws Exception
+   {
+      synchronized (this)
+      {
+         if (!_idle.isEmpty())
+         {
+            _reused++;
+            return _idle.removeFirst();
+         }
+         _created++;
+      }
+      return _factory.create();
+   }
+
+
+   // Return an instance after a run.  It is reset before it becomes idle; if
+   // the reset fails or the pool is full the instance is destroyed instead.
+   public void release(T instance)
+   {
+      // Do not reset an instance that cannot be kept
+      boolean fFull;
+      synchronized (this)
+      {
+         fFull = (_idle.size() >= _maxIdle);
+      }
+      if (fFull)
+      {
+         _factory.destroy(instance);
+         return;
+      }
+
+      try
+      {
+         _factory.reset(instance);
+      }
+      catch (Exception e)
+      {
+         discard(instance);
+         return;
+      }
+
+      synchronized (this)
+      {
+         if (_idle.size() < _maxIdle)
+         {
+            _idle.addLast(instance);
+            return;
+         }
+      }
+      _factory.destroy(instance);
+   }
+
+
+   // Destroy an instance that must not be used again
+   public void discard(T instance)
+   {
+      _factory.destroy(instance);
+   }
+
+
+   // Destroy all idle instances
+   public void clear()
+   {
+      LinkedList<T> idle;
+      synchronized (this)
+      {
+         idle = _idle;
+         _idle = new LinkedList<T>();
+      }
+      for (T instance : idle)
+      {
+         _factory.destroy(instance);
+      }
+   }
+
+
+   public synchronized long getCreatedCount()
+   {
+      return _created;
+   }
+
+
+   public synchronized long getReusedCount()
+   {
+      return _reused;
+   }
+}
@@ -0,0 +1,230 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.Logger;
+
+import java.util.Arrays;
+
+
+// Collects the phase timings and card byte counts of the map runs of a stage
+// and reports them as a summary.  A stage can run a map millions of times, so 
+// the timings are not kept individually: each phase has a histogram whose
+// buckets are about 6% wide, which the percentiles are read from.  The 
+// timings are not synchronized; each map worker keeps its own, and they are
+// merged into one when the stage logs them.
+public class WTXMapRunTimings
+{
+   private Histogram[] _phases = new Histogram[WTXMapExecutionResults.PHASE_COUNT];
+   private long[]      _inputCardBytes = new long[0];
+   private long[]      _outputCardBytes = new long[0];
+   private long        _runCount = 0;
+
+
+   public WTXMapRunTimings()
+   {
+      for (int phase = 0;  phase < _phases.length;  phase++)
+      {
+         _phases[phase] = new Histogram();
+      }
+   }
+
+
+   public void add(WTXMapExecutionResults results)
+   {
+      _runCount++;
+      for (int phase = 0;  phase < _phases.length;  phase++)
+      {
+         _phases[phase].add(results.getPhaseNanos(phase));
+      }
+      _inputCardBytes = addBytes(_inputCardBytes, results.getInputCardBytes());
+      _outputCardBytes = addBytes(_outputCardBytes, results.getOutputCardBytes());
+   }
+
+
+   // Adds the runs of other timings to these
+   public void merge(WTXMapRunTimings timings)
+   {
+      _runCount += timings._runCount;
+      for (int phase = 0;  phase < _phases.length;  phase++)
+      {
+         _phases[phase].merge(timings._phases[phase]);
+      }
+      _inputCardBytes = addBytes(_inputCardBytes, timings._inputCardBytes);
+      _outputCardBytes = addBytes(_outputCardBytes, timings._outputCardBytes);
+   }
+
+
+   public long getRunCount()
+   {
+      return _runCount;
+   }
+
+
+   // Logs the summary as information messages, one per line.  Times are in
+   // microseconds.
+   public void log()
+   {
+      if (_runCount == 0)
+      {
+         return;
+      }
+
+      Logger.information("Map run timings in microseconds over "+_runCount+" runs:");
+      for (int phase = 0;  phase < _phases.length;  phase++)
+      {
+         Histogram histogram = _phases[phase];
+         Logger.information(String.format("  %-16s min %10.1f  mean %10.1f  p50 %10.1f  p99 %10.1f  max %10.1f",
+                                          WTXMapExecutionResults.getPhaseName(phase),
+                                          histogram.getMin() / 1000.0,
+                                          histogram.getMean() / 1000.0,
+                                          histogram.getPercentile(0.50) / 1000.0,
+                                          histogram.getPercentile(0.99) / 1000.0,
+                                          histogram.getMax() / 1000.0));
+      }
+      for (int cardNum = 0;  cardNum < _inputCardBytes.length;  cardNum++)
+      {
+         if (_inputCardBytes[cardNum] >= 0)
+         {
+            Logger.information("  Input card "+cardNum+": "+_inputCardBytes[cardNum]+" bytes");
+         }
+      }
+      for (int cardNum = 0;  cardNum < _outputCardBytes.length;  cardNum++)
+      {
+         if (_outputCardBytes[cardNum] >= 0)
+         {
+            Logger.information("  Output card "+cardNum+": "+_outputCardBytes[cardNum]+" bytes");
+         }
+      }
+   }
+
+
+   // Adds byte counts indexed by card number to the totals.  Cards without a
+   // count (-1) are skipped.
+   private static long[] addBytes(long[] totals, long[] counts)
+   {
+      if (counts.length > totals.length)
+      {
+         int length = totals.length;
+         totals = Arrays.copyOf(totals, counts.length);
+         Arrays.fill(totals, length, counts.length, -1);
+      }
+      for (int cardNum = 0;  cardNum < counts.length;  cardNum++)
+      {
+         if (counts[cardNum] >= 0)
+         {
+            totals[cardNum] = Math.max(totals[cardNum], 0) + counts[cardNum];
+         }
+      }
+      return totals;
+   }
+
+
+   // Counts values in buckets.  Values below SUB_BUCKETS have a bucket each;
+   // above that each power of two is split into SUB_BUCKETS buckets.
+   private static class Histogram
+   {
+      private long[] _buckets = new long[64 * SUB_BUCKETS];
+      private long   _count = 0;
+      private long   _total = 0;
+      private long   _min = Long.MAX_VALUE;
+      private long   _max = 0;
+
+      private final static int SUB_BUCKET_BITS = 4;
+      private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+      void add(long value)
+      {
+         value = Math.max(value, 0);
+         _buckets[getBucket(value)]++;
+         _count++;
+         _total += value;
+         _min = Math.min(_min, value);
+         _max = Math.max(_max, value);
+      }
+
+      void merge(Histogram histogram)
+      {
+         for (int bucket = 0;  bucket < _buckets.length;  bucket++)
+         {
+            _buckets[bucket] += histogram._buckets[bucket];
+         }
+         _count += histogram._count;
+         _total += histogram._total;
+         _min = Math.min(_min, histogram._min);
+         _max = Math.max(_max, histogram._max);
+      }
+
+      long getMin()
+      {
+         return (_count == 0) ? 0 : _min;
+      }
+
+      long getMax()
+      {
+         return _max;
+      }
+
+      double getMean()
+      {
+         return (_count == 0) ? 0 : (double) _total / _count;
+      }
+
+      // The highest value of the bucket holding the given fraction of values,
+      // which is within the range of the values added
+      long getPercentile(double fraction)
+      {
+         long rank = Math.max(1, (long) Math.ceil(fraction * _count));
+         long seen = 0;
+         for (int bucket = 0;  bucket < _buckets.length;  bucket++)
+         {
+            seen += _buckets[bucket];
+            if (seen >= rank)
+            {
+               return Math.max(_min, Math.min(_max, getBucketHighest(bucket)));
+            }
+         }
+         return _max;
+      }
+
+      private static int getBucket(long value)
+      {
+         if (value < SUB_BUCKETS)
+         {
+            return (int) value;
+         }
+         int exponent = 63 - Long.numberOfLeadingZeros(value);
+         int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+         return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+      }
+
+      private static long getBucketHighest(int bucket)
+      {
+         if (bucket < SUB_BUCKETS)
+         {
+            return bucket;
+         }
+         int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+         long subBucket = SUB_BUCKETS + bucket % SUB_BUCKETS;
+         return ((subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+      }
+   }
+}
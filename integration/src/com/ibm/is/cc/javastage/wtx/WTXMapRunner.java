@@ -34,23 +34,41 @@ import java.io.*;
 import java.lang.reflect.Method;
 import java.rmi.RemoteException;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 // Class that interfaces with the Websphere TX Java API (dtxpi)
-public class WTXMapRunner
+public class WTXMapRunner implements WTXMapEngine
 {
    private Hashtable<Integer,WTXInputCard> _inputCardData = null;
    private Hashtable<Integer,WTXOutputCard> _outputCardData = null;
 
-   private static boolean _apiInitialized = false;  
-   private static int     _mapInstance = 0;
-   private MMap           _map;
-   private MMap           _cacheMap;
+   // The runners using the API in this JVM.  The API is initialized when the
+   // first one is created and terminated when the last one is closed.
+   private static final Object        _apiLock = new Object();
+   private static int                 _apiUsers = 0;
+   private static final AtomicInteger _mapInstance = new AtomicInteger();
+
+   private boolean        _fApiUser = false;
+   private WTXMapImageCache.Image _mapImage;
    private String         _mapName;
    private String         _mapFile;
    private String         _logDirectory;
    private Boolean        _fMapAudit;
    private Boolean        _fMapTrace;
+   private boolean        _fReuseInstances = true;
+   private WTXMapInstancePool<PreparedMap> _instancePool = null;
+   private PreparedMap    _pendingMap = null;
+   private long           _pendingCreateNanos = 0;
+   private boolean        _fFailOnWarning = false;
+   private boolean        _fResetFailed = false;
+
+   // The runner executes one map at a time so a single idle instance is enough
+   private final static int MAX_IDLE_INSTANCES = 1;
+
+   // Size of the pieces card buffers are written to the input cards in
+   private final static int INPUT_PAGE_SIZE = 1024 * 1024;
 
 
    public WTXMapRunner(String  logDirectory,
@@ -58,18 +76,24 @@ public class WTXMapRunner
                        Boolean fMapTrace,
                        Boolean fMapAudit) throws Exception
    {
-      if (isApiInitialized() == false)
+      synchronized (_apiLock)
       {
-         initializeAPI(resourceFileName);
-         ClassLoader cl = this.getClass().getClassLoader();
-         Class partypes[] = new Class[]{(new String()).getClass()};
-         Method methodID = cl.getClass().getMethod("loadClass", partypes);
-         MJniUtils.setCustomClassLoader(methodID, cl, null); 
-
-         _logDirectory = logDirectory;
-         _fMapAudit = fMapAudit;
-         _fMapTrace = fMapTrace;
+         if (_apiUsers == 0)
+         {
+            initializeAPI(resourceFileName);
+            ClassLoader cl = this.getClass().getClassLoader();
+            Class partypes[] = new Class[]{(new String()).getClass()};
+            Method methodID = cl.getClass().getMethod("loadClass", partypes);
+            MJniUtils.setCustomClassLoader(methodID, cl, null); 
+         }
+         _apiUsers++;
+         _fApiUser = true;
       }
+
+      // Every runner needs the settings, not just the one that initialized the API
+      _logDirectory = logDirectory;
+      _fMapAudit = fMapAudit;
+      _fMapTrace = fMapTrace;
    }
 
 
@@ -80,53 +104,79 @@ public class WTXMapRunner
          resourceFileName = null;
       }
       MMap.initializeAPI(resourceFileName);
-      _apiInitialized = true;
    }
 
 
+   // Stop using the API.  It is terminated once no runner in the JVM is
+   // using it, so it is not torn down under maps other runners are running.
    public void close()
    {
-      try
-      {
-         MMap.terminateAPI();
-      }
-      catch (MException me)
+      synchronized (_apiLock)
       {
-         ;
+         if (!_fApiUser)
+         {
+            return;
+         }
+         _fApiUser = false;
+         if (--_apiUsers > 0)
+         {
+            return;
+         }
+
+         try
+         {
+            MMap.terminateAPI();
+         }
+         catch (MException me)
+         {
+            ;
+         }
       }
    }
 
 
    public void loadMap(String mapFile) throws Exception
    {  
-      // Open the map file
-      FileInputStream fis = null;
-      try
-      {
-         fis = new FileInputStream(mapFile);
-      }
-      catch (FileNotFoundException e)
-      {
-         throw new Exception("Map file "+mapFile+" could not be opened.");
-      }
-      byte[] mapBytes = new byte[fis.available()];
-      fis.read(mapBytes);
-      fis.close();
-
       _mapFile = mapFile;
       _mapName = getMapName(mapFile);
 
-      _cacheMap = new MMap(_mapName, _mapFile, mapBytes);
+      // Register the map with the engine, or share it if another runner has
+      _mapImage = WTXMapImageCache.acquire(_mapFile, _mapName);
 
       Logger.information("Loaded map file "+mapFile);
    }
 
 
+   // Controls whether prepared map instances are kept and reused across runs.
+   // When off a new instance is created and unloaded for every run.
+   public void setReuseInstances(boolean fReuseInstances)
+   {
+      _fReuseInstances = fReuseInstances;
+   }
+
+
+   // Tells the runner that a run returning a warning fails, so its outputs
+   // are not read
+   public void setFailOnWarning(boolean fFailOnWarning)
+   {
+      _fFailOnWarning = fFailOnWarning;
+   }
+
+
    public void unload() throws Exception
    {
-      if (_cacheMap != null)
+      cancelRun();
+      if (_instancePool != null)
+      {
+         Logger.information("Map instances created: "+_instancePool.getCreatedCount()+
+                            ", reused: "+_instancePool.getReusedCount());
+         _instancePool.clear();
+      }
+
+      if (_mapImage != null)
       {
-         _cacheMap.unload();   
+         WTXMapImageCache.release(_mapImage);
+         _mapImage = null;
       }
    }
 
@@ -151,105 +201,245 @@ public class WTXMapRunner
    }
 
 
-   public WTXMapExecutionResults executeMap() throws Exception
+   private boolean isOutputDiscarded(WTXMapExecutionResults results)
    {
-      WTXMapExecutionResults executionResults = new WTXMapExecutionResults(); 
+      return results.isError() || (results.isWarning() && _fFailOnWarning);
+   }
 
-      // load the map from the cache
-      _map = new MMap(_mapName, _mapFile, null);
-      _mapInstance++;
 
-      // Set the map instance manually - since we will need it before the map runs (for the ObjectPool)
-      _map.setIntegerProperty(MConstants.MPIP_MAP_INSTANCE, 0, _mapInstance);
-      _map.setIntegerProperty(MConstants.MPIP_MAP_USE_RESOURCE_MANAGER, 0, 1);
+   public WTXMapExecutionResults executeMap() throws Exception
+   {
+      WTXMapExecutionResults executionResults = new WTXMapExecutionResults(); 
 
-      // Set up the trace and audit directories 
-      setupTraceAndAuditDirs();
+      // Use the instance whose input cards are being streamed, if any
+      PreparedMap prepared = acquirePendingMap();
+      _pendingMap = null;
+      executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_CREATE_INSTANCE, _pendingCreateNanos);
+      MMap map = prepared.getMap();
 
-      // Override inputs
-      if (_inputCardData != null)
+      boolean fReusable = false;
+      try
       {
-         for (Integer cardNum : _inputCardData.keySet())
+         // Set the map instance manually - since we will need it before the map runs (for the ObjectPool)
+         map.setIntegerProperty(MConstants.MPIP_MAP_INSTANCE, 0, nextMapInstance());
+
+         // Pass the data to the input cards
+         long start = System.nanoTime();
+         if (_inputCardData != null)
          {
-            MCard inCard = null;
-            try
+            for (Integer cardNum : _inputCardData.keySet())
             {
-               inCard = _map.getInputCardObject(cardNum);
+               if (prepared.isInputStreamed(cardNum))
+               {
+                  // The data was written to the card when it was streamed
+                  executionResults.setInputCardBytes(cardNum, prepared.getStreamedInput(cardNum).size());
+                  continue;
+               }
+
+               WTXInputCard override = _inputCardData.get(cardNum);
+               MStream stream = prepared.getInputStream(cardNum);
+               if (override.getInputBuffer() != null)
+               {
+                  WTXPagedCardWriter cardStream = new WTXPagedCardWriter(new MStreamOutputStream(stream), INPUT_PAGE_SIZE);
+                  override.getInputBuffer().writeTo(cardStream);
+                  cardStream.close();
+                  executionResults.setInputCardBytes(cardNum, override.getInputBuffer().size());
+               }
+               else
+               {
+                  stream.write(override.getInputData(), override.getInputDataOffset(),
+                               override.getInputDataCount());
+                  executionResults.setInputCardBytes(cardNum, override.getInputDataCount());
+               }
             }
-            catch (MException me)
+         }
+         long end = System.nanoTime();
+         executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_WRITE_INPUT, end - start);
+
+         // Run the map
+         start = end;
+         map.run();
+         end = System.nanoTime();
+         executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_RUN_MAP, end - start);
+
+         // Gather the run results
+         executionResults.setMapInstance(map.getIntegerProperty(MConstants.MPIP_MAP_INSTANCE, 0)); 
+         executionResults.setResponseMessage(map.getTextProperty(MConstants.MPIP_OBJECT_ERROR_MSG, 0));
+         executionResults.setResultCode(map.getIntegerProperty(MConstants.MPIP_OBJECT_ERROR_CODE, 0));
+
+         // Populate the output streams.  The outputs of a run that failed are
+         // not used, so they are not read.
+         start = end;
+         if (_outputCardData != null && !isOutputDiscarded(executionResults))
+         {
+            for (Integer cardNum : _outputCardData.keySet())
             {
-               throw new Exception("Input card number "+cardNum+" is invalid for map "+_mapName);
-            }
-            inCard.overrideAdapter(null, MConstants.MPI_ADAPTYPE_STREAM);
+               // Get the output stream
+               WTXOutputCard override = _outputCardData.get(cardNum);
+               OutputStream outputStream = override.getOutputStream();
+
+               MStream stream = prepared.getOutputStream(cardNum);
 
-            // Pass the data to the card
-            WTXInputCard override = _inputCardData.get(cardNum);
-            MAdapter adapter = inCard.getAdapter();
-            MStream stream = adapter.getOutputStream();
-            stream.write(override.getInputData(), 0, override.getInputDataCount());
+               // Get the data in pieces from the stream 
+               long count = 0;
+               stream.seek(0, MConstants.MPI_SEEK_SET);
+               while (true)
+               {
+                  if (stream.isEnd())
+                  {
+                     break;
+                  }
+
+                  byte[] page = stream.readPage();
+                  outputStream.write(page);
+                  count += page.length;
+               }
+               stream.seek(0, MConstants.MPI_SEEK_SET);
+               executionResults.setOutputCardBytes(cardNum, count);
+            }
          }
-      }
+         executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_READ_OUTPUT, System.nanoTime() - start);
 
-      // Override outputs to streams
-      if (_outputCardData != null)
+         // Only hand out the instance again if the run did not fail.  A failed
+         // instance is unloaded, as it was before instances were reused.
+         fReusable = !executionResults.isError();
+      }
+      finally
       {
-         for (Integer cardNum : _outputCardData.keySet())
+         // Returning the instance to the pool resets its cards; otherwise it
+         // is unloaded
+         long start = System.nanoTime();
+         if (fReusable)
          {
-            MCard outCard = null;
-            try
-            {
-               outCard = _map.getOutputCardObject(cardNum);
-            }
-            catch (MException me)
-            {
-               throw new Exception("Output card number "+cardNum+" is invalid for map "+_mapName);
-            }
-            outCard.overrideAdapter(null, MConstants.MPI_ADAPTYPE_STREAM);
+            _instancePool.release(prepared);
+         }
+         else
+         {
+            _instancePool.discard(prepared);
          }
+         executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_UNLOAD, System.nanoTime() - start);
       }
 
-      // Run the map
-      _map.run();
+      return executionResults;
+   }
+
 
-      // Populate the output streams
-      if (_outputCardData != null)
+   // Opens an input card so that its data can be written while it is being
+   // produced, before executeMap() is called.  The data is passed to the card
+   // in pages of pageSize bytes, so no more than a page is held by the caller.
+   // The data set on the card object is ignored for the next run.
+   public WTXPagedCardWriter openInputCard(int cardNum, int pageSize) throws Exception
+   {
+      PreparedMap prepared = acquirePendingMap();
+      MStream stream = prepared.getInputStream(cardNum);
+      if (stream == null)
       {
-         for (Integer cardNum : _outputCardData.keySet())
-         {
-            // Get the output stream
-            WTXOutputCard override = _outputCardData.get(cardNum);
-            OutputStream outputStream = override.getOutputStream();
+         throw new Exception("Input card number "+cardNum+" is not overridden for map "+_mapName);
+      }
+      WTXPagedCardWriter cardStream = new WTXPagedCardWriter(new MStreamOutputStream(stream), pageSize);
+      prepared.setInputStreamed(cardNum, cardStream);
+      return cardStream;
+   }
 
-            MCard outCard = _map.getOutputCardObject(cardNum);
-            MAdapter adapter = outCard.getAdapter();
-            MStream stream = adapter.getInputStream();
 
-            // Get the data in pieces from the stream 
-            stream.seek(0, MConstants.MPI_SEEK_SET);
-            while (true)
+   // Discards an instance whose input cards were opened but which will not be
+   // run, for example because producing the input data failed.
+   public void cancelRun()
+   {
+      if (_pendingMap != null)
+      {
+         _instancePool.discard(_pendingMap);
+         _pendingMap = null;
+      }
+   }
+
+
+   // Gets the instance for the next run, taking one from the pool if no input 
+   // card has been opened yet
+   private PreparedMap acquirePendingMap() throws Exception
+   {
+      if (_instancePool == null)
+      {
+         _instancePool = new WTXMapInstancePool<PreparedMap>(new PreparedMapFactory(),
+                                                            _fReuseInstances ? MAX_IDLE_INSTANCES : 0);
+      }
+      if (_pendingMap == null)
+      {
+         long start = System.nanoTime();
+         _pendingMap = _instancePool.acquire();
+         _pendingCreateNanos = System.nanoTime() - start;
+      }
+      return _pendingMap;
+   }
+
+
+   // Creates a map instance from the cached map with trace/audit configured and
+   // every overridden card switched to a stream adapter.
+   private PreparedMap prepareMap() throws Exception
+   {
+      // load the map from the cache
+      MMap map = new MMap(_mapImage.getName(), _mapFile, null);
+      PreparedMap prepared = new PreparedMap(map);
+
+      try
+      {
+         map.setIntegerProperty(MConstants.MPIP_MAP_USE_RESOURCE_MANAGER, 0, 1);
+
+         // Set up the trace and audit directories 
+         setupTraceAndAuditDirs(map);
+
+         // Override inputs
+         if (_inputCardData != null)
+         {
+            for (Integer cardNum : _inputCardData.keySet())
             {
-               if (stream.isEnd())
+               MCard inCard = null;
+               try
                {
-                  break;
+                  inCard = map.getInputCardObject(cardNum);
                }
+               catch (MException me)
+               {
+                  throw new Exception("Input card number "+cardNum+" is invalid for map "+_mapName);
+               }
+               inCard.overrideAdapter(null, MConstants.MPI_ADAPTYPE_STREAM);
 
-               outputStream.write(stream.readPage());
+               MAdapter adapter = inCard.getAdapter();
+               prepared.setInputStream(cardNum, adapter.getOutputStream());
             }
-            stream.seek(0, MConstants.MPI_SEEK_SET);
          }
-      }
 
-      // Gather the run results
-      executionResults.setMapInstance(_map.getIntegerProperty(MConstants.MPIP_MAP_INSTANCE, 0)); 
-      executionResults.setResponseMessage(_map.getTextProperty(MConstants.MPIP_OBJECT_ERROR_MSG, 0));
-      executionResults.setResultCode(_map.getIntegerProperty(MConstants.MPIP_OBJECT_ERROR_CODE, 0));
+         // Override outputs to streams
+         if (_outputCardData != null)
+         {
+            for (Integer cardNum : _outputCardData.keySet())
+            {
+               MCard outCard = null;
+               try
+               {
+                  outCard = map.getOutputCardObject(cardNum);
+               }
+               catch (MException me)
+               {
+                  throw new Exception("Output card number "+cardNum+" is invalid for map "+_mapName);
+               }
+               outCard.overrideAdapter(null, MConstants.MPI_ADAPTYPE_STREAM);
 
-      // Unload the map instance
-      _map.unload();
+               MAdapter adapter = outCard.getAdapter();
+               prepared.setOutputStream(cardNum, adapter.getInputStream());
+            }
+         }
+      }
+      catch (Exception e)
+      {
+         prepared.unload();
+         throw e;
+      }
 
-      return executionResults;
+      return prepared;
    }
 
+
    private String getMapName(String filename)
    {
       String mapName = filename;
@@ -279,23 +469,24 @@ public class WTXMapRunner
       return mapName;
    }
 
-   private boolean isApiInitialized()
+   // Runners on different worker threads share the instance numbers
+   private static int nextMapInstance()
    {
-      return _apiInitialized;
+      return _mapInstance.incrementAndGet();
    }
 
-   private void setupTraceAndAuditDirs() throws Exception
+   private void setupTraceAndAuditDirs(MMap map) throws Exception
    {   
       if (_fMapTrace != null)
       {
          // Turn trace on or off and set directory to log directory
-         _map.setIntegerProperty(MConstants.MPIP_MAP_TRACE_SWITCH, 0, _fMapTrace ? 1 : 0);
+         map.setIntegerProperty(MConstants.MPIP_MAP_TRACE_SWITCH, 0, _fMapTrace ? 1 : 0);
 
          if (_logDirectory != null)
          {
-            _map.setIntegerProperty(MConstants.MPIP_MAP_TRACE_DIRECTORY, 0,
+            map.setIntegerProperty(MConstants.MPIP_MAP_TRACE_DIRECTORY, 0,
                                     MConstants.MPI_DIRECTORY_CUSTOM);
-            _map.setTextProperty(MConstants.MPIP_MAP_TRACE_DIRECTORY_CUSTOM_VALUE,
+            map.setTextProperty(MConstants.MPIP_MAP_TRACE_DIRECTORY_CUSTOM_VALUE,
                                  0, _logDirectory);
          }
       }
@@ -303,18 +494,176 @@ public class WTXMapRunner
       if (_fMapAudit != null)
       {
          // Turn audit on or off and set directory to log directory
-         _map.setIntegerProperty(MConstants.MPIP_MAP_AUDIT_SWITCH, 0, _fMapAudit ? 1 : 0);
+         map.setIntegerProperty(MConstants.MPIP_MAP_AUDIT_SWITCH, 0, _fMapAudit ? 1 : 0);
 
          if (_logDirectory != null)
          {
-            _map.setIntegerProperty(MConstants.MPIP_MAP_AUDIT_LOCATION, 0,
+            map.setIntegerProperty(MConstants.MPIP_MAP_AUDIT_LOCATION, 0,
                                     MConstants.MPI_LOCATION_FILE);
-            _map.setIntegerProperty(MConstants.MPIP_MAP_AUDIT_DIRECTORY, 0,
+            map.setIntegerProperty(MConstants.MPIP_MAP_AUDIT_DIRECTORY, 0,
                                     MConstants.MPI_DIRECTORY_CUSTOM);
-            _map.setTextProperty(MConstants.MPIP_MAP_AUDIT_DIRECTORY_CUSTOM_VALUE,
+            map.setTextProperty(MConstants.MPIP_MAP_AUDIT_DIRECTORY_CUSTOM_VALUE,
                                  0, _logDirectory);
          }
       }
    }
-}
 
+
+   // A map instance together with the streams of its overridden cards
+   private static class PreparedMap
+   {
+      private MMap                      _preparedMap;
+      private Hashtable<Integer,MStream> _inputStreams = new Hashtable<Integer,MStream>();
+      private Hashtable<Integer,MStream> _outputStreams = new Hashtable<Integer,MStream>();
+
+      // The streams of the input cards written while their data was produced
+      private Hashtable<Integer,WTXPagedCardWriter> _streamedInputs = new Hashtable<Integer,WTXPagedCardWriter>();
+
+      PreparedMap(MMap map)
+      {
+         _preparedMap = map;
+      }
+
+      MMap getMap()
+      {
+         return _preparedMap;
+      }
+
+      void setInputStream(Integer cardNum, MStream stream)
+      {
+         _inputStreams.put(cardNum, stream);
+      }
+
+      MStream getInputStream(Integer cardNum)
+      {
+         return _inputStreams.get(cardNum);
+      }
+
+      void setInputStreamed(Integer cardNum, WTXPagedCardWriter cardStream)
+      {
+         _streamedInputs.put(cardNum, cardStream);
+      }
+
+      boolean isInputStreamed(Integer cardNum)
+      {
+         return _streamedInputs.containsKey(cardNum);
+      }
+
+      WTXPagedCardWriter getStreamedInput(Integer cardNum)
+      {
+         return _streamedInputs.get(cardNum);
+      }
+
+      void setOutputStream(Integer cardNum, MStream stream)
+      {
+         _outputStreams.put(cardNum, stream);
+      }
+
+      MStream getOutputStream(Integer cardNum)
+      {
+         return _outputStreams.get(cardNum);
+      }
+
+      // Empty the card streams so the next run starts from the same state as
+      // a newly created instance.  Fails if a card cannot be emptied, such as
+      // one whose adapter does not support resizing its stream.
+      void reset() throws Exception
+      {
+         _streamedInputs.clear();
+         emptyStreams(_inputStreams);
+         emptyStreams(_outputStreams);
+      }
+
+      private static void emptyStreams(Hashtable<Integer,MStream> streams) throws Exception
+      {
+         for (Map.Entry<Integer,MStream> entry : streams.entrySet())
+         {
+            MStream stream = entry.getValue();
+            stream.setSize(0);
+            stream.seek(0, MConstants.MPI_SEEK_SET);
+            if (stream.getSize() != 0)
+            {
+               throw new Exception("The stream of card "+entry.getKey()+" could not be emptied");
+            }
+         }
+      }
+
+      void unload()
+      {
+         try
+         {
+            _preparedMap.unload();
+         }
+         catch (MException me)
+         {
+            ;
+         }
+      }
+   }
+
+
+   // Passes each write to a card stream as it is, so each page written by a
+   // paged card writer is a page of the stream
+   private static class MStreamOutputStream extends OutputStream
+   {
+      private MStream _stream;
+
+      MStreamOutputStream(MStream stream)
+      {
+         _stream = stream;
+      }
+
+      public void write(int b) throws IOException
+      {
+         write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      public void write(byte[] b, int off, int len) throws IOException
+      {
+         try
+         {
+            _stream.write(b, off, len);
+         }
+         catch (MException me)
+         {
+            throw new IOException("Could not write to input card stream: "+me.getMessage());
+         }
+      }
+   }
+
+
+   private class PreparedMapFactory implements WTXMapInstancePool.Factory<PreparedMap>
+   {
+      public PreparedMap create() throws Exception
+      {
+         return prepareMap();
+      }
+
+      // An instance that cannot be reset is unloaded by the pool.  After the
+      // first failure instances are no longer reset, so each run loads a new
+      // one as it does with ReuseMap off.
+      public void reset(PreparedMap prepared) throws Exception
+      {
+         if (_fResetFailed)
+         {
+            throw new Exception("Map instances are not reused");
+         }
+         try
+         {
+            prepared.reset();
+         }
+         catch (Exception e)
+         {
+            _fResetFailed = true;
+            Logger.warning("Map instances of "+_mapName+" cannot be reused, so one is loaded for every run: "+
+                           e.getMessage());
+            throw e;
+         }
+      }
+
+      public void destroy(PreparedMap prepared)
+      {
+         prepared.unload();
+      }
+   }
+}
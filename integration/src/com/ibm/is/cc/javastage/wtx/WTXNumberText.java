@@ -0,0 +1,146 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+
+
+// Writes numbers to card data as ASCII text without creating a string for
+// each value.  Integers are converted digit by digit into a byte array that
+// is reused for every value.  Floating point numbers are appended to a reused
+// StringBuilder, which converts them exactly as Double.toString() and
+// Float.toString() do, so the map reads the same values as before.
+//
+// The text is only correct for charsets that encode the characters of
+// numbers as ASCII, which isAsciiCompatible() checks.  A writer is not safe
+// to use from more than one thread.
+public class WTXNumberText
+{
+   private byte[]        _bytes = new byte[MAX_LENGTH];
+   private StringBuilder _builder = new StringBuilder(MAX_LENGTH);
+
+   // The characters that can appear in the text of a number
+   private final static String NUMBER_CHARS = "0123456789-.EInfinityNaN";
+
+   // Long enough for any long, double or float
+   private final static int MAX_LENGTH = 32;
+
+   private final static byte[] MIN_LONG = Long.toString(Long.MIN_VALUE).getBytes();
+
+
+   // Returns true if the charset encodes the characters of numbers as ASCII.
+   // A null charset is the platform default.
+   public static boolean isAsciiCompatible(String charset) throws IOException
+   {
+      return isAsciiCompatible(charset, NUMBER_CHARS);
+   }
+
+
+   // Returns true if the charset encodes each of the characters as ASCII
+   static boolean isAsciiCompatible(String charset, String chars) throws IOException
+   {
+      byte[] encoded = (charset == null) ? chars.getBytes() : chars.getBytes(charset);
+      if (encoded.length != chars.length())
+      {
+         return false;
+      }
+      for (int i = 0;  i < encoded.length;  i++)
+      {
+         if (encoded[i] != chars.charAt(i))
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+
+   public void writeLong(OutputStream out, long value) throws IOException
+   {
+      if (value == Long.MIN_VALUE)
+      {
+         out.write(MIN_LONG, 0, MIN_LONG.length);
+         return;
+      }
+
+      // Fill the digits from the end of the buffer
+      boolean fNegative = (value < 0);
+      long remaining = fNegative ? -value : value;
+      int start = _bytes.length;
+      do
+      {
+         long quotient = remaining / 10;
+         _bytes[--start] = (byte) ('0' + (int) (remaining - quotient * 10));
+         remaining = quotient;
+      } while (remaining != 0);
+
+      if (fNegative)
+      {
+         _bytes[--start] = '-';
+      }
+      out.write(_bytes, start, _bytes.length - start);
+   }
+
+
+   // Writes a BigInteger that fits in a long without converting it to a
+   // string
+   public void writeBigInteger(OutputStream out, BigInteger value) throws IOException
+   {
+      if (value.bitLength() < 64)
+      {
+         writeLong(out, value.longValue());
+      }
+      else
+      {
+         byte[] text = value.toString().getBytes("US-ASCII");
+         out.write(text, 0, text.length);
+      }
+   }
+
+
+   public void writeDouble(OutputStream out, double value) throws IOException
+   {
+      _builder.setLength(0);
+      _builder.append(value);
+      writeBuilder(out);
+   }
+
+
+   public void writeFloat(OutputStream out, float value) throws IOException
+   {
+      _builder.setLength(0);
+      _builder.append(value);
+      writeBuilder(out);
+   }
+
+
+   private void writeBuilder(OutputStream out) throws IOException
+   {
+      int length = _builder.length();
+      for (int i = 0;  i < length;  i++)
+      {
+         _bytes[i] = (byte) _builder.charAt(i);
+      }
+      out.write(_bytes, 0, length);
+   }
+}
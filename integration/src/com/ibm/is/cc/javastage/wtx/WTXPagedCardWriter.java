@@ -0,0 +1,116 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+// Passes the data of an input card to a stream in fixed-size pages.  The page
+// is the array the data is written into; it goes to the stream when it is 
+// full and on close(), so no more than a page is held.  Each page can be 
+// copied to a second stream as well, such as the card capture of a run.
+public class WTXPagedCardWriter extends WTXCardWriter
+{
+   private OutputStream _out;
+   private OutputStream _copy = null;
+   private long         _pagedCount = 0;
+
+
+   public WTXPagedCardWriter(OutputStream out, int pageSize)
+   {
+      super(new byte[pageSize]);
+      _out = out;
+   }
+
+
+   public void setCopy(OutputStream copy)
+   {
+      _copy = copy;
+   }
+
+
+   public void write(byte[] b, int off, int len) throws IOException
+   {
+      // Pass whole pages straight to the stream rather than copying them
+      if (_bufferCount == 0 && len >= _buffer.length)
+      {
+         writeData(b, off, len);
+         return;
+      }
+
+      while (len > 0)
+      {
+         if (_bufferCount == _buffer.length)
+         {
+            writePage();
+         }
+         int n = Math.min(len, _buffer.length - _bufferCount);
+         System.arraycopy(b, off, _buffer, _bufferCount, n);
+         _bufferCount += n;
+         off += n;
+         len -= n;
+      }
+   }
+
+
+   // The number of bytes written, including those of the page not yet passed on
+   public long size()
+   {
+      return _pagedCount + _bufferCount;
+   }
+
+
+   // Writes the last partial page
+   public void close() throws IOException
+   {
+      writePage();
+      _out.close();
+   }
+
+
+   protected boolean makeRoom(int length) throws IOException
+   {
+      writePage();
+      return length <= _buffer.length;
+   }
+
+
+   private void writePage() throws IOException
+   {
+      if (_bufferCount > 0)
+      {
+         writeData(_buffer, 0, _bufferCount);
+         _bufferCount = 0;
+      }
+   }
+
+
+   private void writeData(byte[] b, int off, int len) throws IOException
+   {
+      _out.write(b, off, len);
+      if (_copy != null)
+      {
+         _copy.write(b, off, len);
+      }
+      _pagedCount += len;
+   }
+}
@@ -0,0 +1,84 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+
+// The directory the card buffers of a stage spill to.  It is created in the
+// work directory the first time a buffer spills, so a stage whose cards fit
+// in memory leaves nothing behind, and is removed with its files by delete().
+// Buffers on different worker threads share it.
+public class WTXSpillDirectory
+{
+   private File _workDirectory;
+   private File _directory = null;
+
+
+   public WTXSpillDirectory(File workDirectory)
+   {
+      _workDirectory = workDirectory;
+   }
+
+
+   public synchronized File getDirectory() throws IOException
+   {
+      if (_directory == null)
+      {
+         try
+         {
+            _directory = Files.createTempDirectory(_workDirectory.toPath(), "wtx").toFile();
+         }
+         catch (IOException e)
+         {
+            throw new IOException("Could not create a directory in work directory "+_workDirectory+": "+e.getMessage());
+         }
+      }
+      return _directory;
+   }
+
+
+   // Removes the directory and any files left in it.  Files that are still
+   // open or mapped are deleted when the JVM exits.
+   public synchronized void delete()
+   {
+      if (_directory == null)
+      {
+         return;
+      }
+
+      File[] files = _directory.listFiles();
+      for (int i = 0;  files != null && i < files.length;  i++)
+      {
+         if (!files[i].delete())
+         {
+            files[i].deleteOnExit();
+         }
+      }
+      if (!_directory.delete())
+      {
+         _directory.deleteOnExit();
+      }
+      _directory = null;
+   }
+}
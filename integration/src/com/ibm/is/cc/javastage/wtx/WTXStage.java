@@ -24,17 +24,15 @@ import com.ibm.is.cc.javastage.api.*;
 import java.nio.ByteOrder;
 import java.nio.ByteBuffer;
 import java.nio.BufferUnderflowException;
+import java.nio.charset.Charset;
 
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.math.BigDecimal;
 import java.math.BigInteger;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 
 /*******************************************************************************
@@ -45,16 +43,72 @@ It maps input and output links to input and output cards of TX maps.
 It supports the following stage properties:
 
 MapFile         : The full path for the TX map file.
-WorkDir         : The path of the work directory.
+WorkDir         : The path of the work directory.  Card data beyond the spill 
+                  threshold is written to temporary files here.  If not set the 
+                  system temporary directory is used.
+SpillThreshold  : The number of bytes of a card buffer that are kept in memory.  
+                  Beyond this the data is written to a temporary file in the work 
+                  directory, which is mapped into memory as it is used.  The
+                  address space of the mapped file is given back when the 
+                  buffer is garbage collected, so large spills need a 64-bit JVM.
 ResourceFile    : The path of the resource file.
-RunEach         : Specifies whether to run the map at the end of the wave, or to run 
-                  the map for each input row.  Valid values are 'Wave' and 'Row'.
+RunEach         : Specifies whether to run the map at the end of the wave, for each 
+                  input row, or for each batch of input rows.  Valid values are 
+                  'Wave', 'Row' and 'Batch'.
+BatchRows       : When RunEach is 'Batch', the maximum number of rows passed to a 
+                  single map run.
+BatchBytes      : When RunEach is 'Batch', the number of serialized input bytes 
+                  after which the map is run, even if BatchRows has not been reached.
+                  If a batch fails and there is a reject link, the batch is split 
+                  and rerun until the failing rows are found and rejected.
+Workers         : When RunEach is 'Row' or 'Batch', the number of map runs that may 
+                  execute concurrently.  Each worker has its own map instance.
+InputPageSize   : When RunEach is 'Wave', input card data is written to the input 
+                  card stream of the map in pages of this many bytes as the 
+                  input rows are read, rather than being buffered by the stage 
+                  first.  The map still runs once all input links have been 
+                  read.
+PreserveOrder   : If 'true' (the default) output and reject records are written in 
+                  the order of the input rows.  If 'false' they are written as soon 
+                  as their map run completes.
 MapTrace        : Turn map trace on or off.  Valid values are 'On' and 'Off'                  
 MapAudit        : Turn map audit on or off.  Valid values are 'On' and 'Off'                  
 FailOnWarning   : Fail the job if the map returns a warning.
+ReuseMap        : If 'true' (the default) prepared map instances are reused across
+                  map runs instead of being created and unloaded for every run.
+Engine          : The engine that runs the map.  'WTX' (the default) runs the map 
+                  with WebSphere TX.  'StandIn' runs an in-process stand-in that 
+                  does not read the map: each output card receives the data of the 
+                  input card at the same position.  It is meant for profiling and 
+                  load testing where TX is not installed.
+StandInOutput   : For the stand-in engine, 'Echo' (the default) copies the input 
+                  data unchanged, 'Upper' and 'Lower' change the case of letters.
+StandInLatency  : For the stand-in engine, the microseconds each map run takes.
+StandInFailOn   : For the stand-in engine, a map run fails if its input contains 
+                  this text.
 Debug           : If set to 'true' additional log messages are produced.
 TraceFile       : Specifies the name of a trace file to which trace information 
-                  will be written.
+                  will be written.  Each traced row is a line of tab separated 
+                  name=value fields.  The file is written by a thread of its own.
+TraceEvery      : When TraceFile is set, one row in this many is traced.  The 
+                  default is 1, every row.
+TracePercent    : When TraceFile is set, the percentage of rows that are traced, 
+                  picked at random.  If set it is used instead of TraceEvery.
+CaptureDir      : If set, the input and output card data of sampled map runs is 
+                  written to files in a new directory under this directory, so 
+                  problems with the map can be reproduced.  Capture is off by 
+                  default.
+CaptureEvery    : When CaptureDir is set, one map run in this many is captured.  
+                  The default is 1, every run.
+CaptureKeep     : When CaptureDir is set, the number of the most recent captured 
+                  runs to keep.  The default is 100.
+CaptureMaxBytes : When CaptureDir is set, the most card data of a run that is 
+                  captured.  A sampled run with more is not captured, since its
+                  cards are held in memory until they are written.  The default
+                  is 67108864 (64 MB).
+TimeRows        : If 'true' the time spent converting each input row to card 
+                  data is measured and published as SerializationNanos.  It is 
+                  off by default, since it reads the clock twice for every row.
 
 It supports the following link properties:
 
@@ -71,6 +125,10 @@ Columns         : For an input link, specifies which columns to pass to the
                   input card of the map.  Permitted values are 'All' and 'Selected'.  
                   Read documentation for more details.
 
+While it runs, each stage instance publishes its row, byte and map run counts
+and the time spent in each phase through JMX.  The time spent converting input
+rows is only measured when TimeRows is 'true'.  See WTXStageStatistics.
+
 *******************************************************************************/
 
 
@@ -83,42 +141,128 @@ public class WTXStage extends Processor
    private OutputLink       _rejectLink = null;
    private WTXInputCard[]   _inputCard;
    private WTXOutputCard[]  _outputCard;
-   private WTXMapRunner     _wtxRunner;
-   private boolean          _isLittleEndian;
+   private ColumnCodec[][]  _inputPlans;
+   private ColumnCodec[][]  _outputPlans;
+   private WTXMapEngine     _wtxRunner;
+   private MapWorker[]      _mapWorkers;
+   private WTXCardBuffer[]  _inputBuffers;
+   private DirectByteArrayOutputStream[] _rowBuffers;
+   private LinkedList<WTXCardBuffer[]>   _freeOutputs = new LinkedList<WTXCardBuffer[]>();
+   private WTXSpillDirectory _spillDirectory = null;
    private List<String>     _skippedColumns = null;
-   private PrintWriter      _traceWriter = null;
-   private FileOutputStream _traceStream = null; 
-   private DirectByteArrayOutputStream _currentOutputStream;
+   private WTXTraceWriter   _trace = null;
+   private long[]           _tracedOutputRows;   // output rows of the wave, across map runs
+   private WTXStageStatistics _statistics;
+   private WTXCardCapture   _capture = null;
+   private WTXCardCapture.Run _waveCapture = null;
+
+   // Concurrent map execution for Workers > 1
+   private ExecutorService             _executor = null;
+   private BlockingQueue<MapWorker>    _idleWorkers;
+   private CompletionService<MapTask>  _completionService;
+   private LinkedList<Future<MapTask>> _pendingTasks = new LinkedList<Future<MapTask>>();
+   private int                         _tasksInFlight = 0;
+   private int                         _maxTasksInFlight;
 
    // Syntax objects for the current card
    private byte[]  _delimiterBytes;
    private byte[]  _terminatorBytes;
    private byte[]  _releaseCharBytes;
-   private String  _delimiterSearchPattern;
-   private String  _terminatorSearchPattern;
-   private String  _releaseCharSearchPattern;
-   private String  _delimiterReplacement;
-   private String  _terminatorReplacement;
-   private String  _releaseCharReplacement;
+   private String  _delimiter;
+   private String  _terminator;
+   private String  _releaseChar;
    private String  _charset;
+   private WTXTextEncoding _textEncoding = new WTXTextEncoding(Charset.defaultCharset());
+   private boolean _fByteSyntax;      // syntax can be found in the encoded bytes of a value
    private int     _delimLocation;
+   private WTXCard _selectedCard = null;
+   private boolean _fEndOfOutput;     // the output data being parsed runs to the end of the card
+
+   // A delimiter search for the value starting at _scanStart found no 
+   // delimiter before _scanEnd.  A value that spans pages of output is 
+   // searched again from there rather than from its start.
+   private int     _scanStart = -1;
+   private int     _scanEnd;
 
    // Stage properties
    private String  _logDirectory;
+   private String  _workDirectory;
+   private int     _spillThreshold;
    private String  _mapFile;
    private String  _resourceFile;
    private String  _traceFile;
+   private int     _traceEvery;
+   private int     _tracePercent;
+   private String  _captureDirectory;
+   private int     _captureEvery;
+   private int     _captureKeep;
+   private int     _captureMaxBytes;
+   private boolean _fTimeRows;
    private boolean _failOnWarning;
-   private boolean _fRunEachRow;
+   private boolean _fReuseMap;
+   private boolean _fStandInEngine;
+   private int     _standInOutput;
+   private int     _standInLatency;
+   private String  _standInFailOn;
+   private int     _runEach;
+   private int     _batchRows;
+   private int     _batchBytes;
+   private int     _workers;
+   private int     _inputPageSize;
+   private boolean _fPreserveOrder;
    private boolean _fDebug;
    private Boolean _fMapTrace = null;
    private Boolean _fMapAudit = null;
 
-   // Formatters for times and timestamps
-   private DateFormat _timeNoMicroseconds;
-   private DateFormat _timestampNoMicroseconds;
-   private DateFormat _timeWithMicroseconds;
-   private DateFormat _timestampWithMicroseconds;
+   // Converts dates, times and timestamps to and from card data
+   private WTXTemporalText _temporalText;
+
+   // Writes numbers as text straight to the card data
+   private WTXNumberText _numberText;
+
+   // Hex text of binary values on their way to the card data
+   private byte[] _hexText;
+
+   // Run each values
+   private final static int RUN_EACH_WAVE = 1;
+   private final static int RUN_EACH_ROW = 2;
+   private final static int RUN_EACH_BATCH = 3;
+
+   // Default batch limits
+   private final static int DEFAULT_BATCH_ROWS = 1000;
+   private final static int DEFAULT_BATCH_BYTES = 1048576;
+
+   // Seconds to wait for the map runs of the workers to finish on terminate
+   private final static int WORKER_STOP_SECONDS = 60;
+
+   // Default number of captured map runs kept, and the most card data of one
+   private final static int DEFAULT_CAPTURE_KEEP = 100;
+   private final static int DEFAULT_CAPTURE_MAX_BYTES = 64 * 1024 * 1024;
+
+   // Default number of bytes of a card buffer kept in memory
+   private final static int DEFAULT_SPILL_THRESHOLD = 268435456;
+
+   // The most bytes a character takes in the charsets used for card data
+   private final static int MAX_BYTES_PER_CHAR = 4;
+
+   // Hex digits, and the value of each ASCII character as a hex digit or -1
+   private final static String HEX_CHARS = "0123456789ABCDEFabcdef";
+   private final static char[] HEX_DIGITS = HEX_CHARS.substring(0, 16).toCharArray();
+   private final static int[]  HEX_VALUES = new int[128];
+   static
+   {
+      Arrays.fill(HEX_VALUES, -1);
+      for (int i = 0;  i < HEX_CHARS.length();  i++)
+      {
+         HEX_VALUES[HEX_CHARS.charAt(i)] = Character.digit(HEX_CHARS.charAt(i), 16);
+      }
+   }
+
+   // Bytes of binary values converted to hex at a time
+   private final static int HEX_CHUNK_SIZE = 4096;
+
+   // Names the stage in debug messages
+   private final static String LOG_TAG = WTXStage.class.getName() + ".";
 
    // Delimiter location values
    private final static int DELIM_LOCATION_INFIX = 1;
@@ -131,15 +275,64 @@ public class WTXStage extends Processor
       // Stage properties
       {"MapFile", null, "Map file", "The full path for the TX map file.", "S"},
       {"LogDir", null, "Log directory", "The path of the directory where log files will be written.", "S"},
+      {"WorkDir", null, "Work directory", "The path of the work directory.  Card data beyond the "+
+             "spill threshold is written to temporary files here.  If not set the system temporary "+
+             "directory is used.", "S"},
+      {"SpillThreshold", "268435456", "Spill threshold", "The number of bytes of a card buffer that "+
+             "are kept in memory.  Beyond this the data is written to a temporary file in the work "+
+             "directory, which is mapped into memory as it is used.  The address space of the mapped "+
+             "file is given back when the buffer is garbage collected, so large spills need a 64-bit JVM.", "S"},
       {"ResourceFile", null, "Resource file", "The path of the resource file.", "S"},
       {"RunEach", "Wave", "Run each", "Specifies whether to run the map at the end of the wave, "+
-             "or to run the map for each input row.  Valid values are 'Wave' and 'Row'.", "S"},
+             "for each input row, or for each batch of input rows.  Valid values are 'Wave', 'Row' "+
+             "and 'Batch'.", "S"},
+      {"BatchRows", "1000", "Batch rows", "When RunEach is 'Batch', the maximum number of rows "+
+             "passed to a single map run.", "S"},
+      {"BatchBytes", "1048576", "Batch bytes", "When RunEach is 'Batch', the number of serialized "+
+             "input bytes after which the map is run, even if BatchRows has not been reached.", "S"},
+      {"Workers", "1", "Workers", "When RunEach is 'Row' or 'Batch', the number of map runs that "+
+             "may execute concurrently.  Each worker has its own map instance.", "S"},
+      {"InputPageSize", null, "Input page size", "When RunEach is 'Wave', input card data is written "+
+             "to the input card stream of the map in pages of this many bytes as the input rows are "+
+             "read, rather than being buffered by the stage first.  The map still runs once all input "+
+             "links have been read.", "S"},
+      {"PreserveOrder", "true", "Preserve order", "If 'true' output and reject records are written "+
+             "in the order of the input rows.  If 'false' they are written as soon as their map run "+
+             "completes.", "S"},
       {"MapTrace", null, "Map trace", "Turn map trace on or off.  Valid values are 'On' and 'Off'", "S"},
       {"MapAudit", null, "Map audit", "Turn map audit on or off.  Valid values are 'On' and 'Off'", "S"},
       {"FailOnWarning", "false", "Fail on warning", "Fail the job if the map returns a warning.", "S"},
+      {"ReuseMap", "true", "Reuse map instances", "If 'true' prepared map instances are reused across "+
+             "map runs instead of being created and unloaded for every run.", "S"},
+      {"Engine", "WTX", "Map engine", "The engine that runs the map.  'WTX' runs the map with WebSphere "+
+             "TX.  'StandIn' runs an in-process stand-in that does not read the map: each output card "+
+             "receives the data of the input card at the same position.  It is meant for profiling and "+
+             "load testing where TX is not installed.", "S"},
+      {"StandInOutput", "Echo", "Stand-in output", "For the stand-in engine, 'Echo' copies the input "+
+             "data unchanged, 'Upper' and 'Lower' change the case of letters.", "S"},
+      {"StandInLatency", "0", "Stand-in latency", "For the stand-in engine, the microseconds each map "+
+             "run takes.", "S"},
+      {"StandInFailOn", null, "Stand-in fail on", "For the stand-in engine, a map run fails if its "+
+             "input contains this text.", "S"},
       {"Debug", "false", "Debug", "If set to 'true' additional log messages are produced.", "S"},
       {"TraceFile", null, "Trace file", "Specifies the name of a trace file to which trace information "+
              "will be written.", "S"},
+      {"TraceEvery", "1", "Trace every", "When TraceFile is set, one row in this many is traced.", "S"},
+      {"TracePercent", null, "Trace percent", "When TraceFile is set, the percentage of rows that are "+
+             "traced, picked at random.  If set it is used instead of TraceEvery.", "S"},
+      {"CaptureDir", null, "Capture directory", "If set, the input and output card data of sampled map "+
+             "runs is written to files in a new directory under this directory, so problems with the "+
+             "map can be reproduced.  Capture is off by default.", "S"},
+      {"CaptureEvery", "1", "Capture every", "When CaptureDir is set, one map run in this many is "+
+             "captured.", "S"},
+      {"CaptureKeep", "100", "Capture keep", "When CaptureDir is set, the number of the most recent "+
+             "captured runs to keep.", "S"},
+      {"CaptureMaxBytes", "67108864", "Capture maximum bytes", "When CaptureDir is set, the most card "+
+             "data of a run that is captured.  A sampled run with more is not captured, since its cards "+
+             "are held in memory until they are written.", "S"},
+      {"TimeRows", "false", "Time rows", "If 'true' the time spent converting each input row to card "+
+             "data is measured and published as SerializationNanos.  It reads the clock twice for every "+
+             "row.", "S"},
 
       // Link properties
       {"Card", null, "Card number", "The number of the card in the map (offset from 1).", "L"},
@@ -181,24 +374,24 @@ public class WTXStage extends Processor
    public WTXStage()
    {
       super();
-      logEntry();
-      logExit();
+      logEntry("WTXStage");
+      logExit("WTXStage");
    }
 
    public Capabilities getCapabilities()
    {
-      logEntry();
+      logEntry("getCapabilities");
       Capabilities capabilities = new Capabilities();
       capabilities.setMaximumInputLinkCount(-1);
       capabilities.setMaximumOutputStreamLinkCount(-1);
       capabilities.setMaximumRejectLinkCount(1);
-      logExit();
+      logExit("getCapabilities");
       return capabilities;
    }
 
    public List<PropertyDefinition> getUserPropertyDefinitions()
    {
-      logEntry();
+      logEntry("getUserPropertyDefinitions");
       ArrayList<PropertyDefinition> list = new ArrayList<PropertyDefinition>();
       for (int i = 0;  i < _userPropertyDefinitions.length;  i++)
       {
@@ -209,7 +402,7 @@ public class WTXStage extends Processor
                    (_userPropertyDefinitions[i][4].equals("S") ?
                           PropertyDefinition.Scope.STAGE : PropertyDefinition.Scope.LINK)));
       }
-      logExit();
+      logExit("getUserPropertyDefinitions");
       return list;
    }
 
@@ -218,16 +411,18 @@ public class WTXStage extends Processor
    public boolean validateConfiguration(Configuration configuration, 
                                         boolean       isRuntime) throws Exception
    {
-      logEntry();
+      logEntry("validateConfiguration");
 
       _inputLinkCount = configuration.getInputLinkCount();
       _outputLinkCount = configuration.getStreamOutputLinkCount();
+      _statistics = new WTXStageStatistics(_inputLinkCount, _outputLinkCount);
 
       // Create arrays of links and card objects
       if (_inputLinkCount > 0)
       {
          _inputLink = configuration.getInputLinks().toArray(new InputLink[0]);
          _inputCard = new WTXInputCard[_inputLinkCount];
+         _inputPlans = new ColumnCodec[_inputLinkCount][];
       }
 
       if (_outputLinkCount > 0)
@@ -238,17 +433,24 @@ public class WTXStage extends Processor
             _outputLink[i] = configuration.getStreamOutputLink(i);
          }
          _outputCard = new WTXOutputCard[_outputLinkCount];
+         _outputPlans = new ColumnCodec[_outputLinkCount][];
       }
 
       // Parse the properties and create the card objects
       processProperties(configuration);
 
+      if (_workers > 1 && _runEach == RUN_EACH_WAVE)
+      {
+         Logger.warning("Workers is only applicable when the stage is configured to run "+
+                        "a map for each input row or batch of rows.");
+      }
+
       if (configuration.getRejectLinkCount() > 0)
       {
-         if (!_fRunEachRow)
+         if (_runEach == RUN_EACH_WAVE)
          {
             Logger.warning("Reject link is only applicable when the stage is configured to run "+
-                           "a map for each input row.");
+                           "a map for each input row or batch of rows.");
          }
 
          // Find the reject link
@@ -262,7 +464,7 @@ public class WTXStage extends Processor
          }
       }
 
-      logExit();
+      logExit("validateConfiguration");
       return true;
    }
 
@@ -272,20 +474,60 @@ public class WTXStage extends Processor
    {
       try
       {
-         // initialize WTX      
-         _wtxRunner = new WTXMapRunner(_logDirectory, _resourceFile, _fMapTrace, _fMapAudit);
+         // Card buffers that outgrow the spill threshold use files in a
+         // directory of their own, which is created when a buffer first
+         // spills and removed on termination
+         String workDirectory = (_workDirectory != null) ? _workDirectory : System.getProperty("java.io.tmpdir");
+         _spillDirectory = new WTXSpillDirectory(new File(workDirectory));
+         if (_captureDirectory != null)
+         {
+            _capture = new WTXCardCapture(new File(_captureDirectory), _captureEvery, _captureKeep,
+                                          _captureMaxBytes);
+         }
+         _inputBuffers = new WTXCardBuffer[_inputLinkCount];
+         _rowBuffers = new DirectByteArrayOutputStream[_inputLinkCount];
 
-         // load a WTX map
-         _wtxRunner.loadMap(_mapFile);
+         // initialize WTX and load a WTX map
+         _wtxRunner = createMapRunner(_inputCard, _outputCard);
 
-         // Associate the card objects with the map
-         for (int link = 0;  link < _inputLinkCount;  link++)
+         // The stage's own runner is the only worker unless map runs are concurrent
+         int workers = (_runEach == RUN_EACH_WAVE) ? 1 : _workers;
+         _mapWorkers = new MapWorker[workers];
+         _mapWorkers[0] = new MapWorker(_wtxRunner, _inputCard, _outputCard);
+         for (int i = 1;  i < workers;  i++)
+         {
+            WTXInputCard[] inputCards = new WTXInputCard[_inputLinkCount];
+            for (int link = 0;  link < _inputLinkCount;  link++)
+            {
+               inputCards[link] = new WTXInputCard(link, _inputCard[link].getCardNumber());
+               inputCards[link].setCharset(_inputCard[link].getCharset());
+            }
+            WTXOutputCard[] outputCards = new WTXOutputCard[_outputLinkCount];
+            for (int link = 0;  link < _outputLinkCount;  link++)
+            {
+               outputCards[link] = new WTXOutputCard(link, _outputCard[link].getCardNumber());
+            }
+            _mapWorkers[i] = new MapWorker(createMapRunner(inputCards, outputCards), inputCards, outputCards);
+         }
+
+         if (workers > 1)
          {
-            _wtxRunner.overrideInput(_inputCard[link]);
+            _idleWorkers = new ArrayBlockingQueue<MapWorker>(workers);
+            _idleWorkers.addAll(Arrays.asList(_mapWorkers));
+            _executor = Executors.newFixedThreadPool(workers, new MapWorkerThreadFactory());
+            _completionService = new ExecutorCompletionService<MapTask>(_executor);
+            _maxTasksInFlight = 2 * workers;
          }
-         for (int link = 0;  link < _outputLinkCount;  link++)
+
+         // Publish the statistics of the stage through JMX.  The job can run
+         // without them.
+         try
+         {
+            _statistics.register(_mapFile);
+         }
+         catch (Exception e)
          {
-            _wtxRunner.overrideOutput(_outputCard[link]);
+            Logger.warning("Could not register the stage statistics with the MBean server: "+e.getMessage());
          }
       }
       catch (Exception e)
@@ -299,42 +541,189 @@ public class WTXStage extends Processor
    }
 
 
+   // Create a map runner with the map loaded and the cards overridden
+   private WTXMapEngine createMapRunner(WTXInputCard[] inputCards, WTXOutputCard[] outputCards) throws Exception
+   {
+      WTXMapEngine runner;
+      if (_fStandInEngine)
+      {
+         runner = new WTXStandInEngine(_standInOutput, _standInLatency, _standInFailOn);
+      }
+      else
+      {
+         runner = new WTXMapRunner(_logDirectory, _resourceFile, _fMapTrace, _fMapAudit);
+      }
+      runner.setReuseInstances(_fReuseMap);
+      runner.setFailOnWarning(_failOnWarning);
+
+      // load a WTX map
+      try
+      {
+         runner.loadMap(_mapFile);
+      }
+      catch (Exception e)
+      {
+         runner.close();
+         throw e;
+      }
+
+      // Associate the card objects with the map
+      for (int link = 0;  link < _inputLinkCount;  link++)
+      {
+         runner.overrideInput(inputCards[link]);
+      }
+      for (int link = 0;  link < _outputLinkCount;  link++)
+      {
+         runner.overrideOutput(outputCards[link]);
+      }
+      return runner;
+   }
+
+
    public void terminate() throws Exception
    {
-      // Clean up
-      _wtxRunner.unload();
-      _wtxRunner.close();
+      // Clean up.  The maps are only unloaded once no worker can be running
+      // one; a worker that does not stop keeps its runners loaded.  A runner
+      // that fails to unload does not stop the others being cleaned up; the
+      // first failure is thrown at the end.  The timings of the workers are 
+      // read once they have stopped.
+      Exception failure = null;
+      if (stopWorkers())
+      {
+         logRunTimings();
+         for (int i = 1;  _mapWorkers != null && i < _mapWorkers.length;  i++)
+         {
+            failure = releaseRunner(_mapWorkers[i].getRunner(), failure);
+         }
+         if (_wtxRunner != null)
+         {
+            failure = releaseRunner(_wtxRunner, failure);
+         }
+      }
+      deleteSpillDirectory();
+      if (_capture != null)
+      {
+         _capture.close();
+      }
+      _statistics.unregister();
+
+      if (failure != null)
+      {
+         throw failure;
+      }
+   }
+
+
+   // Unloads the map of a runner and closes the runner, even if the unload
+   // fails.  Returns the first failure of the runners released so far.
+   private Exception releaseRunner(WTXMapEngine runner, Exception failure)
+   {
+      try
+      {
+         try
+         {
+            runner.unload();
+         }
+         finally
+         {
+            runner.close();
+         }
+      }
+      catch (Exception e)
+      {
+         Logger.warning("Could not unload map file "+_mapFile+": "+e.getMessage());
+         return (failure == null) ? e : failure;
+      }
+      return failure;
+   }
+
+
+   // Waits for the worker threads to finish the map runs they have started.
+   // Returns false if they could not be stopped.
+   private boolean stopWorkers()
+   {
+      if (_executor == null)
+      {
+         return true;
+      }
+
+      _executor.shutdown();
+      try
+      {
+         if (_executor.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS))
+         {
+            return true;
+         }
+         _executor.shutdownNow();
+         if (_executor.awaitTermination(WORKER_STOP_SECONDS, TimeUnit.SECONDS))
+         {
+            return true;
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      Logger.warning("Map workers did not stop within "+(2 * WORKER_STOP_SECONDS)+" seconds.  "+
+                     "Their maps were not unloaded.");
+      return false;
+   }
+
+
+   // Remove the card buffer spill files
+   private void deleteSpillDirectory()
+   {
+      for (int link = 0;  _inputBuffers != null && link < _inputBuffers.length;  link++)
+      {
+         if (_inputBuffers[link] != null)
+         {
+            _inputBuffers[link].close();
+         }
+      }
+      for (WTXCardBuffer[] outputs : _freeOutputs)
+      {
+         for (WTXCardBuffer output : outputs)
+         {
+            output.close();
+         }
+      }
+      _freeOutputs.clear();
+
+      if (_spillDirectory != null)
+      {
+         _spillDirectory.delete();
+         _spillDirectory = null;
+      }
    }
 
 
    // Main processing method
    public void process()
    {
-      // Determine the endianness
-      _isLittleEndian = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
-
-      // Set up the time and timestamp formatters
-      _timeNoMicroseconds = new SimpleDateFormat("HH:mm:ss", Locale.ENGLISH);
-      _timestampNoMicroseconds = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.ENGLISH);
-      _timeWithMicroseconds = new SimpleDateFormat("HH:mm:ss.S", Locale.ENGLISH);
-      _timestampWithMicroseconds = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.S", Locale.ENGLISH);
+      prepareConversions();
 
       // Create a trace file if the option was specified
       if (_traceFile != null)
       {
          try
          {
-            _traceStream = new FileOutputStream(_traceFile, false);
-            _traceWriter = new PrintWriter(_traceStream);
+            _trace = new WTXTraceWriter(_traceFile, _traceEvery, _tracePercent);
+            _tracedOutputRows = new long[_outputLinkCount];
          }
          catch (Exception e)
          {
             Logger.warning("Could not open trace file "+_traceFile);
-            _traceStream = null;
-            _traceWriter = null;
+            _trace = null;
          }
       }
 
+      // The map runs once for the wave, so whether it is captured is known
+      // before the input cards are built
+      if (_capture != null && _runEach == RUN_EACH_WAVE)
+      {
+         _waveCapture = _capture.sample();
+      }
+
       String fatalMessage = null;
       try
       {
@@ -344,7 +733,10 @@ public class WTXStage extends Processor
             processInputLink(link);
          }
 
-         if (!_fRunEachRow)
+         // Write the results of map runs still executing on the workers
+         drainMapTasks();
+
+         if (_runEach == RUN_EACH_WAVE)
          {
             runTheMap();
          }
@@ -356,20 +748,23 @@ public class WTXStage extends Processor
             logException(e);
          }
          fatalMessage = e.getMessage();
-      }
 
-      if (_traceWriter != null)
-      {
-         try
-         {
-            _traceWriter.close();
-            _traceStream.close();
-         }
-         catch (Exception e)
+         // Results of outstanding map runs are not wanted any more
+         if (_wtxRunner != null)
          {
-            ;
+            _wtxRunner.cancelRun();
          }
       }
+      finally
+      {
+         discardMapTasks();
+      }
+
+      if (_trace != null)
+      {
+         _trace.close();
+         _trace = null;
+      }
 
       if (fatalMessage != null)
       {
@@ -378,53 +773,78 @@ public class WTXStage extends Processor
    }
 
 
+   WTXInputCard getInputCard(int linkNum)
+   {
+      return _inputCard[linkNum];
+   }
+
+
+   // Sets up the objects used to convert values to and from card data
+   void prepareConversions()
+   {
+      _numberText = new WTXNumberText();
+      _hexText = new byte[HEX_CHUNK_SIZE * 2];
+      _temporalText = new WTXTemporalText();
+   }
+
+
    // Runs a map
    private WTXMapExecutionResults runTheMap() throws Exception
    {
-      // Provide output streams for TX to populate on output
+      // The output cards are parsed as the pages of their data are read, so
+      // records are written without holding all of the output in memory
+      OutputCardParser[] parsers = new OutputCardParser[_outputLinkCount];
       for (int link = 0;  link < _outputLinkCount;  link++)
       {
-         DirectByteArrayOutputStream outputByteStream = new DirectByteArrayOutputStream();
-         _outputCard[link].setOutputStream(outputByteStream);
+         parsers[link] = new OutputCardParser(link);
       }
 
-      // Run the map
-      WTXMapExecutionResults results = _wtxRunner.executeMap();
+      // Run the map.  The time spent parsing output pages as the engine reads
+      // them is not engine time.
+      OutputStream[] outputs = parsers;
+      if (_waveCapture != null)
+      {
+         outputs = new OutputStream[_outputLinkCount];
+         for (int link = 0;  link < _outputLinkCount;  link++)
+         {
+            outputs[link] = _waveCapture.teeOutput(_outputCard[link].getCardNumber(), parsers[link]);
+         }
+      }
 
-      if (_fDebug)
+      long start = System.nanoTime();
+      WTXMapExecutionResults results = _mapWorkers[0].runMap(outputs);
+      long engineNanos = System.nanoTime() - start;
+      long parseNanos = 0;
+      for (int link = 0;  link < _outputLinkCount;  link++)
       {
-         Logger.information("Executed map.  Status (" + results.getResultCode() + "): " + results.getResponseMessage());
+         parseNanos += parsers[link].getParseNanos();
       }
+      results.setPhaseNanos(WTXMapExecutionResults.PHASE_READ_OUTPUT, 
+               results.getPhaseNanos(WTXMapExecutionResults.PHASE_READ_OUTPUT) - parseNanos);
+      addMapRun(_mapWorkers[0], results, engineNanos - parseNanos);
 
-      if (results.isWarning())
+      if (_waveCapture != null)
       {
-         String warningMsg = "Map returned warning (" + results.getResultCode() + 
-                                           "): " + results.getResponseMessage();
-         if (_failOnWarning)
-         {
-            throw new Exception(warningMsg);
-         }
-         else
-         {
-            Logger.warning(warningMsg);
-         }
+         _waveCapture.setResults(results);
+         _capture.submit(_waveCapture);
+         _waveCapture = null;
       }
 
-      // Get the results
-      if (results.isSuccess() || results.isWarning())
+      // The input data of the wave has been passed to the map
+      for (int link = 0;  link < _inputLinkCount;  link++)
       {
-         for (int link = 0;  link < _outputLinkCount;  link++)
+         if (_inputBuffers[link] != null)
          {
-            processOutputLink(link);
+            _inputBuffers[link].reset();
          }
       }
-      else
+
+      // Get the results and parse the last of the output
+      if (checkResults(results))
       {
-         // If there is a reject link (and we're running a map per row), then
-         // we dont want to fail the job if a map run fails.
-         if (_rejectLink == null)
+         for (int link = 0;  link < _outputLinkCount;  link++)
          {
-            throw new Exception("Map failed (" + results.getResultCode() + "): " + results.getResponseMessage());
+            parsers[link].finish();
          }
       }
 
@@ -432,1515 +852,3012 @@ public class WTXStage extends Processor
    }
 
 
-   // Builds the data to send to the input card of the map
-   private void processInputLink(int linkNum) throws Exception
+   // Records the results of a map run in the statistics and the timings of
+   // the worker that ran it.  In Wave mode the time spent parsing the output
+   // as it is read has been taken out of its times.
+   private void addMapRun(MapWorker worker, WTXMapExecutionResults results, long engineNanos)
    {
-      // Allocate an output stream to write to
-      DirectByteArrayOutputStream outputByteStream = new DirectByteArrayOutputStream();
-      DataOutputStream outputStream = new DataOutputStream(outputByteStream);
+      _statistics.addMapRun(results, engineNanos);
+      worker.getRunTimings().add(results);
+   }
 
-      // Create a bytebuffer to perform byte ordering manipulations
-      byte[] convertBuffer = new byte[8];
-      ByteBuffer convertByteBuffer = ByteBuffer.wrap(convertBuffer);
-      convertByteBuffer.order(ByteOrder.nativeOrder());
 
-      InputLink inputLink = _inputLink[linkNum];
+   // Logs the map run timings of all of the workers as one summary
+   private void logRunTimings()
+   {
+      if (_mapWorkers == null)
+      {
+         return;
+      }
 
-      // Get the charset for the card
-      _charset = _inputCard[linkNum].getCharset();
+      WTXMapRunTimings timings = new WTXMapRunTimings();
+      for (MapWorker worker : _mapWorkers)
+      {
+         if (worker != null)
+         {
+            timings.merge(worker.getRunTimings());
+         }
+      }
+      timings.log();
+   }
 
-      // Get the delimiters and release characters for the card
-      setupSyntaxObjects(_inputCard[linkNum]);
 
-      // Determine if values are transferred in binary form or string.
-      boolean fUseStrings = _inputCard[linkNum].useStrings();
+   // Gets the streams that receive the data of the output cards of a map run.
+   // The buffers of earlier runs are used again once their output is written.
+   private WTXCardBuffer[] newOutputStreams()
+   {
+      synchronized (_freeOutputs)
+      {
+         if (!_freeOutputs.isEmpty())
+         {
+            return _freeOutputs.removeFirst();
+         }
+      }
 
-      // Create arrays for column class and whether time/timestamp have microseconds
-      int numColumns = inputLink.getColumnMetadata().size();
-      int[] sqlType = new int[numColumns];
-      boolean[] hasMicroSeconds = new boolean[numColumns];
-      Boolean[] stringPresentation = new Boolean[numColumns];
-      int c = 0;
-      for (ColumnMetadata column : inputLink.getColumnMetadata())
+      WTXCardBuffer[] outputs = new WTXCardBuffer[_outputLinkCount];
+      for (int link = 0;  link < _outputLinkCount;  link++)
       {
-         sqlType[c] = column.getSQLType();
-         hasMicroSeconds[c] = column.hasMicrosecondResolution();
-         stringPresentation[c] = isStringPresentation(column);
-         c++;
+         outputs[link] = newCardBuffer();
       }
+      return outputs;
+   }
 
-      if (linkNum == 0)
+
+   // Empties the output streams of a map run for another run.  Enough are 
+   // kept for the runs that can be waiting to be written; the memory of any 
+   // others is released.
+   private void releaseOutputStreams(WTXCardBuffer[] outputs)
+   {
+      if (outputs == null)
       {
-         _skippedColumns = new ArrayList<String>();
+         return;
       }
 
-      // Determine which columns to pass to the map
-      boolean[] skipColumn = new boolean[numColumns];
-      c = 0;
-      for (ColumnMetadata column : inputLink.getColumnMetadata())
+      for (WTXCardBuffer output : outputs)
       {
-         if (_inputCard[linkNum].transferAll())
-         {
-            // If transfer all (Columns=All), then include unless [wtx-exclude] specified
-            skipColumn[c] = (column.getDescription().indexOf("[wtx-exclude]") != -1);
-         }
-         else
+         output.reset();
+      }
+      synchronized (_freeOutputs)
+      {
+         if (_freeOutputs.size() < _mapWorkers.length + _maxTasksInFlight)
          {
-            // If not transfer all (Columns=Selected), then exclude unless [wtx-include] specified
-            skipColumn[c] = (column.getDescription().indexOf("[wtx-include]") == -1);
+            _freeOutputs.addLast(outputs);
+            return;
          }
+      }
+      for (WTXCardBuffer output : outputs)
+      {
+         output.close();
+      }
+   }
+
+
+   private WTXCardBuffer newCardBuffer()
+   {
+      return new WTXCardBuffer(_spillDirectory, _spillThreshold);
+   }
+
+
+   // Reports the results of a map run.  Returns true if the output of the run 
+   // should be processed.
+   private boolean checkResults(WTXMapExecutionResults results) throws Exception
+   {
+      if (_fDebug)
+      {
+         Logger.information("Executed map.  Status (" + results.getResultCode() + "): " + results.getResponseMessage());
+      }
 
-         if (_fDebug && skipColumn[c])
+      if (results.isWarning())
+      {
+         String warningMsg = "Map returned warning (" + results.getResultCode() + 
+                                           "): " + results.getResponseMessage();
+         if (_failOnWarning)
          {
-            Logger.information("Excluding column "+column.getName()+" on input link "+linkNum);
+            throw new Exception(warningMsg);
          }
-
-         // Store a list of column names that are being excluded.  The output link
-         // processing uses this list to skip similarly named columns.  Only do this
-         // for the first input link since column transfer is only supported for that.
-         if (linkNum == 0 && skipColumn[c])
+         else
          {
-            _skippedColumns.add(column.getName());
+            Logger.warning(warningMsg);
          }
+      }
+
+      if (results.isSuccess() || results.isWarning())
+      {
+         return true;
+      }
 
-         c++;
+      // If there is a reject link (and we're running a map per row), then
+      // we dont want to fail the job if a map run fails.
+      if (_rejectLink == null)
+      {
+         throw new Exception("Map failed (" + results.getResultCode() + "): " + results.getResponseMessage());
       }
+      return false;
+   }
 
-      if (_traceWriter != null)
+
+   // Runs the map for a row or batch of rows, either directly or on a worker.
+   private void submitMapTask(MapTask task) throws Exception
+   {
+      if (_executor == null)
       {
-         _traceWriter.println();
-         _traceWriter.println("Processing input link "+linkNum+" (card "+_inputCard[linkNum].getCardNumber()+")");
+         task.execute(_mapWorkers[0]);
+         writeMapTaskResults(task);
+         return;
       }
 
-      // Loop around processing all incoming rows
-      int row = 0;
-      do
+      if (_fPreserveOrder)
       {
-         InputRecord inputRecord = inputLink.readRecord();
-         if (inputRecord == null)
+         _pendingTasks.addLast(_executor.submit(task));
+
+         // Write the results of the tasks that have finished, in input order.  Wait
+         // for the oldest task if too many are in flight.
+         while (!_pendingTasks.isEmpty() && 
+                (_pendingTasks.getFirst().isDone() || _pendingTasks.size() > _maxTasksInFlight))
          {
-            // No more input
-            break;
+            writeMapTaskResults(getMapTask(_pendingTasks.removeFirst()));
          }
+      }
+      else
+      {
+         _completionService.submit(task);
+         _tasksInFlight++;
 
-         if (_traceWriter != null)
+         // Write the results of any tasks that have finished.  Wait for one
+         // if too many are in flight.
+         Future<MapTask> done;
+         while ((done = _completionService.poll()) != null)
          {
-            _traceWriter.println();
-            _traceWriter.println("Processing row "+row+".");
+            _tasksInFlight--;
+            writeMapTaskResults(getMapTask(done));
          }
-
-         // If delimiter location is prefix, then put out a delimiter before any values
-         if (_delimLocation == DELIM_LOCATION_PREFIX)
+         while (_tasksInFlight > _maxTasksInFlight)
          {
-            if (_delimiterBytes != null)
-            {
-               outputStream.write(_delimiterBytes);
-            }
+            _tasksInFlight--;
+            writeMapTaskResults(getMapTask(_completionService.take()));
          }
+      }
+   }
 
-         // Process this record
-         for (int col = 0;  col < numColumns;  col++)
-         {
-            if (skipColumn[col])
-            {
-               continue;
-            }
 
-            if (_traceWriter != null)
-            {
-               _traceWriter.println("Column "+col+" "+inputLink.getColumn(col).getName()+":");
-            }
+   // Waits for all submitted map tasks and writes their results
+   private void drainMapTasks() throws Exception
+   {
+      while (!_pendingTasks.isEmpty())
+      {
+         writeMapTaskResults(getMapTask(_pendingTasks.removeFirst()));
+      }
+      while (_tasksInFlight > 0)
+      {
+         _tasksInFlight--;
+         writeMapTaskResults(getMapTask(_completionService.take()));
+      }
+   }
 
-            Object value = inputRecord.getValue(col);
 
-            // Determine presentation from global value and column overrides
-            boolean fOutputAsString = fUseStrings;
-            if (stringPresentation[col] != null)
-            {
-               fOutputAsString = stringPresentation[col];
-            }
+   // Cancels the map tasks still in flight after a failure and throws away
+   // their results, so nothing is left in the completion service or counted
+   // as in flight for the next wave.  Tasks that are already running are 
+   // waited for.
+   private void discardMapTasks()
+   {
+      for (Future<MapTask> pending : _pendingTasks)
+      {
+         pending.cancel(false);
+      }
+      try
+      {
+         for (Future<MapTask> pending : _pendingTasks)
+         {
+            discardMapTask(pending);
+         }
+         while (_tasksInFlight > 0)
+         {
+            _tasksInFlight--;
+            discardMapTask(_completionService.take());
+         }
+      }
+      catch (InterruptedException e)
+      {
+         Thread.currentThread().interrupt();
+      }
+      finally
+      {
+         _pendingTasks.clear();
+         _tasksInFlight = 0;
+      }
+   }
 
-            if (_traceWriter != null)
-            {
-               traceValue(value);
-            }
 
-            if (value != null)
-            {
-               switch(sqlType[col])
-               {
-               case ColumnMetadata.SQL_TYPE_CHAR:     // String
-               case ColumnMetadata.SQL_TYPE_LONGVARCHAR:
-               case ColumnMetadata.SQL_TYPE_VARCHAR:
-               case ColumnMetadata.SQL_TYPE_WCHAR:
-               case ColumnMetadata.SQL_TYPE_WLONGVARCHAR:
-               case ColumnMetadata.SQL_TYPE_WVARCHAR:
-               case ColumnMetadata.SQL_TYPE_UNKNOWN:
-                  // Release delimiters and release chars
-                  byte[] strBytes = getBytesFromString(escapeSyntax((String)value));
-                  outputStream.write(strBytes, 0, strBytes.length);
-                  break;
+   private void discardMapTask(Future<MapTask> future) throws InterruptedException
+   {
+      try
+      {
+         MapTask task = future.get();
+         for (MapTaskSegment segment : task.getSegments())
+         {
+            releaseOutputStreams(segment.getOutputs());
+         }
+         recycleInputData(task);
+      }
+      catch (CancellationException e)
+      {
+      }
+      catch (ExecutionException e)
+      {
+      }
+   }
 
-               case ColumnMetadata.SQL_TYPE_INTEGER:  // Long
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(((Long)value).toString()));
-                  }
-                  else if (_isLittleEndian)
-                  {
-                     outputStream.writeLong(Long.reverseBytes(((Long)value).longValue()));
-                  }
-                  else
-                  {
-                     outputStream.writeLong(((Long)value).longValue());
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_BIT:      // Integer
-               case ColumnMetadata.SQL_TYPE_SMALLINT: 
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(((Integer)value).toString()));
-                  }
-                  else if (_isLittleEndian)
-                  {
-                     outputStream.writeInt(Integer.reverseBytes(((Integer)value).intValue()));
-                  }
-                  else
-                  {
-                     outputStream.writeInt(((Integer)value).intValue());
-                  }
-                  break;
+   private MapTask getMapTask(Future<MapTask> future) throws Exception
+   {
+      try
+      {
+         return future.get();
+      }
+      catch (ExecutionException ee)
+      {
+         Throwable cause = ee.getCause();
+         if (cause instanceof Exception)
+         {
+            throw (Exception) cause;
+         }
+         throw ee;
+      }
+   }
 
-               case ColumnMetadata.SQL_TYPE_TINYINT:   // Short
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(((Short)value).toString()));
-                  }
-                  else if (_isLittleEndian)
-                  {
-                     outputStream.writeShort(Short.reverseBytes(((Short)value).shortValue()));
-                  }
-                  else
-                  {
-                     outputStream.writeShort(((Short)value).shortValue());
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_DOUBLE:   // Double
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(((Double)value).toString()));
-                  }
-                  else if (_isLittleEndian)
-                  {
-                     convertByteBuffer.position(0);
-                     convertByteBuffer.putDouble(((Double)value).doubleValue());
-                     outputStream.write(convertBuffer, 0, 8);
-                  }
-                  else
-                  {
-                     outputStream.writeDouble(((Double)value).doubleValue());
-                  }
-                  break;
+   // Writes the output and reject records of a finished map task
+   private void writeMapTaskResults(MapTask task) throws Exception
+   {
+      if (_fDebug && task.getSplitCount() > 0)
+      {
+         Logger.information("Map failed for a batch of "+task.getRowCount()+" rows.  The batch was "+
+                            "split "+task.getSplitCount()+" times to isolate the failing rows.");
+      }
 
-               case ColumnMetadata.SQL_TYPE_FLOAT:    // Float
-               case ColumnMetadata.SQL_TYPE_REAL:
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(((Float)value).toString()));
-                  }
-                  else if (_isLittleEndian)
-                  {
-                     convertByteBuffer.position(0);
-                     convertByteBuffer.putFloat(((Float)value).floatValue());
-                     outputStream.write(convertBuffer, 0, 4);
-                  }
-                  else
-                  {
-                     outputStream.writeFloat(((Float)value).floatValue());
-                  }
-                  break;
+      for (MapTaskSegment segment : task.getSegments())
+      {
+         if (checkResults(segment.getResults()))
+         {
+            for (int link = 0;  link < _outputLinkCount;  link++)
+            {
+               processOutputLink(link, segment.getOutputs()[link]);
+            }
+         }
+         else if (segment.isRejected())
+         {
+            // Reject the row
+            WTXMapExecutionResults results = segment.getResults();
+            RejectRecord rejectRecord = _rejectLink.getRejectRecord(task.getRecord(segment.getRow()));
+            rejectRecord.setErrorText(results.getResponseMessage());
+            rejectRecord.setErrorCode(results.getResultCode());
+            _rejectLink.writeRecord(rejectRecord);
+            _statistics.addRejectedRow();
+         }
+         releaseOutputStreams(segment.getOutputs());
+      }
+      recycleInputData(task);
+   }
 
-               case ColumnMetadata.SQL_TYPE_BINARY:   // byte[]
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(convertToHex((byte[])value)));;
-                  }
-                  else
-                  {
-                     outputStream.write((byte[])value, 0, ((byte[])value).length);
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_VARBINARY: // byte[]
-               case ColumnMetadata.SQL_TYPE_LONGVARBINARY:
-                  if (fOutputAsString)
-                  {
-                     outputStream.write(getBytesFromString(convertToHex((byte[])value)));
-                  }
-                  else
-                  {
-                     // Output the size as a 4 byte integer
-                     if (_isLittleEndian)
-                     {
-                        outputStream.writeInt(Integer.reverseBytes(((byte[])value).length));
-                     }
-                     else
-                     {
-                        outputStream.writeInt(((byte[])value).length);
-                     }
-                     if (_delimiterBytes != null)
-                     {
-                        outputStream.write(_delimiterBytes, 0, _delimiterBytes.length);
-                     }
-                     outputStream.write((byte[])value, 0, ((byte[])value).length);
-                  }
-                  break;
+   // Gives the input data of a task that ran on a worker back to the row
+   // buffer it was swapped out of.  Inline tasks use the row buffer itself.
+   private void recycleInputData(MapTask task)
+   {
+      if (_executor != null)
+      {
+         _rowBuffers[task.getLinkNum()].recycle(task.getData());
+      }
+   }
 
-               case ColumnMetadata.SQL_TYPE_BIGINT:   // java.math.BigInteger 
-                  outputStream.write(getBytesFromString(((BigInteger)value).toString()));
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_DECIMAL:  // java.math.BigDecimal
-               case ColumnMetadata.SQL_TYPE_NUMERIC:
-                  outputStream.write(getBytesFromString(((BigDecimal)value).toString()));
-                  break;
+   // Builds the data to send to the input card of the map
+   void processInputLink(int linkNum) throws Exception
+   {
+      // Rows and batches are written to a buffer the link keeps from call to
+      // call.  In Wave mode with an input page size, write straight to the 
+      // input card of the map in pages instead.  Otherwise a wave is held in a
+      // card buffer, which spills to disk when it is large.
+      if (_rowBuffers[linkNum] == null)
+      {
+         _rowBuffers[linkNum] = new DirectByteArrayOutputStream();
+      }
+      DirectByteArrayOutputStream outputByteStream = _rowBuffers[linkNum];
+      WTXCardBuffer cardBuffer = null;
+      WTXCardWriter outputStream;
+      boolean fStreamCard = (_runEach == RUN_EACH_WAVE && _inputPageSize > 0);
+      if (fStreamCard)
+      {
+         WTXPagedCardWriter cardStream = _wtxRunner.openInputCard(_inputCard[linkNum].getCardNumber(), _inputPageSize);
+         if (_waveCapture != null)
+         {
+            cardStream.setCopy(_waveCapture.copyInput(_inputCard[linkNum].getCardNumber()));
+         }
+         outputStream = cardStream;
+      }
+      else if (_runEach == RUN_EACH_WAVE)
+      {
+         if (_inputBuffers[linkNum] == null)
+         {
+            _inputBuffers[linkNum] = newCardBuffer();
+         }
+         cardBuffer = _inputBuffers[linkNum];
+         outputStream = cardBuffer;
+      }
+      else
+      {
+         outputStream = outputByteStream;
+      }
 
-               case ColumnMetadata.SQL_TYPE_DATE:     // java.sql.Date
-                  outputStream.write(getBytesFromString(((Date)value).toString()));   
-                  break;
+      InputLink inputLink = _inputLink[linkNum];
 
-               case ColumnMetadata.SQL_TYPE_TIME:     // java.sql.Time
-                  if (hasMicroSeconds[col])
-                  {
-                     outputStream.write(getBytesFromString(_timeWithMicroseconds.format((Time)value)));
-                  }
-                  else
-                  {
-                     outputStream.write(getBytesFromString(_timeNoMicroseconds.format((Time)value)));
-                  }
-                  break;
+      // Get the charset, delimiters and release characters for the card
+      selectCard(_inputCard[linkNum]);
 
-               case ColumnMetadata.SQL_TYPE_TIMESTAMP: // java.sql.Timestamp
-                  if (hasMicroSeconds[col])
-                  {
-                     outputStream.write(getBytesFromString(_timestampWithMicroseconds.format((Timestamp)value)));
-                  }
-                  else
-                  {
-                     outputStream.write(getBytesFromString(_timestampNoMicroseconds.format((Timestamp)value)));
-                  }
-                  break;
+      // Get the codecs of the columns passed to the map
+      ColumnCodec[] codecs = getInputPlan(linkNum);
 
-               default:
-                  throw new Exception("Unrecognized metadata type");
-               }
+      // In row and batch mode, remember where each row starts in the card data 
+      // and, if rows may be rejected, its record.  When each row is run on
+      // this thread its results are written before the next row is read, so
+      // the record from readRecord() is passed to getRejectRecord() as it is.
+      // Otherwise the row is rejected after later rows have been read, so the
+      // values of its record are copied.
+      int batchRowCount = 0;
+      int[] batchRowOffsets = null;
+      List<InputRecord> batchRecords = null;
+      boolean fCopyRecords = (_runEach != RUN_EACH_ROW || _executor != null);
+      if (_runEach != RUN_EACH_WAVE)
+      {
+         batchRowOffsets = new int[Math.min(_batchRows, 1024)];
+         if (_rejectLink != null)
+         {
+            batchRecords = new ArrayList<InputRecord>();
+         }
+      }
+
+      // Loop around processing all incoming rows
+      int row = 0;
+      do
+      {
+         InputRecord inputRecord = inputLink.readRecord();
+         if (inputRecord == null)
+         {
+            // No more input
+            break;
+         }
+
+         if (_runEach != RUN_EACH_WAVE)
+         {
+            if (batchRowCount == batchRowOffsets.length)
+            {
+               batchRowOffsets = Arrays.copyOf(batchRowOffsets, batchRowOffsets.length * 2);
             }
-            else
+            batchRowOffsets[batchRowCount] = outputByteStream.getCount();
+            if (batchRecords != null)
             {
-               // For nulls, the only case to handle is to write out the
-               // size as 0 for varbinary items.
-               if (sqlType[col] == ColumnMetadata.SQL_TYPE_VARBINARY ||
-                   sqlType[col] == ColumnMetadata.SQL_TYPE_LONGVARBINARY)
-               {
-                  // Output the size as a 4 byte integer
-                  if (_isLittleEndian)
-                  {
-                     outputStream.writeInt(Integer.reverseBytes(0));
-                  }
-                  else
-                  {
-                     outputStream.writeInt(0);
-                  }
-
-                  if (_delimiterBytes != null)
-                  {
-                     outputStream.write(_delimiterBytes);
-                  }
-               }
+               batchRecords.add(fCopyRecords ? new InputRowCopy(inputLink, inputRecord) : inputRecord);
             }
+         }
 
-            // Don't output a column delimiter for the last column unless postfix
-            if (_delimiterBytes != null && 
-                (_delimLocation == DELIM_LOCATION_POSTFIX || col < numColumns-1))
+         StringBuilder traceLine = null;
+         if (_trace != null && _trace.isSampled(row))
+         {
+            traceLine = _trace.newRow("IN", linkNum, row, outputStream.size());
+         }
+
+         long rowStart = _fTimeRows ? System.nanoTime() : 0;
+
+         // If delimiter location is prefix, then put out a delimiter before any values
+         if (_delimLocation == DELIM_LOCATION_PREFIX)
+         {
+            if (_delimiterBytes != null)
             {
                outputStream.write(_delimiterBytes);
             }
          }
 
+         // Process this record
+         for (ColumnCodec codec : codecs)
+         {
+            int col = codec.getColumn();
+            Object value = inputRecord.getValue(col);
+            if (traceLine != null)
+            {
+               traceValue(traceLine, inputLink.getColumn(col).getName(), value);
+            }
+
+            codec.write(outputStream, value);
+         }
+
          if (_terminatorBytes != null)
          {
             outputStream.write(_terminatorBytes);
          }
 
-         if (_fRunEachRow)
+         if (traceLine != null)
+         {
+            _trace.write(traceLine);
+         }
+
+         _statistics.addInputRow(linkNum, _fTimeRows ? System.nanoTime() - rowStart : 0);
+
+         if (_runEach != RUN_EACH_WAVE)
+         {
+            // Run the map for each row, or once the batch is full by row count or by size
+            batchRowCount++;
+            if (_runEach == RUN_EACH_ROW || 
+                batchRowCount >= _batchRows || outputByteStream.getCount() >= _batchBytes)
+            {
+               submitRows(linkNum, outputByteStream, batchRowOffsets, batchRowCount, batchRecords);
+
+               // Writing the results of the run may have selected an output card
+               selectCard(_inputCard[linkNum]);
+
+               // Discard current content to start fresh with the next row
+               outputByteStream.reset();
+               batchRowCount = 0;
+               if (batchRecords != null)
+               {
+                  batchRecords.clear();
+               }
+            }
+         }
+
+         row++;
+
+      } while (true);
+
+      if (fStreamCard)
+      {
+         // Pass the last page to the map
+         outputStream.close();
+         traceCardInputData(linkNum, outputStream.size());
+      }
+      else if (_runEach == RUN_EACH_WAVE)
+      {
+         // Provide the data to the map
+         _inputCard[linkNum].setInputData(cardBuffer);
+         traceCardInputData(linkNum, cardBuffer.size());
+         if (_waveCapture != null)
+         {
+            _waveCapture.addInput(_inputCard[linkNum].getCardNumber(), cardBuffer);
+         }
+      }
+      else if (_runEach == RUN_EACH_BATCH && batchRowCount > 0)
+      {
+         // Run the map for the rows left over from the last full batch
+         submitRows(linkNum, outputByteStream, batchRowOffsets, batchRowCount, batchRecords);
+      }
+
+      // Rows left over from the last batch have been run
+      if (outputByteStream.getCount() > 0)
+      {
+         outputByteStream.reset();
+      }
+   }
+
+
+   // Gets the codecs of the columns passed from an input link to the map.  They
+   // are worked out the first time the link is processed, with its card 
+   // selected, and kept for the life of the stage.
+   ColumnCodec[] getInputPlan(int linkNum) throws Exception
+   {
+      if (_inputPlans[linkNum] != null)
+      {
+         return _inputPlans[linkNum];
+      }
+
+      InputLink inputLink = _inputLink[linkNum];
+      WTXInputCard card = _inputCard[linkNum];
+      int numColumns = inputLink.getColumnMetadata().size();
+
+      if (linkNum == 0)
+      {
+         _skippedColumns = new ArrayList<String>();
+      }
+
+      ArrayList<ColumnCodec> codecs = new ArrayList<ColumnCodec>();
+      int col = 0;
+      for (ColumnMetadata column : inputLink.getColumnMetadata())
+      {
+         // Determine whether to pass the column to the map
+         boolean fSkip;
+         if (card.transferAll())
+         {
+            // If transfer all (Columns=All), then include unless [wtx-exclude] specified
+            fSkip = (column.getDescription().indexOf("[wtx-exclude]") != -1);
+         }
+         else
+         {
+            // If not transfer all (Columns=Selected), then exclude unless [wtx-include] specified
+            fSkip = (column.getDescription().indexOf("[wtx-include]") == -1);
+         }
+
+         if (fSkip)
          {
-            // Provide the data to the map
-            outputStream.close();
-            WTXInputCard card = _inputCard[linkNum];
-            card.setInputData(outputByteStream.getByteArray(), outputByteStream.getCount());
             if (_fDebug)
             {
-               Logger.information("Input link "+linkNum+" (card "+card.getCardNumber()+") "+
-                                   "produced "+outputByteStream.getCount()+" bytes.");
+               Logger.information("Excluding column "+column.getName()+" on input link "+linkNum);
             }
-            if (_traceWriter != null)
+
+            // Store a list of column names that are being excluded.  The output link
+            // processing uses this list to skip similarly named columns.  Only do this
+            // for the first input link since column transfer is only supported for that.
+            if (linkNum == 0)
             {
-               _traceWriter.println("Input link "+linkNum+" (card "+card.getCardNumber()+") "+
-                                    "produced "+outputByteStream.getCount()+" bytes.");
+               _skippedColumns.add(column.getName());
             }
+         }
+         else
+         {
+            codecs.add(newColumnCodec(card, column, col, numColumns));
+         }
+         col++;
+      }
+
+      _inputPlans[linkNum] = codecs.toArray(new ColumnCodec[codecs.size()]);
+      return _inputPlans[linkNum];
+   }
+
+
+   // Gets the codecs of the columns read from the output card of a link
+   ColumnCodec[] getOutputPlan(int linkNum) throws Exception
+   {
+      if (_outputPlans[linkNum] != null)
+      {
+         return _outputPlans[linkNum];
+      }
+
+      OutputLink outputLink = _outputLink[linkNum];
+      WTXOutputCard card = _outputCard[linkNum];
+      int numColumns = outputLink.getColumnMetadata().size();
+      selectCard(card);
+
+      ArrayList<ColumnCodec> codecs = new ArrayList<ColumnCodec>();
+      int col = 0;
+      for (ColumnMetadata column : outputLink.getColumnMetadata())
+      {
+         // If columns are being transferred from the input link to the output skip them
+         if (_skippedColumns != null && _skippedColumns.contains(column.getName()))
+         {
+            if (_fDebug)
+            {
+               Logger.information("Excluding column "+column.getName()+" on output link "+linkNum);
+            }
+         }
+         else
+         {
+            codecs.add(newColumnCodec(card, column, col, numColumns));
+         }
+         col++;
+      }
+
+      _outputPlans[linkNum] = codecs.toArray(new ColumnCodec[codecs.size()]);
+      return _outputPlans[linkNum];
+   }
+
+
+   // Creates the codec for a column from its type and presentation and the
+   // syntax of the card, which must be selected
+   private ColumnCodec newColumnCodec(WTXCard card, ColumnMetadata column, int col, int numColumns) 
+                                                                                  throws Exception
+   {
+      // Determine presentation from global value and column overrides
+      boolean fAsString = card.useStrings();
+      Boolean stringPresentation = isStringPresentation(column);
+      if (stringPresentation != null)
+      {
+         fAsString = stringPresentation;
+      }
+
+      // Numbers are written as text without converting them to strings when 
+      // the charset of the card encodes them as ASCII
+      boolean fAsciiNumbers = WTXNumberText.isAsciiCompatible(_charset);
+      boolean fAsciiTemporals = WTXTemporalText.isAsciiCompatible(_charset);
+      boolean fAsciiHex = WTXNumberText.isAsciiCompatible(_charset, HEX_CHARS);
+
+      ColumnCodec codec;
+      int length = column.getPrecision();
+      switch(column.getSQLType())
+      {
+      case ColumnMetadata.SQL_TYPE_CHAR:     // String
+      case ColumnMetadata.SQL_TYPE_LONGVARCHAR:
+      case ColumnMetadata.SQL_TYPE_VARCHAR:
+      case ColumnMetadata.SQL_TYPE_WCHAR:
+      case ColumnMetadata.SQL_TYPE_WLONGVARCHAR:
+      case ColumnMetadata.SQL_TYPE_WVARCHAR:
+      case ColumnMetadata.SQL_TYPE_UNKNOWN:
+         if (_releaseCharBytes == null)
+         {
+            codec = new StringCodec();
+         }
+         else
+         {
+            codec = _fByteSyntax ? new ReleasedBytesStringCodec() : new ReleasedStringCodec();
+         }
+         break;
+
+      case ColumnMetadata.SQL_TYPE_INTEGER:  // Long
+         codec = !fAsString ? new LongCodec() : fAsciiNumbers ? new LongAsciiCodec() : new LongTextCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_BIT:      // Integer
+      case ColumnMetadata.SQL_TYPE_SMALLINT: 
+         codec = !fAsString ? new IntegerCodec() : fAsciiNumbers ? new IntegerAsciiCodec() : new IntegerTextCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_TINYINT:   // Short
+         codec = !fAsString ? new ShortCodec() : fAsciiNumbers ? new ShortAsciiCodec() : new ShortTextCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_DOUBLE:   // Double
+         codec = !fAsString ? new DoubleCodec() : fAsciiNumbers ? new DoubleAsciiCodec() : new DoubleTextCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_FLOAT:    // Float
+      case ColumnMetadata.SQL_TYPE_REAL:
+         codec = !fAsString ? new FloatCodec() : fAsciiNumbers ? new FloatAsciiCodec() : new FloatTextCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_BINARY:   // byte[]
+         codec = !fAsString ? new BinaryCodec() : fAsciiHex ? new HexAsciiCodec(false) : new HexCodec(false);
+         break;
+
+      case ColumnMetadata.SQL_TYPE_VARBINARY: // byte[]
+      case ColumnMetadata.SQL_TYPE_LONGVARBINARY:
+         codec = !fAsString ? new VarBinaryCodec() : fAsciiHex ? new HexAsciiCodec(true) : new HexCodec(true);
+         break;
+
+      case ColumnMetadata.SQL_TYPE_BIGINT:   // java.math.BigInteger 
+         codec = fAsciiNumbers ? new BigIntegerAsciiCodec() : new BigIntegerCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_DECIMAL:  // java.math.BigDecimal
+      case ColumnMetadata.SQL_TYPE_NUMERIC:
+         codec = new BigDecimalCodec();
+         break;
+
+      case ColumnMetadata.SQL_TYPE_DATE:     // java.sql.Date
+         codec = new DateCodec(fAsciiTemporals);
+         length = WTXTemporalText.DATE_LENGTH;
+         break;
+
+      case ColumnMetadata.SQL_TYPE_TIME:     // java.sql.Time
+         // "HH:MM:SS" or "HH:MM:SS.FFFFFF"
+         codec = new TimeCodec(column.hasMicrosecondResolution(), fAsciiTemporals);
+         length = column.hasMicrosecondResolution() ? WTXTemporalText.TIME_MICROSECONDS_LENGTH 
+                                                    : WTXTemporalText.TIME_LENGTH;
+         break;
+
+      case ColumnMetadata.SQL_TYPE_TIMESTAMP: // java.sql.Timestamp
+         // "YYYY-MM-DD HH:MM:SS" or "YYYY-MM-DD HH:MM:SS.FFFFFF"
+         codec = new TimestampCodec(column.hasMicrosecondResolution(), fAsciiTemporals);
+         length = column.hasMicrosecondResolution() ? WTXTemporalText.TIMESTAMP_MICROSECONDS_LENGTH 
+                                                    : WTXTemporalText.TIMESTAMP_LENGTH;
+         break;
+
+      default:
+         throw new Exception("Unrecognized metadata type");
+      }
+
+      // Don't put out a column delimiter after the last column unless postfix.
+      // The value of the last column ends at the row terminator instead.
+      boolean fLastColumn = (col == numColumns - 1);
+      boolean fDelimited = (!fLastColumn || _delimLocation == DELIM_LOCATION_POSTFIX);
+      codec.setLayout(col, length, fLastColumn, _delimiterBytes, 
+                      fDelimited ? _delimiterBytes : _terminatorBytes,
+                      fDelimited ? _delimiterBytes : null);
+      return codec;
+   }
+
+
+   private void traceCardInputData(int linkNum, long count)
+   {
+      _statistics.addInputCardBytes(linkNum, count);
+
+      WTXInputCard card = _inputCard[linkNum];
+      if (_fDebug)
+      {
+         Logger.information("Input link "+linkNum+" (card "+card.getCardNumber()+") "+
+                             "produced "+count+" bytes.");
+      }
+      if (_trace != null)
+      {
+         _trace.write("IN_CARD\tlink="+linkNum+"\tcard="+card.getCardNumber()+"\tbytes="+count);
+      }
+   }
+
+
+   // Runs the map for the serialized rows of a row or batch.  When the run
+   // happens on a worker the task takes the data and the stream is given a new
+   // buffer, since the stream is reused for the next rows straight away.
+   private void submitRows(int linkNum, DirectByteArrayOutputStream outputByteStream,
+                           int[] rowOffsets, int rowCount, List<InputRecord> records) throws Exception
+   {
+      traceCardInputData(linkNum, outputByteStream.getCount());
+
+      MapTask task;
+      if (_executor == null)
+      {
+         task = new MapTask(linkNum, outputByteStream.getByteArray(), outputByteStream.getCount(),
+                            rowOffsets, rowCount, records);
+      }
+      else
+      {
+         int count = outputByteStream.getCount();
+         byte[] data = outputByteStream.swap();
+         task = new MapTask(linkNum, data, count, Arrays.copyOf(rowOffsets, rowCount), rowCount,
+                            (records == null) ? null : new ArrayList<InputRecord>(records));
+      }
+      submitMapTask(task);
+   }
+
+
+   // Parses the data produced from an output card of the map
+   void processOutputLink(int linkNum, WTXCardBuffer outputBuffer) throws Exception
+   {
+      OutputCardParser parser = new OutputCardParser(linkNum);
+      outputBuffer.writeTo(parser);
+      parser.finish();
+   }
+
+
+   // Looks for PRESENTATION(char) or PRESENTATION(binary) in the description.
+   // Returns null if neither is found.
+   private Boolean isStringPresentation(ColumnMetadata column) throws Exception
+   {
+      Boolean presentation = null;
+      String desc = column.getDescription();
+      int idx = desc.indexOf("PRESENTATION(");
+      if (idx != -1)
+      {
+         // 13 is length of "PRESENTATION("
+         int idx2 = desc.indexOf(')', 13);
+         if (idx2 != -1)
+         {
+            String pres = desc.substring(idx+13, idx2);
+            if (pres.equalsIgnoreCase("CHAR"))
+            {
+               presentation = new Boolean(true);
+            }
+            else if (pres.equalsIgnoreCase("BINARY"))
+            {
+               presentation = new Boolean(false);
+            }
+            else
+            {
+               throw new Exception("Presentation specifier '" + pres + "' for column "+
+                                   column.getName()+" is invalid.  It must be 'char' or 'binary'");
+            }
+         }
+         else
+         {
+            throw new Exception("Presentation specifier for column "+column.getName()+" is malformed");
+         }
+      }
+      return presentation;
+   }
+
+
+   // Adds a column to the trace line of a row.  Binary values are shown in 
+   // hex within braces.
+   private void traceValue(StringBuilder line, String name, Object value)
+   {
+      String traceValue;
+      if (value == null)
+      {
+         traceValue = null;
+      }
+      else if (value instanceof byte[])
+      {
+         traceValue = "{"+convertToHex((byte[])value)+"}";
+      }
+      else
+      {
+         traceValue = value.toString();
+      }
+      WTXTraceWriter.addField(line, name, traceValue);
+   }
+
+
+   // Makes the card the one whose data is being built or parsed
+   void selectCard(WTXCard card) throws Exception
+   {
+      if (card == _selectedCard)
+      {
+         return;
+      }
+      _charset = card.getCharset();
+      _textEncoding = card.getTextEncoding();
+      setupSyntaxObjects(card);
+      _selectedCard = card;
+   }
+
+
+   // Sets the member variables that hold the syntax objects used to process the cards
+   private void setupSyntaxObjects(WTXCard card) throws Exception
+   {
+      String delimiter = card.getDelimiter();
+      String terminator = card.getTerminator();
+      String releaseChar = card.getReleaseChar();
+
+      // Get the bytes to write out
+      _delimiterBytes = getBytesFromString(delimiter);
+      _terminatorBytes = getBytesFromString(terminator);
+      _releaseCharBytes = getBytesFromString(releaseChar);
+
+      // Keep the strings to search values for
+      _delimiter = delimiter;
+      _terminator = terminator;
+      _releaseChar = releaseChar;
+
+      // In single byte charsets and UTF-8 the bytes of a character never
+      // start part way through another, so values can be searched for syntax
+      // after they are encoded
+      _fByteSyntax = _textEncoding.getCharset().name().equals("UTF-8") || _textEncoding.isSingleByte();
+
+      // Get other attributes about delimiters
+      _delimLocation = card.getDelimiterLocation();
+   }
+
+
+   // Converts hex string to bytes
+   public static byte[] convertFromHex(String value)
+   {
+      if (value == null)
+      {
+         return null;
+      }
+
+      int len = value.length();
+      byte[] data = new byte[len / 2];
+      
+      for (int i = 0;  i < len;  i += 2) 
+      {
+         data[i/2] = (byte) ((hexValue(value.charAt(i)) << 4) + hexValue(value.charAt(i+1)));
+      }
+      return data;
+   }
+
+
+   private static int hexValue(char c)
+   {
+      return (c < HEX_VALUES.length) ? HEX_VALUES[c] : Character.digit(c, 16);
+   }
+
+
+   // Coverts bytes to hex string
+   public static String convertToHex(byte[] value) 
+   {
+      if (value == null)
+      {
+         return null;
+      }
+
+      char[] hexChars = new char[value.length * 2];
+      
+      int outIndex = 0;
+      for (int i = 0;  i < value.length;  i++) 
+      {
+         int v = value[i] & 0xFF;
+         hexChars[outIndex++] = HEX_DIGITS[v >>> 4];
+         hexChars[outIndex++] = HEX_DIGITS[v & 0x0F];
+      }
+      return new String(hexChars);
+   }
+
+
+   // Writes bytes as hex to the card data, for charsets that encode hex 
+   // digits as ASCII.  Long values are converted a chunk at a time.
+   void writeHex(OutputStream outputStream, byte[] value) throws IOException
+   {
+      for (int start = 0;  start < value.length;  start += HEX_CHUNK_SIZE)
+      {
+         int end = Math.min(start + HEX_CHUNK_SIZE, value.length);
+         int outIndex = 0;
+         for (int i = start;  i < end;  i++)
+         {
+            int v = value[i] & 0xFF;
+            _hexText[outIndex++] = (byte) HEX_DIGITS[v >>> 4];
+            _hexText[outIndex++] = (byte) HEX_DIGITS[v & 0x0F];
+         }
+         outputStream.write(_hexText, 0, outIndex);
+      }
+   }
+
+
+   // Parse a hex value from the output card data straight into bytes, for
+   // charsets that encode hex digits as ASCII.  The value ends where 
+   // parseString would end it.  Values that contain a release character or
+   // bytes outside ASCII are parsed as strings.
+   byte[] parseHex(ByteBuffer buffer, byte[] delimiter, int length, boolean fLastColumn)
+                          throws ExhaustedDataException, UnsupportedEncodingException
+   {
+      int currentPos = buffer.position();
+      int endPos;
+      if (delimiter == null)
+      {
+         // Hex digits take a byte each, so there must be a byte for each
+         // character.  Until the end of the output has arrived the value
+         // may go on past the data.
+         int remaining = buffer.remaining();
+         if (remaining < length || (remaining == length && !_fEndOfOutput))
+         {
+            throw new ExhaustedDataException(currentPos);
+         }
+         endPos = currentPos + length;
+      }
+      else
+      {
+         endPos = findDelimiter(buffer, delimiter);
+         if (endPos == -1)
+         {
+            if (!fLastColumn || !_fEndOfOutput)
+            {
+               throw new ExhaustedDataException(currentPos);
+            }
+            endPos = currentPos + buffer.remaining();
+         }
+         if (endPos == currentPos)
+         {
+            return null;
+         }
+      }
+
+      byte[] data = decodeHex(buffer.array(), currentPos, endPos - currentPos);
+      if (data == null)
+      {
+         return convertFromHex(parseString(buffer, delimiter, length, fLastColumn));
+      }
+      buffer.position(endPos);
+      return data;
+   }
+
+
+   // Converts ASCII hex digits to bytes.  Returns null if the text has an 
+   // odd length, a release character or a byte outside ASCII.
+   private byte[] decodeHex(byte[] text, int offset, int length)
+   {
+      if ((length & 1) != 0)
+      {
+         return null;
+      }
+
+      int release = (_releaseCharBytes == null) ? -1 : _releaseCharBytes[0];
+      byte[] data = new byte[length / 2];
+      for (int i = 0;  i < length;  i += 2)
+      {
+         byte high = text[offset+i];
+         byte low = text[offset+i+1];
+         if (high < 0 || low < 0 || high == release || low == release)
+         {
+            return null;
+         }
+         data[i/2] = (byte) ((HEX_VALUES[high] << 4) + HEX_VALUES[low]);
+      }
+      return data;
+   }
+
+
+   // Gets bytes from the ByteBuffer
+   private static byte[] getBytes(ByteBuffer buffer, int len) throws Exception
+   {
+      byte[] bytes = new byte[len];
+      for (int i = 0;  i < len;  i++)
+      {
+         bytes[i] = buffer.get();
+      }
+      return bytes;
+   }
+
+
+   // Skips a delimiter in the output card data.  At the end of the output a
+   // delimiter that is cut short is tolerated.
+   private static void skipDelimiter(ByteBuffer buffer, byte[] delimiter, boolean fEnd)
+   {
+      if (buffer.remaining() >= delimiter.length)
+      {
+         buffer.position(buffer.position()+delimiter.length);
+      }
+      else if (fEnd)
+      {
+         buffer.position(buffer.limit());
+      }
+      else
+      {
+         throw new BufferUnderflowException();
+      }
+   }
+
+
+   // Parse a string value from the output card data.
+   String parseString(ByteBuffer buffer, byte[] delimiter, int length, boolean fLastColumn) 
+                                throws ExhaustedDataException, UnsupportedEncodingException
+   {
+      String ret = null;
+
+      // If there is no delimiter, then use length to get fixed-width string
+      if (delimiter == null)
+      {
+         byte[] bytes = buffer.array();
+         int currentPos = buffer.position();
+
+         // Only decode as many bytes as the characters can take
+         boolean fSingleByte = _textEncoding.isSingleByte();
+         int maxBytesPerChar = fSingleByte ? 1 : MAX_BYTES_PER_CHAR;
+         int available = buffer.remaining();
+         if (length < Integer.MAX_VALUE / maxBytesPerChar)
+         {
+            available = Math.min(available, length * maxBytesPerChar);
+         }
+
+         ret = _textEncoding.decode(bytes, currentPos, available);
+
+         // Until the end of the output has arrived the last character decoded
+         // may be missing some of its bytes
+         if (ret.length() < length ||
+             (ret.length() == length && !_fEndOfOutput && available == buffer.remaining()))
+         {
+            throw new ExhaustedDataException(currentPos);
+         }
+         ret = ret.substring(0, length);
+
+         // Adjust the position of the ByteBuffer - see how many bytes were consumed by the string
+         int consumed = fSingleByte ? length : _textEncoding.getEncodedLength(ret);
+         buffer.position(currentPos+consumed);
+      }
+      else
+      {
+         int currentPos = buffer.position();
+         int delimPos = findDelimiter(buffer, delimiter);
+         if (delimPos == -1)
+         {
+            // If this is the last column of the row tolerate there not being a row
+            // delimiter, unless more output is to come.
+            if (!fLastColumn || !_fEndOfOutput)
+            {
+               throw new ExhaustedDataException(currentPos);
+            }
+            else
+            {
+               delimPos = currentPos + buffer.remaining();
+            }
+         }
+
+         int len = delimPos - currentPos;
+         int finalLen = len;
+         if (len > 0)
+         {
+            byte[] bytes = new byte[len];
+            for (int i = 0;  i < len;  i++)
+            {
+               bytes[i] = buffer.get();
+            }
+
+            // Scan the byte array and remove any release characters
+            if (_releaseCharBytes != null)
+            {
+               for (int i = 0;  i < len;  i++)
+               {
+                  if (bytes[i] == _releaseCharBytes[0])
+                  {
+                     // The first byte matches - check the rest
+                     boolean fFound = true;
+                     for (int j = 1;  j < _releaseCharBytes.length;  j++)
+                     {
+                        if (bytes[i+j] != _releaseCharBytes[j])
+                        {
+                           fFound = false;
+                           break;
+                        }
+                     }
+
+                     if (fFound)
+                     {
+                        // move up all the bytes
+                        finalLen -= _releaseCharBytes.length;
+                        for (int j = i;  j < finalLen;  j++)
+                        {
+                           bytes[j] = bytes[j+_releaseCharBytes.length];
+                        }
+                     }
+                  }
+               }
+            }
+
+            ret = _textEncoding.decode(bytes, 0, finalLen);
+         }
+      }
+
+      return ret;
+   }
+
+
+   // Find the specified delimiter in the data.
+   int findDelimiter(ByteBuffer buffer, byte[] delim)
+   {
+      int pos = -1;
+      boolean fFound = false;
+      int savedPosition = buffer.position();
+
+      // Carry on from where an earlier search of the value ran out of data.
+      // The delimiter may have started in its last bytes.
+      if (savedPosition == _scanStart)
+      {
+         buffer.position(Math.max(savedPosition, _scanEnd - (delim.length - 1)));
+      }
+
+      while (true)
+      {
+         try
+         {
+            byte x = buffer.get();
+            if (x == delim[0])
+            {
+               pos = buffer.position()-1;
+               fFound = true;
+
+               // First byte matched, compare the rest
+               for (int j = 1;  j < delim.length;  j++)
+               {
+                  if (buffer.get() != delim[j])
+                  {
+                     fFound = false;
+                     buffer.position(pos+1);
+                     break;
+                  }
+               }
+
+               if (fFound && _releaseCharBytes != null)
+               {
+                  // Check for release characters.  First make sure there are
+                  // enough potential chars before the delimiter to hold the 
+                  // release
+                  if ((pos - savedPosition) >= _releaseCharBytes.length)
+                  {
+                     buffer.position(pos - _releaseCharBytes.length);
+                     boolean fFoundRelease = true;
+                     for (int r = 0;  r < _releaseCharBytes.length;  r++)
+                     {
+                        if (buffer.get() != _releaseCharBytes[r])
+                        {
+                           fFoundRelease = false;
+                           break;
+                        }
+                     }
+
+                     if (fFoundRelease)
+                     {
+                        // We found a release, so we didn't really find the 
+                        // delimiter.
+                        fFound = false;
+                        buffer.position(pos+1);
+                     }
+                  }
+               }
+
+               if (fFound)
+               {
+                  // We're done - we found the delimiter.
+                  break;
+               }
+            }
+         }
+         catch (BufferUnderflowException e)
+         {
+            // Did not find the delimiter
+            fFound = false;
+            break;
+         }
+      }
+
+      buffer.position(savedPosition);
+
+      if (!fFound)
+      {
+         pos = -1;
+         _scanStart = savedPosition;
+         _scanEnd = buffer.limit();
+      }
+
+      return pos;
+   }
+
+
+   // Get bytes from the String value using the specified charset
+   byte[] getBytesFromString(String value) throws UnsupportedEncodingException
+   {
+      return (value == null) ? null : _textEncoding.encode(value);
+   }
+
+
+   // Release the syntax in a value for the input data.  Release characters,
+   // row terminators and column delimiters in the value are each preceded by 
+   // a release character.  Where they overlap, a release character is 
+   // released first, then a terminator, then a delimiter.  The value is 
+   // returned as it is if it contains no syntax.
+   String escapeSyntax(String source)
+   {
+      // If no release char is defined then do nothing
+      if (_releaseChar == null)
+      {
+         return source;
+      }
+
+      StringBuilder result = null;
+      int copied = 0;
+      int length = source.length();
+      int pos = 0;
+      while (pos < length)
+      {
+         String syntax = findSyntax(source, pos);
+         if (syntax == null)
+         {
+            pos++;
+            continue;
+         }
+
+         if (result == null)
+         {
+            result = new StringBuilder(length + 16);
+         }
+         result.append(source, copied, pos).append(_releaseChar).append(syntax);
+         pos += syntax.length();
+         copied = pos;
+      }
+
+      if (result == null)
+      {
+         return source;
+      }
+      return result.append(source, copied, length).toString();
+   }
+
+
+   // Gets the syntax that starts at a position of a value, if any
+   private String findSyntax(String value, int pos)
+   {
+      if (startsWith(value, pos, _releaseChar))
+      {
+         return _releaseChar;
+      }
+      if (startsWith(value, pos, _terminator))
+      {
+         return _terminator;
+      }
+      if (startsWith(value, pos, _delimiter))
+      {
+         return _delimiter;
+      }
+      return null;
+   }
+
+
+   private static boolean startsWith(String value, int pos, String syntax)
+   {
+      return syntax != null && syntax.length() > 0 && value.startsWith(syntax, pos);
+   }
+
+
+   // Writes the encoded bytes of a value to the input data with the syntax 
+   // released, as escapeSyntax() does.  The value is written as it is if it
+   // contains no syntax.  Only for charsets where syntax can be found in the
+   // encoded bytes.
+   void writeReleased(OutputStream outputStream, byte[] value) throws IOException
+   {
+      int copied = 0;
+      int pos = 0;
+      while (pos < value.length)
+      {
+         byte[] syntax = findSyntax(value, pos);
+         if (syntax == null)
+         {
+            pos++;
+            continue;
+         }
+
+         outputStream.write(value, copied, pos - copied);
+         outputStream.write(_releaseCharBytes, 0, _releaseCharBytes.length);
+         outputStream.write(syntax, 0, syntax.length);
+         pos += syntax.length;
+         copied = pos;
+      }
+      outputStream.write(value, copied, value.length - copied);
+   }
+
+
+   private byte[] findSyntax(byte[] value, int pos)
+   {
+      if (startsWith(value, pos, _releaseCharBytes))
+      {
+         return _releaseCharBytes;
+      }
+      if (startsWith(value, pos, _terminatorBytes))
+      {
+         return _terminatorBytes;
+      }
+      if (startsWith(value, pos, _delimiterBytes))
+      {
+         return _delimiterBytes;
+      }
+      return null;
+   }
+
+
+   private static boolean startsWith(byte[] value, int pos, byte[] syntax)
+   {
+      if (syntax == null || syntax.length == 0 || value[pos] != syntax[0] || 
+          pos + syntax.length > value.length)
+      {
+         return false;
+      }
+      for (int i = 1;  i < syntax.length;  i++)
+      {
+         if (value[pos+i] != syntax[i])
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+
+   // Gather the property values from the configuration
+   private void processProperties(Configuration config) throws Exception
+   {
+      // Get the stage properties
+      Properties properties = config.getUserProperties();
+      _mapFile = getProperty(properties, "MapFile", true);
+      _logDirectory = getProperty(properties, "LogDir", false);
+      _workDirectory = getProperty(properties, "WorkDir", false);
+      _spillThreshold = getPositiveIntegerProperty(properties, "SpillThreshold", DEFAULT_SPILL_THRESHOLD);
+
+      _resourceFile = getProperty(properties, "ResourceFile", false);
+      _failOnWarning = getBooleanProperty(properties, "FailOnWarning", false, false);
+      _fReuseMap = getBooleanProperty(properties, "ReuseMap", false, true);
+
+      String engine = getProperty(properties, "Engine", false);
+      _fStandInEngine = (engine != null && engine.equalsIgnoreCase("StandIn"));
+      if (engine != null && !_fStandInEngine && !engine.equalsIgnoreCase("WTX"))
+      {
+         throw new Exception("Property 'Engine' must have value 'WTX' or 'StandIn'");
+      }
+
+      _standInOutput = WTXStandInEngine.TRANSFORM_ECHO;
+      String standInOutput = getProperty(properties, "StandInOutput", false);
+      if (standInOutput != null)
+      {
+         if (standInOutput.equalsIgnoreCase("Upper"))
+         {
+            _standInOutput = WTXStandInEngine.TRANSFORM_UPPER;
+         }
+         else if (standInOutput.equalsIgnoreCase("Lower"))
+         {
+            _standInOutput = WTXStandInEngine.TRANSFORM_LOWER;
+         }
+         else if (!standInOutput.equalsIgnoreCase("Echo"))
+         {
+            throw new Exception("Property 'StandInOutput' must have value 'Echo', 'Upper' or 'Lower'");
+         }
+      }
+
+      Integer standInLatency = getIntegerProperty(properties, "StandInLatency", false);
+      _standInLatency = (standInLatency == null) ? 0 : standInLatency.intValue();
+      if (_standInLatency < 0)
+      {
+         throw new Exception("Property \"StandInLatency\" must not be negative");
+      }
+      _standInFailOn = getProperty(properties, "StandInFailOn", false);
+      _fDebug = getBooleanProperty(properties, "Debug", false, false);
+      _traceFile = getProperty(properties, "TraceFile", false);
+      _traceEvery = getPositiveIntegerProperty(properties, "TraceEvery", 1);
+      _tracePercent = getPositiveIntegerProperty(properties, "TracePercent", 0);
+      if (_tracePercent > 100)
+      {
+         throw new Exception("Property \"TracePercent\" must not be greater than 100");
+      }
+      _captureDirectory = getProperty(properties, "CaptureDir", false);
+      _captureEvery = getPositiveIntegerProperty(properties, "CaptureEvery", 1);
+      _captureKeep = getPositiveIntegerProperty(properties, "CaptureKeep", DEFAULT_CAPTURE_KEEP);
+      _captureMaxBytes = getPositiveIntegerProperty(properties, "CaptureMaxBytes", DEFAULT_CAPTURE_MAX_BYTES);
+      _fTimeRows = getBooleanProperty(properties, "TimeRows", false, false);
+
+      if (getProperty(properties, "MapTrace", false) != null)
+      {
+         _fMapTrace = getBooleanProperty(properties, "MapTrace", false, false);
+      }
+
+      if (getProperty(properties, "MapAudit", false) != null)
+      {
+         _fMapAudit = getBooleanProperty(properties, "MapAudit", false, false);
+      }
+
+      _runEach = RUN_EACH_WAVE;
+      String runEach = getProperty(properties, "RunEach", false);
+      if (runEach != null)
+      {
+         if (runEach.equalsIgnoreCase("Row"))
+         {
+            _runEach = RUN_EACH_ROW;
+            if (config.getInputLinks().size() > 1)
+            {
+               throw new Exception("RunEach cannot be set to 'Row' if there are multiple input links.");
+            }
+         }
+         else if (runEach.equalsIgnoreCase("Batch"))
+         {
+            _runEach = RUN_EACH_BATCH;
+            if (config.getInputLinks().size() > 1)
+            {
+               throw new Exception("RunEach cannot be set to 'Batch' if there are multiple input links.");
+            }
+         }
+         else if (!runEach.equalsIgnoreCase("Wave"))
+         {
+            throw new Exception("Property 'RunEach' must have value 'Row', 'Batch' or 'Wave'");
+         }
+      }
+
+      _batchRows = getPositiveIntegerProperty(properties, "BatchRows", DEFAULT_BATCH_ROWS);
+      _batchBytes = getPositiveIntegerProperty(properties, "BatchBytes", DEFAULT_BATCH_BYTES);
+      _workers = getPositiveIntegerProperty(properties, "Workers", 1);
+      _inputPageSize = getPositiveIntegerProperty(properties, "InputPageSize", 0);
+      _fPreserveOrder = getBooleanProperty(properties, "PreserveOrder", false, true);
+
+      // Process all the input links
+      for (int i = 0;  i < _inputLinkCount;  i++)
+      {
+         Link link = config.getInputLink(i);
+         properties = link.getUserProperties();
+
+         Integer cardNum = getIntegerProperty(properties, "Card", true);
+         WTXInputCard card = new WTXInputCard(i, cardNum);
+         _inputCard[i] = card;
+         setCardProperties(properties, card);
+      }
+
+      // Process all the output links
+      for (int i = 0;  i < _outputLinkCount;  i++)
+      {
+         Link link = config.getOutputLink(i);
+         properties = link.getUserProperties();
+
+         Integer cardNum = getIntegerProperty(properties, "Card", true);
+         WTXOutputCard card = new WTXOutputCard(i, cardNum);
+         _outputCard[i] = card;
+         setCardProperties(properties, card);
+      }
+   }
+
+
+   // Store the properties for the card
+   private void setCardProperties(Properties properties, WTXCard card) throws Exception
+   {
+      String val;
+      val = getProperty(properties, "Delimiter", false);
+      if (val != null)
+      {
+         val = substituteEscapes(val);
+         card.setDelimiter(val);
+      }
+
+      val = getProperty(properties, "Terminator", false);
+      if (val != null)
+      {
+         val = substituteEscapes(val);
+         card.setTerminator(val);
+      }
+
+      val = getProperty(properties, "ReleaseChar", false);
+      if (val != null)
+      {
+         val = substituteEscapes(val);
+         card.setReleaseChar(val);
+      }
+
+      val = getProperty(properties, "Location", false);
+      if (val != null)
+      {
+         // Ensure the location property is one of prefix, postfix or infix
+         int location = DELIM_LOCATION_INFIX;
+         if (val.equalsIgnoreCase("infix"))
+         {
+            location = DELIM_LOCATION_INFIX;
+         }
+         else if (val.equalsIgnoreCase("prefix"))
+         {
+            location = DELIM_LOCATION_PREFIX;
+         }
+         else if (val.equalsIgnoreCase("postfix"))
+         {
+            location = DELIM_LOCATION_POSTFIX;
+         }
+         else
+         {
+            throw new Exception("Property 'Location' must have value 'Infix', 'Prefix' or 'Postfix'.");
+         }
+         card.setDelimiterLocation(location);
+      }
+
+      card.setCharset(getProperty(properties, "Charset", false));
+      card.setUseStrings(getBooleanProperty(properties, "UseStrings", false, false));
+
+      // Get the Columns property
+      boolean transferAll = true;
+      String columns = properties.getProperty("Columns");
+      if (columns != null)
+      {
+         if (columns.equalsIgnoreCase("Selected"))
+         {
+            transferAll = false;
+         }
+         else if (!columns.equalsIgnoreCase("All"))
+         {
+            throw new Exception("Property 'Columns' must have value 'All' or 'Selected'.");
+         }
+      }
+      card.setTransferAll(transferAll);
+   }
+
+
+   // Replace special syntax characters with their character value
+   private String substituteEscapes(String escape)
+   {
+      String literal = escape;
+
+      // Special case for new line - get platform specific line separator
+      if (escape.equals("[NL]") || escape.equals("<NL>"))
+      {
+         literal = System.getProperty("line.separator");
+      }
+      else
+      {
+         // Convert the literals to the character equivalent
+         for (int i = 0;  i < _escapeLiterals.length;  i++)
+         {
+            if (_escapeLiterals[i][0].equals(escape))
+            {
+               literal = _escapeLiterals[i][1];
+               break;
+            }
+         }
+      }
+
+      return literal;
+   }
+
+
+   private String getProperty(Properties props, String propertyName, boolean fRequired) throws Exception
+   {
+      String value = props.getProperty(propertyName);
+      if (value != null)
+      {
+         value = value.trim();
+         if (value.length() == 0)
+         {
+            value = null;
+         }
+      }
+
+      if (value == null && fRequired)
+      {
+         throw new Exception ("Property \""+propertyName+"\" was not specified.");
+      }
+      return value;
+   }
+
+
+   private Integer getIntegerProperty(Properties props, String propertyName, boolean fRequired) throws Exception
+   {
+      Integer integerVal = null;
+      String val = getProperty(props, propertyName, fRequired);
+      if (val != null)
+      {
+         try
+         {
+            integerVal = new Integer(val);
+         }
+         catch (NumberFormatException nfe)
+         {
+            throw new Exception("Property \"" + propertyName + "\" must have an integral value");
+         }
+      }
+      return integerVal;
+   }
+
+
+   private int getPositiveIntegerProperty(Properties props, String propertyName, int defaultValue) throws Exception
+   {
+      Integer integerVal = getIntegerProperty(props, propertyName, false);
+      if (integerVal == null)
+      {
+         return defaultValue;
+      }
+      if (integerVal.intValue() <= 0)
+      {
+         throw new Exception("Property \"" + propertyName + "\" must be greater than zero");
+      }
+      return integerVal.intValue();
+   }
+
+
+   private boolean getBooleanProperty(Properties props, 
+             String propertyName,
+             boolean fRequired,
+             boolean fDefault) throws Exception
+   {
+      boolean boolVal;
+      String val = getProperty(props, propertyName, fRequired);
+      if (val == null)
+      {
+         boolVal = fDefault;
+      }
+      else
+      {
+         if (val.equalsIgnoreCase("true") || val.equalsIgnoreCase("on") || val.equals("1"))
+         {
+            boolVal = true;
+         }
+         else if (val.equalsIgnoreCase("false") || val.equalsIgnoreCase("off") || val.equals("0"))
+         {
+            boolVal = false;
+         }
+         else
+         {
+            throw new Exception("Property \"" + propertyName + "\" must have value \"true\" or \"false\"");
+         }
+      }
+      return boolVal;
+   }
+
+
+   // The debug messages are only built if debug logging is on.  Methods are
+   // named by a tag rather than found from the stack, which is slow.
+   private static void logMessage(String message)
+   {
+      if (Logger.isDebugEnabled())
+      {
+         Logger.debug("--- " + message);
+      }
+   }
+
+
+   private static void logEntry(String method)
+   {
+      if (Logger.isDebugEnabled())
+      {
+         Logger.debug("->> " + LOG_TAG + method);
+      }
+   }
+
+
+   private static void logExit(String method)
+   {
+      if (Logger.isDebugEnabled())
+      {
+         Logger.debug("<<- " + LOG_TAG + method);
+      }
+   }
+
+
+   private static void logException(Throwable t)
+   {
+      StringWriter sw = new StringWriter();
+      PrintWriter pw = new PrintWriter(sw, true);
+      t.printStackTrace(pw);
+      pw.flush();
+      sw.flush();
+      Logger.information("Exception occurred: " + sw.toString());
+   }
+
+
+   // Growable buffer that gives direct access to its array to avoid a copy.
+   // Unlike ByteArrayOutputStream it is not synchronized, as only the 
+   // processing thread writes to it.  Each input link keeps one for the life 
+   // of the stage.  A moving average of the data it held when it was reset 
+   // sizes the array that replaces one handed over by swap(), and its array 
+   // is cut back when it has grown well past the average.  Arrays handed
+   // over by swap() are given back with recycle() once the map has run, and
+   // are used again by later swaps.
+   public class DirectByteArrayOutputStream extends WTXCardWriter
+   {
+      private int    _averageCount = -1;
+      private LinkedList<byte[]> _free = new LinkedList<byte[]>();
+
+      private final static int INITIAL_SIZE = 1024;
+      private final static int TRIM_FACTOR = 4;
+
+      public DirectByteArrayOutputStream()
+      {
+         this(INITIAL_SIZE);
+      }
+      
+      public DirectByteArrayOutputStream(int size)
+      {
+         super(new byte[size]);
+      }
+
+      public void write(int b)
+      {
+         if (_bufferCount == _buffer.length)
+         {
+            grow(1);
+         }
+         _buffer[_bufferCount++] = (byte) b;
+      }
+
+      public void write(byte[] b, int off, int len)
+      {
+         if (_bufferCount + len > _buffer.length)
+         {
+            grow(len);
+         }
+         System.arraycopy(b, off, _buffer, _bufferCount, len);
+         _bufferCount += len;
+      }
+
+      public long size()
+      {
+         return _bufferCount;
+      }
+      
+      public byte[] getByteArray()
+      {
+         return _buffer;
+      }
+      
+      public int getCount()
+      {
+         return _bufferCount;
+      }
+
+      // Empties the buffer, keeping its array unless it is much larger than
+      // the data usually needs.  Resetting an empty buffer, such as one that
+      // has just been swapped, does not count towards the average.
+      public void reset()
+      {
+         if (_bufferCount == 0)
+         {
+            return;
+         }
+
+         // Weight the last count by an eighth
+         _averageCount = (_averageCount < 0) ? _bufferCount : _averageCount + (_bufferCount - _averageCount) / 8;
+         if (isOversized(_buffer))
+         {
+            setBuffer(new byte[getPresize()]);
+         }
+         _bufferCount = 0;
+      }
+      
+      // Hands over the array with the data and carries on with a recycled 
+      // one, or a new one if none is free
+      public byte[] swap()
+      {
+         byte[] oldBuf = _buffer;
+         reset();
+         if (_buffer == oldBuf)
+         {
+            byte[] buf = _free.isEmpty() ? null : _free.removeFirst();
+            if (buf == null || buf.length < getPresize())
+            {
+               buf = new byte[getPresize()];
+            }
+            setBuffer(buf);
+         }
+         return oldBuf;
+      }
+
+      // Takes back an array handed over by swap() whose data is no longer
+      // needed.  Arrays much larger than the data usually needs are dropped.
+      public void recycle(byte[] buf)
+      {
+         if (buf != _buffer && !isOversized(buf))
+         {
+            _free.addLast(buf);
+         }
+      }
+
+      private boolean isOversized(byte[] buf)
+      {
+         return buf.length > INITIAL_SIZE && buf.length / TRIM_FACTOR > _averageCount;
+      }
+
+      // Allow for the data being a little larger than usual
+      private int getPresize()
+      {
+         return Math.max(INITIAL_SIZE, _averageCount + _averageCount / 4);
+      }
+
+      // The array grows to hold any value
+      protected boolean makeRoom(int length)
+      {
+         grow(length);
+         return true;
+      }
+
+      private void grow(int needed)
+      {
+         long wanted = Math.max((long) _bufferCount + needed, _buffer.length * 2L);
+         setBuffer(Arrays.copyOf(_buffer, (int) Math.min(wanted, Integer.MAX_VALUE - 8)));
+      }
+   }
+
+   public class DirectByteArrayInputStream extends ByteArrayInputStream 
+   {
+
+       public DirectByteArrayInputStream(byte buf[])
+       {
+          super(buf);
+       }
+       
+       public DirectByteArrayInputStream(byte buf[], int offset, int length)
+       {
+          super(buf, offset, length);
+       }
+       
+       public synchronized void setByteArray(byte[] buf)
+       {
+           this.buf = buf;
+           this.pos = 0;
+           this.count = buf.length;
+           this.mark = 0;
+       }
+       
+       public synchronized void setByteArray(byte[] buf, int offset, int length)
+       {
+           this.buf = buf;
+           this.pos = offset;
+           this.count = Math.min( offset + length, buf.length );
+           this.mark = offset;
+       }
+   }
+
+   // Executes maps for the stage.  Each worker has its own map runner and card
+   // objects so workers can run maps at the same time.
+   private class MapWorker
+   {
+      private WTXMapEngine     _runner;
+      private WTXInputCard[]   _workerInputCards;
+      private WTXOutputCard[]  _workerOutputCards;
+      private WTXMapRunTimings _runTimings = new WTXMapRunTimings();
+
+      MapWorker(WTXMapEngine runner, WTXInputCard[] inputCards, WTXOutputCard[] outputCards)
+      {
+         _runner = runner;
+         _workerInputCards = inputCards;
+         _workerOutputCards = outputCards;
+      }
+
+      WTXMapEngine getRunner()
+      {
+         return _runner;
+      }
+
+      // The timings of the runs of this worker.  A worker runs on one thread
+      // at a time, so they are not synchronized.
+      WTXMapRunTimings getRunTimings()
+      {
+         return _runTimings;
+      }
+
+      void setInputData(int linkNum, byte[] data, int offset, int count)
+      {
+         _workerInputCards[linkNum].setInputData(data, offset, count);
+      }
+
+      // Run the map with the input already set on the input cards
+      WTXMapExecutionResults runMap(OutputStream[] outputs) throws Exception
+      {
+         for (int link = 0;  link < _workerOutputCards.length;  link++)
+         {
+            _workerOutputCards[link].setOutputStream(outputs[link]);
+         }
+         return _runner.executeMap();
+      }
+   }
+
+
+   // The rows of one map run in Row or Batch mode and the results of running
+   // them.  If the run fails and there is a reject link, the rows are split in
+   // half and each half is run again until the failing rows are isolated.  The
+   // results are kept as segments in input order so they can be written by the
+   // processing thread.
+   private class MapTask implements Callable<MapTask>
+   {
+      private int                  _linkNum;
+      private byte[]               _data;
+      private int                  _count;
+      private int[]                _rowOffsets;
+      private int                  _rowCount;
+      private List<InputRecord>    _records;
+      private List<MapTaskSegment> _segments = new ArrayList<MapTaskSegment>();
+      private int                  _splits = 0;
+
+      MapTask(int linkNum, byte[] data, int count, int[] rowOffsets, int rowCount, 
+              List<InputRecord> records)
+      {
+         _linkNum = linkNum;
+         _data = data;
+         _count = count;
+         _rowOffsets = rowOffsets;
+         _rowCount = rowCount;
+         _records = records;
+      }
+
+      // Runs on a worker thread
+      public MapTask call() throws Exception
+      {
+         MapWorker worker = _idleWorkers.take();
+         try
+         {
+            execute(worker);
+         }
+         finally
+         {
+            _idleWorkers.put(worker);
+         }
+         return this;
+      }
+
+      void execute(MapWorker worker) throws Exception
+      {
+         execute(worker, 0, _rowCount);
+      }
+
+      // Runs the map for rows first to last-1
+      private void execute(MapWorker worker, int first, int last) throws Exception
+      {
+         int start = _rowOffsets[first];
+         int end = (last < _rowCount) ? _rowOffsets[last] : _count;
+         worker.setInputData(_linkNum, _data, start, end - start);
+
+         WTXCardBuffer[] outputs = newOutputStreams();
+         long runStart = System.nanoTime();
+         WTXMapExecutionResults results = worker.runMap(outputs);
+         addMapRun(worker, results, System.nanoTime() - runStart);
+         if (_capture != null)
+         {
+            capture(start, end, outputs, results);
+         }
+
+         if (_records == null || !results.isError())
+         {
+            _segments.add(new MapTaskSegment(results, first, outputs));
+         }
+         else if (last - first == 1)
+         {
+            releaseOutputStreams(outputs);
+            _segments.add(new MapTaskSegment(results, first, null));
+         }
+         else
+         {
+            releaseOutputStreams(outputs);
+            _splits++;
+            int middle = first + (last - first) / 2;
+            execute(worker, first, middle);
+            execute(worker, middle, last);
+         }
+      }
+
+      // Copies the card data of the run if it is sampled
+      private void capture(int start, int end, WTXCardBuffer[] outputs, 
+                           WTXMapExecutionResults results) throws Exception
+      {
+         WTXCardCapture.Run run = _capture.sample();
+         if (run == null)
+         {
+            return;
+         }
+         run.addInput(_inputCard[_linkNum].getCardNumber(), _data, start, end - start);
+         for (int link = 0;  link < outputs.length;  link++)
+         {
+            run.addOutput(_outputCard[link].getCardNumber(), outputs[link]);
+         }
+         run.setResults(results);
+         _capture.submit(run);
+      }
+
+      int getLinkNum()
+      {
+         return _linkNum;
+      }
+
+      byte[] getData()
+      {
+         return _data;
+      }
+
+      int getRowCount()
+      {
+         return _rowCount;
+      }
+
+      int getSplitCount()
+      {
+         return _splits;
+      }
+
+      InputRecord getRecord(int row)
+      {
+         return _records.get(row);
+      }
+
+      List<MapTaskSegment> getSegments()
+      {
+         return _segments;
+      }
+   }
+
+
+   // The result of one map run within a task.  A segment without outputs holds
+   // a single rejected row.
+   private static class MapTaskSegment
+   {
+      private WTXMapExecutionResults        _results;
+      private int                           _row;
+      private WTXCardBuffer[] _outputs;
+
+      MapTaskSegment(WTXMapExecutionResults results, int row, WTXCardBuffer[] outputs)
+      {
+         _results = results;
+         _row = row;
+         _outputs = outputs;
+      }
+
+      WTXMapExecutionResults getResults()
+      {
+         return _results;
+      }
+
+      int getRow()
+      {
+         return _row;
+      }
+
+      WTXCardBuffer[] getOutputs()
+      {
+         return _outputs;
+      }
 
-            WTXMapExecutionResults results = runTheMap();
-            if (_rejectLink != null && 
-                (results.isError() || (results.isWarning() && _failOnWarning)))
-            {
-               // Reject the row
-               RejectRecord rejectRecord = _rejectLink.getRejectRecord(inputRecord);
-               rejectRecord.setErrorText(results.getResponseMessage());
-               rejectRecord.setErrorCode(results.getResultCode());
-               _rejectLink.writeRecord(rejectRecord);               
-            }
+      boolean isRejected()
+      {
+         return _outputs == null;
+      }
 
-            // Discard current content to start fresh next row
-            outputByteStream.reset();
-         }
+   }
 
-         row++;
 
-      } while (true);
+   // The values of an input row, kept so that the row can be rejected once
+   // the rows after it have been read.  The record returned by readRecord()
+   // may be the same object for every row, as it is in the benchmark harness,
+   // so it cannot be kept itself.  This assumes that getRejectRecord() reads
+   // the values of the record it is given through the InputRecord interface,
+   // and accepts a record that was not returned by readRecord().  Rows run
+   // one at a time on the processing thread are rejected with their own
+   // record instead.
+   private static class InputRowCopy implements InputRecord
+   {
+      private List<ColumnMetadata> _columns;
+      private Object[]             _values;
 
-      if (!_fRunEachRow)
+      InputRowCopy(InputLink link, InputRecord record)
       {
-         // Provide the data to the map
-         outputStream.flush();
-         WTXInputCard card = _inputCard[linkNum];
-         card.setInputData(outputByteStream.getByteArray(), outputByteStream.getCount());
-         if (_fDebug)
-         {
-            Logger.information("Input link "+linkNum+" (card "+card.getCardNumber()+") "+
-                                "produced "+outputByteStream.getCount()+" bytes.");
-         }
-         if (_traceWriter != null)
+         _columns = link.getColumnMetadata();
+         _values = new Object[_columns.size()];
+         for (int col = 0;  col < _values.length;  col++)
          {
-            _traceWriter.println("Input link "+linkNum+" (card "+card.getCardNumber()+") "+
-                                 "produced "+outputByteStream.getCount()+" bytes.");
+            // Binary values may be in an array that is used again as well
+            Object value = record.getValue(col);
+            _values[col] = (value instanceof byte[]) ? ((byte[]) value).clone() : value;
          }
       }
 
-      try
+      public Object getValue(int col)
       {
-         // 2nd parm is append flag.
-         FileOutputStream fs = new FileOutputStream("c:\\temp\\data.txt", true);
-         fs.write(outputByteStream.getByteArray(), 0, outputByteStream.getCount());
-         fs.close();        
+         return _values[col];
       }
-      catch (Exception e)
+
+      public Object getValue(String name)
       {
+         for (int col = 0;  col < _values.length;  col++)
+         {
+            if (_columns.get(col).getName().equals(name))
+            {
+               return _values[col];
+            }
+         }
+         return null;
       }
    }
 
 
-   // Parses the data produced from an output card of the map
-   private void processOutputLink(int linkNum) throws Exception
+   private static class MapWorkerThreadFactory implements ThreadFactory
    {
-      // Get the output stream for the output link
-      DirectByteArrayOutputStream outputStream = 
-                (DirectByteArrayOutputStream) _outputCard[linkNum].getOutputStream();
-
-      if (_fDebug)
-      {
-         Logger.information("Output link "+linkNum+" (card "+_outputCard[linkNum].getCardNumber()+") "+
-                            "contains "+outputStream.getCount()+" bytes.");
-      }
+      private int _threadCount = 0;
 
-      if (_traceWriter != null)
+      public synchronized Thread newThread(Runnable runnable)
       {
-         _traceWriter.println();
-         _traceWriter.println("Processing output link "+linkNum+" (card "+_outputCard[linkNum].getCardNumber()+")");
-         _traceWriter.println("Contains "+outputStream.getCount()+" bytes.");
+         Thread thread = new Thread(runnable, "WTXMapWorker-" + (++_threadCount));
+         thread.setDaemon(true);
+         return thread;
       }
+   }
 
-      // If the output card produced no bytes, then do no further processing
-      if (outputStream.getCount() == 0)
-      {
-         return;
-      }
 
-      // Create a ByteBuffer to parse the output data and set the byte order to native
-      ByteBuffer buffer = ByteBuffer.wrap(outputStream.getByteArray(), 0, outputStream.getCount());
-      buffer.order(ByteOrder.nativeOrder());
+   // Parses the data of an output card into records on the output link.  The
+   // data can be written in pieces, such as the pages read from the card stream.
+   // Each record is written as soon as all of its data has arrived; a row that
+   // is split between pieces is kept until the rest of it is written.  finish()
+   // parses what is left once all the data of the card has been written.
+   //
+   // The values of a split row that have been parsed are kept, and parsing 
+   // picks up at the value that ran out of data, carrying on any search for
+   // its delimiter from where it stopped.  So a row is only looked at once 
+   // however many pages it spans, although its data is kept until it is 
+   // complete.
+   //
+   // In Wave mode the pages are parsed as they are read from the map once its
+   // run has finished.  The output of a run that fails is never read, so no
+   // records of a failed run are written to the output link.
+   private class OutputCardParser extends OutputStream
+   {
+      private int           _linkNum;
+      private OutputLink    _link;
+      private ColumnCodec[] _codecs;
+      private Object[]      _values;
 
-      // Store the output stream object for use by parseString
-      _currentOutputStream = outputStream;
+      // The start of a row whose data has not all arrived
+      private byte[]     _pending = new byte[0];
+      private int        _pendingCount = 0;
 
-      // Get the charset for the card
-      _charset = _outputCard[linkNum].getCharset();
+      // Where parsing of the pending row stopped: the step that ran out of 
+      // data (0 for the prefix delimiter, then one for each column and one 
+      // for the terminator), its offset in the row and how far the search 
+      // for its delimiter got, or 0
+      private int        _resumeStep = 0;
+      private int        _resumeOffset = 0;
+      private int        _resumeScanEnd = 0;
 
-      // Get the delimiters and release characters for the card
-      setupSyntaxObjects(_outputCard[linkNum]);
+      private long       _byteCount = 0;
+      private long       _parsedCount = 0;
+      private long       _parseNanos = 0;
+      private int        _row = 0;
+      private boolean    _fFailed = false;
 
-      // Determine if values are transferred in binary form or string.
-      boolean fUseStrings = _outputCard[linkNum].useStrings();
+      OutputCardParser(int linkNum) throws Exception
+      {
+         _linkNum = linkNum;
+         _link = _outputLink[linkNum];
+         _codecs = getOutputPlan(linkNum);
+         _values = new Object[_link.getColumnMetadata().size()];
+      }
 
-      // Create an array that holds the column class for each column and the max length
-      OutputLink outputLink = _outputLink[linkNum];
-      int numColumns = outputLink.getColumnMetadata().size();
-      int[] sqlType = new int[numColumns];
-      int[] length = new int[numColumns];
-      Boolean[] stringPresentation = new Boolean[numColumns];
 
-      int c = 0;
-      for (ColumnMetadata column : outputLink.getColumnMetadata())
+      public void write(int b) throws IOException
       {
-         sqlType[c] = column.getSQLType();
+         write(new byte[] {(byte) b}, 0, 1);
+      }
+
 
-         // Set the field length.
-         if (sqlType[c] == ColumnMetadata.SQL_TYPE_DATE)
+      public void write(byte[] data, int offset, int count) throws IOException
+      {
+         _byteCount += count;
+         long start = System.nanoTime();
+         try
          {
-            length[c] = 10;
+            if (_pendingCount == 0)
+            {
+               // Parse straight from the data and keep only the incomplete row at the end
+               int parsed = parse(data, offset, count, false, false);
+               setPending(data, offset + parsed, count - parsed);
+            }
+            else
+            {
+               appendPending(data, offset, count);
+               int parsed = parse(_pending, 0, _pendingCount, false, true);
+               setPending(_pending, parsed, _pendingCount - parsed);
+            }
          }
-         else if (sqlType[c] == ColumnMetadata.SQL_TYPE_TIME)
+         catch (IOException e)
          {
-            // "HH:MM:SS" or "HH:MM:SS.FFFFFF"
-            length[c] = column.hasMicrosecondResolution() ? 15 : 8;
+            throw e;
          }
-         else if (sqlType[c] == ColumnMetadata.SQL_TYPE_TIMESTAMP)
+         catch (Exception e)
          {
-            // "YYYY-MM-DD HH:MM:SS" or "YYYY-MM-DD HH:MM:SS.FFFFFF"
-            length[c] = column.hasMicrosecondResolution() ? 26 : 19;
+            throw new IOException(e.getMessage(), e);
          }
-         else
+         finally
          {
-            length[c] = column.getPrecision();
+            addParseTime(System.nanoTime() - start);
          }
-
-         // Get a presentation attribute if specified in the description
-         stringPresentation[c] = isStringPresentation(column);
-         c++;
       }
 
-      // If columns are being transferred from the input link to the output mark them as skipped.
-      boolean[] skipColumn = new boolean[numColumns];
-      c = 0;
-      for (ColumnMetadata column : outputLink.getColumnMetadata())
+
+      // Parses the rest of the data once all of it has been written
+      void finish() throws Exception
       {
-         skipColumn[c] = (_skippedColumns != null && _skippedColumns.contains(column.getName()));
-         if (_fDebug && skipColumn[c])
+         if (_fDebug)
+         {
+            Logger.information("Output link "+_linkNum+" (card "+_outputCard[_linkNum].getCardNumber()+") "+
+                               "contains "+_byteCount+" bytes.");
+         }
+
+         long start = System.nanoTime();
+         try
+         {
+            parse(_pending, 0, _pendingCount, true, true);
+         }
+         finally
+         {
+            addParseTime(System.nanoTime() - start);
+         }
+         _pendingCount = 0;
+
+         if (_trace != null)
          {
-            Logger.information("Excluding column "+column.getName()+" on output link "+linkNum);
+            _trace.write("OUT_CARD\tlink="+_linkNum+"\tcard="+_outputCard[_linkNum].getCardNumber()+
+                         "\tbytes="+_byteCount);
          }
-         c++;
       }
 
-      // Loop around until we've parsed all the data
-      int row = 0;
-      do
+
+      // Parses the complete rows in the data and writes their records.  Unless
+      // fEnd is set the data may end part way through a row; that row is left
+      // unparsed.  If fResume is set the data starts with the pending row, 
+      // which is parsed from where it stopped.  Returns the number of bytes
+      // parsed.
+      private int parse(byte[] data, int offset, int count, boolean fEnd, boolean fResume) throws Exception
       {
-         int col = 0;
-         try
+         // If there is no data, or parsing has already failed, then do no further processing
+         if (count == 0 || _fFailed)
          {
-            if (_traceWriter != null)
-            {
-               _traceWriter.println();
-               _traceWriter.println("Processing row "+row+".");
-            }
+            return count;
+         }
 
-            OutputRecord outputRecord = outputLink.getOutputRecord();
+         // Create a ByteBuffer to parse the output data and set the byte order to native
+         ByteBuffer buffer = ByteBuffer.wrap(data, offset, count);
+         buffer.order(ByteOrder.nativeOrder());
 
-            // Consume a delimiter if location is prefix
-            if (_delimLocation == DELIM_LOCATION_PREFIX && _delimiterBytes != null)
-            {
-               buffer.position(buffer.position()+_delimiterBytes.length);
-            }
+         // Get the charset, delimiters and release characters for the card
+         selectCard(_outputCard[_linkNum]);
+         _fEndOfOutput = fEnd;
 
-            for (col = 0;  col < numColumns;  col++)
+         // Loop around until we've parsed all the data
+         _scanStart = -1;
+         while (buffer.hasRemaining())
+         {
+            int rowStart = buffer.position();
+            int step = 0;
+            int col = 0;
+            if (fResume)
             {
-               if (skipColumn[col])
+               // Pick up the pending row where it stopped
+               step = _resumeStep;
+               buffer.position(rowStart + _resumeOffset);
+               if (_resumeScanEnd > 0)
                {
-                  continue;
+                  _scanStart = rowStart + _resumeOffset;
+                  _scanEnd = rowStart + _resumeScanEnd;
                }
-
-               if (_traceWriter != null)
+               if (step > 1)
+               {
+                  col = _codecs[Math.min(step, _codecs.length) - 1].getColumn();
+               }
+               fResume = false;
+            }
+            int stepStart = buffer.position();
+            try
+            {
+               // Consume a delimiter if location is prefix
+               if (step == 0)
                {
-                  _traceWriter.println("Column "+col+" "+outputLink.getColumn(col).getName()+":");
+                  if (_delimLocation == DELIM_LOCATION_PREFIX && _delimiterBytes != null)
+                  {
+                     skipDelimiter(buffer, _delimiterBytes, fEnd);
+                  }
+                  step++;
                }
 
-               Object value = null;
+               for ( ;  step <= _codecs.length;  step++)
+               {
+                  ColumnCodec codec = _codecs[step - 1];
+                  col = codec.getColumn();
+                  stepStart = buffer.position();
 
+                  // Parse the value and skip the column delimiter
+                  _values[col] = codec.read(buffer);
+               }
 
-               // Determine presentation from global value and column overrides
-               boolean fInputAsString = fUseStrings;
-               if (stringPresentation[col] != null)
+               // Skip the row delimiter
+               stepStart = buffer.position();
+               if (_terminatorBytes != null)
+               {
+                  skipDelimiter(buffer, _terminatorBytes, fEnd);
+               }
+            }
+            catch (ExhaustedDataException edEx)
+            {
+               if (!fEnd)
+               {
+                  keepResumePoint(step, rowStart, stepStart);
+                  buffer.position(rowStart);
+                  break;
+               }
+               failRow(edEx, col, "Insufficient data at offset "+(_parsedCount+edEx.getPosition()-offset)+
+                                  " for column "+_link.getColumn(col).getName());
+               return count;
+            }
+            catch (BufferUnderflowException bufEx)
+            {
+               if (!fEnd)
                {
-                  fInputAsString = stringPresentation[col];
+                  keepResumePoint(step, rowStart, stepStart);
+                  buffer.position(rowStart);
+                  break;
                }
+               failRow(bufEx, col, "Insufficient data for column "+_link.getColumn(col).getName());
+               return count;
+            }
 
+            // Output the record
+            OutputRecord outputRecord = _link.getOutputRecord();
+            for (ColumnCodec codec : _codecs)
+            {
+               outputRecord.setValue(codec.getColumn(), _values[codec.getColumn()]);
+            }
+            _link.writeRecord(outputRecord);
+            _statistics.addOutputRow(_linkNum);
+            if (_trace != null)
+            {
+               // Rows are numbered through the wave, as a map run in Row or
+               // Batch mode only produces some of them
+               long traceRow = _tracedOutputRows[_linkNum]++;
+               if (_trace.isSampled(traceRow))
+               {
+                  traceRow(traceRow, _parsedCount + rowStart - offset);
+               }
+            }
+            _row++;
+         }
 
-               // Calculate the next delimiter
-               boolean fLastColumn = (col == numColumns - 1);
+         int parsed = buffer.position() - offset;
+         _parsedCount += parsed;
+         return parsed;
+      }
 
-               byte[] delimiter = (!fLastColumn || _delimLocation == DELIM_LOCATION_POSTFIX)
-                                  ? _delimiterBytes : _terminatorBytes;
 
-               switch(sqlType[col])
-               {
-               case ColumnMetadata.SQL_TYPE_CHAR:     // String
-               case ColumnMetadata.SQL_TYPE_LONGVARCHAR:
-               case ColumnMetadata.SQL_TYPE_VARCHAR:
-               case ColumnMetadata.SQL_TYPE_WCHAR:
-               case ColumnMetadata.SQL_TYPE_WLONGVARCHAR:
-               case ColumnMetadata.SQL_TYPE_WVARCHAR:
-               case ColumnMetadata.SQL_TYPE_UNKNOWN:
-                  value = parseString(buffer, delimiter, length[col], fLastColumn);
-                  break;
+      // Remembers where parsing of the row that ran out of data stopped.  
+      // Offsets are kept from the start of the row, as the row is moved to
+      // the start of the pending data.
+      private void keepResumePoint(int step, int rowStart, int stepStart)
+      {
+         _resumeStep = step;
+         _resumeOffset = stepStart - rowStart;
+         _resumeScanEnd = (_scanStart == stepStart) ? _scanEnd - rowStart : 0;
+      }
 
-               case ColumnMetadata.SQL_TYPE_INTEGER:  // Long
-                  if (fInputAsString)
-                  {
-                     value = Long.valueOf(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     value = Long.valueOf(buffer.getLong());
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_BIT:      // Integer
-               case ColumnMetadata.SQL_TYPE_SMALLINT: 
-                  if (fInputAsString)
-                  {
-                     value = Integer.valueOf(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     value = Integer.valueOf(buffer.getInt());
-                  }
-                  break;
+      // Traces the values of the row just parsed
+      private void traceRow(long row, long rowOffset)
+      {
+         StringBuilder line = _trace.newRow("OUT", _linkNum, row, rowOffset);
+         for (ColumnCodec codec : _codecs)
+         {
+            traceValue(line, _link.getColumn(codec.getColumn()).getName(), _values[codec.getColumn()]);
+         }
+         _trace.write(line);
+      }
 
-               case ColumnMetadata.SQL_TYPE_TINYINT:   // Short
-                  if (fInputAsString)
-                  {
-                     value = Short.valueOf(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     value = Short.valueOf(buffer.getShort());
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_DOUBLE:   // Double
-                  if (fInputAsString)
-                  {
-                     value = Double.valueOf(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     value = Double.valueOf(buffer.getDouble());
-                  }
-                  break;
+      // The time spent parsing the data written so far
+      long getParseNanos()
+      {
+         return _parseNanos;
+      }
 
-               case ColumnMetadata.SQL_TYPE_FLOAT:    // Float
-               case ColumnMetadata.SQL_TYPE_REAL:
-                  if (fInputAsString)
-                  {
-                     value = Float.valueOf(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     value = Float.valueOf(buffer.getFloat());
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_BINARY:   // byte[]
-                  if (fInputAsString)
-                  {
-                     value = convertFromHex(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     value = getBytes(buffer, length[col]);
-                  }
-                  break;
+      private void addParseTime(long nanos)
+      {
+         _parseNanos += nanos;
+         _statistics.addParseTime(nanos);
+      }
 
-               case ColumnMetadata.SQL_TYPE_VARBINARY:
-               case ColumnMetadata.SQL_TYPE_LONGVARBINARY:
-                  if (fInputAsString)
-                  {
-                     value = convertFromHex(parseString(buffer, delimiter, length[col], fLastColumn));
-                  }
-                  else
-                  {
-                     // Get the size and the column delimiter
-                     int len = buffer.getInt();
-                     buffer.position(buffer.position()+_delimiterBytes.length);
-                     value = getBytes(buffer, len);
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_BIGINT:   // java.math.BigInteger 
-                  value = parseString(buffer, delimiter, length[col], fLastColumn);
-                  if (value != null)
-                  {
-                     value = new BigInteger((String)value);
-                  }
-                  break;
+      private void failRow(Exception e, int col, String message)
+      {
+         if (_fDebug)
+         {
+            logException(e);
+         }
+         if (_trace != null)
+         {
+            StringBuilder line = new StringBuilder("ERROR\tlink="+_linkNum+"\trow="+_row);
+            WTXTraceWriter.addField(line, "message", message);
+            _trace.write(line);
+         }
+         _fFailed = true;
+         Logger.fatal(message);
+      }
 
-               case ColumnMetadata.SQL_TYPE_DECIMAL:  // java.math.BigDecimal
-               case ColumnMetadata.SQL_TYPE_NUMERIC:
-                  value = parseString(buffer, delimiter, length[col], fLastColumn);
-                  if (value != null)
-                  {
-                     value = new BigDecimal((String)value);
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_DATE:     // java.sql.Date
-                  value = parseString(buffer, delimiter, length[col], fLastColumn);
-                  if (value != null)
-                  {
-                     value = Date.valueOf((String)value);
-                  }
-                  break;
+      // Keep the unparsed end of the data until more data is written
+      private void setPending(byte[] data, int offset, int count)
+      {
+         if (count > _pending.length)
+         {
+            _pending = new byte[count];
+         }
+         System.arraycopy(data, offset, _pending, 0, count);
+         _pendingCount = count;
+      }
 
-               case ColumnMetadata.SQL_TYPE_TIME:     // java.sql.Time
-                  String timeStr = parseString(buffer, delimiter, length[col], fLastColumn);
-                  if (timeStr != null)
-                  {
-                     if (timeStr.length() == 8)          // "HH:MM:SS"
-                     {
-                        value = Time.valueOf(timeStr);
-                     }
-                     else
-                     {
-                        value = _timeWithMicroseconds.parse(timeStr);
-                     }
-                  }
-                  break;
 
-               case ColumnMetadata.SQL_TYPE_TIMESTAMP: // java.sql.Timestamp
-                  String timestampStr = parseString(buffer, delimiter, length[col], fLastColumn);
-                  if (timestampStr != null)
-                  {
-                     if (timestampStr.length() == 19)      // "YYYY-MM-DD HH:MM:SS"
-                     {
-                        value = Timestamp.valueOf(timestampStr);
-                     }
-                     else
-                     {
-                        value = new Timestamp(_timestampWithMicroseconds.parse(timestampStr).getTime());
-                     }
-                  }
-                  break;
+      private void appendPending(byte[] data, int offset, int count)
+      {
+         if (_pendingCount + count > _pending.length)
+         {
+            _pending = Arrays.copyOf(_pending, Math.max(_pendingCount + count, _pending.length * 2));
+         }
+         System.arraycopy(data, offset, _pending, _pendingCount, count);
+         _pendingCount += count;
+      }
+   }
 
-               default:
-                  throw new Exception("Unrecognized metadata type");
-               }
 
-               // Skip the column delimiter
-               if (_delimiterBytes != null && 
-                   (_delimLocation == DELIM_LOCATION_POSTFIX || col < numColumns-1))
-               {
-                  buffer.position(buffer.position()+_delimiterBytes.length);
-               }
+   // Converts the values of a column between DataStage and card data.  The
+   // codec is chosen once for the column from its type, its presentation and
+   // the syntax of the card, so converting a value decides nothing about how
+   // the column is laid out.  Text is converted with the charset of the card,
+   // which must be selected.
+   abstract class ColumnCodec
+   {
+      private int     _column;
+      private int     _length;
+      private boolean _fLastColumn;
 
-               if (_traceWriter != null)
-               {
-                  traceValue(value);
-               }
+      // The delimiter of the card, the delimiter that ends the text of the
+      // value, and the delimiter after the value.  Any of them can be null.
+      protected byte[] _cardDelimiter;
+      protected byte[] _end;
+      protected byte[] _separator;
 
-               // Set the column value
-               outputRecord.setValue(col, value);
-            }
+      void setLayout(int column, int length, boolean fLastColumn, 
+                     byte[] cardDelimiter, byte[] end, byte[] separator)
+      {
+         _column = column;
+         _length = length;
+         _fLastColumn = fLastColumn;
+         _cardDelimiter = cardDelimiter;
+         _end = end;
+         _separator = separator;
+      }
 
-            // Skip the row delimiter
-            if (_terminatorBytes != null && buffer.remaining() > 0)
-            {
-                  buffer.position(buffer.position()+_terminatorBytes.length);
-            }
+      // The position of the column on its link
+      int getColumn()
+      {
+         return _column;
+      }
 
-            // Output the record
-            outputLink.writeRecord(outputRecord);
-            if (buffer.remaining() == 0)
-            {
-               // All data has been read
-               break;
-            }
+      // Writes the value of the column and the delimiter after it
+      final void write(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         if (value != null)
+         {
+            encode(outputStream, value);
          }
-         catch (ExhaustedDataException edEx)
+         else
          {
-            if (_fDebug)
-            {
-               logException(edEx);
-            }
-            if (_traceWriter != null)
-            {
-               _traceWriter.println("Insufficient data at offset "+edEx.getPosition()+
-                                    " for column "+outputLink.getColumn(col).getName());
-            }
-            Logger.fatal("Insufficient data at offset "+edEx.getPosition()+
-                         " for column "+outputLink.getColumn(col).getName());
-            break;
+            encodeNull(outputStream);
          }
-         catch (BufferUnderflowException bufEx)
+         if (_separator != null)
          {
-            if (_fDebug)
-            {
-               logException(bufEx);
-            }
-            if (_traceWriter != null)
-            {
-               _traceWriter.println("Insufficient data for column "+outputLink.getColumn(col).getName());
-            }
-            Logger.fatal("Insufficient data for column "+outputLink.getColumn(col).getName());
-            break;
+            outputStream.write(_separator);
          }
+      }
 
-         row++;
-
-      } while (true);
-   }
-
-
-   // Looks for PRESENTATION(char) or PRESENTATION(binary) in the description.
-   // Returns null if neither is found.
-   private Boolean isStringPresentation(ColumnMetadata column) throws Exception
-   {
-      Boolean presentation = null;
-      String desc = column.getDescription();
-      int idx = desc.indexOf("PRESENTATION(");
-      if (idx != -1)
+      // Reads the value of the column and skips the delimiter after it
+      final Object read(ByteBuffer buffer) throws Exception
       {
-         // 13 is length of "PRESENTATION("
-         int idx2 = desc.indexOf(')', 13);
-         if (idx2 != -1)
+         Object value = decode(buffer);
+         if (_separator != null)
          {
-            String pres = desc.substring(idx+13, idx2);
-            if (pres.equalsIgnoreCase("CHAR"))
-            {
-               presentation = new Boolean(true);
-            }
-            else if (pres.equalsIgnoreCase("BINARY"))
-            {
-               presentation = new Boolean(false);
-            }
-            else
-            {
-               throw new Exception("Presentation specifier '" + pres + "' for column "+
-                                   column.getName()+" is invalid.  It must be 'char' or 'binary'");
-            }
+            skipDelimiter(buffer, _separator, _fEndOfOutput);
          }
-         else
+         return value;
+      }
+
+      abstract void encode(WTXCardWriter outputStream, Object value) throws Exception;
+
+      // For nulls nothing is written, except for varbinary items
+      void encodeNull(WTXCardWriter outputStream) throws Exception
+      {
+      }
+
+      // Writes the size of a varbinary item as a 4 byte integer and a column 
+      // delimiter
+      protected void writeSize(WTXCardWriter outputStream, int size) throws Exception
+      {
+         outputStream.writeInt(size);
+         if (_cardDelimiter != null)
          {
-            throw new Exception("Presentation specifier for column "+column.getName()+" is malformed");
+            outputStream.write(_cardDelimiter, 0, _cardDelimiter.length);
          }
       }
-      return presentation;
-   }
 
+      abstract Object decode(ByteBuffer buffer) throws Exception;
 
-   private void traceValue(Object value)
-   {
-      String debugValue;
-      if (value == null)
+      protected void writeText(WTXCardWriter outputStream, String text) throws Exception
       {
-         debugValue = "NULL";
+         byte[] bytes = getBytesFromString(text);
+         outputStream.write(bytes, 0, bytes.length);
       }
-      else if (value instanceof byte[])
+
+      protected String readText(ByteBuffer buffer) throws Exception
       {
-         debugValue = "{"+convertToHex((byte[])value)+"}";
+         return parseString(buffer, _end, _length, _fLastColumn);
       }
-      else
+
+      protected byte[] readHex(ByteBuffer buffer) throws Exception
+      {
+         return parseHex(buffer, _end, _length, _fLastColumn);
+      }
+
+      protected byte[] readBytes(ByteBuffer buffer) throws Exception
       {
-         debugValue = value.toString();
+         return getBytes(buffer, _length);
       }
-      _traceWriter.println("   Value="+debugValue);
    }
 
 
-   // Sets the member variables that hold the syntax objects used to process the cards
-   private void setupSyntaxObjects(WTXCard card) throws Exception
+   // Strings on a card without a release character
+   private class StringCodec extends ColumnCodec
    {
-      String delimiter = card.getDelimiter();
-      String terminator = card.getTerminator();
-      String releaseChar = card.getReleaseChar();
-
-      // Get the bytes to write out
-      _delimiterBytes = getBytesFromString(delimiter);
-      _terminatorBytes = getBytesFromString(terminator);
-      _releaseCharBytes = getBytesFromString(releaseChar);
-
-      // Get the search patterns
-      _delimiterSearchPattern = getSearchPattern(delimiter);
-      _terminatorSearchPattern = getSearchPattern(terminator);
-      _releaseCharSearchPattern = getSearchPattern(releaseChar);
-
-      // Get the replacement strings
-      _delimiterReplacement = getReplacementString(releaseChar+delimiter);
-      _terminatorReplacement = getReplacementString(releaseChar+terminator);
-      _releaseCharReplacement = getReplacementString(releaseChar+releaseChar);
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         writeText(outputStream, (String) value);
+      }
 
-      // Get other attributes about delimiters
-      _delimLocation = card.getDelimiterLocation();
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return readText(buffer);
+      }
    }
 
 
-   private String getSearchPattern(String literal)
+   // Strings with the syntax of the card released
+   private class ReleasedStringCodec extends StringCodec
    {
-      if (literal == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         return null;
+         writeText(outputStream, escapeSyntax((String) value));
       }
-
-      return Pattern.quote(literal);
    }
 
 
-   private String getReplacementString(String literal)
+   // Strings with the syntax of the card released in their encoded bytes
+   private class ReleasedBytesStringCodec extends StringCodec
    {
-      if (literal == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         return null;
+         writeReleased(outputStream, getBytesFromString((String) value));
       }
-
-      return Matcher.quoteReplacement(literal);
    }
 
 
-   // Converts hex string to bytes
-   public static byte[] convertFromHex(String value)
+   // Numbers in binary are in the native byte order
+   private class LongCodec extends ColumnCodec
    {
-      if (value == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         return null;
+         outputStream.writeLong(((Long) value).longValue());
       }
 
-      int len = value.length();
-      byte[] data = new byte[len / 2];
-      
-      for (int i = 0;  i < len;  i += 2) 
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         data[i/2] = (byte) ((Character.digit(value.charAt(i), 16) << 4) +
-                              Character.digit(value.charAt(i+1), 16));
+         return Long.valueOf(buffer.getLong());
       }
-      return data;
    }
 
 
-   // Coverts bytes to hex string
-   public static String convertToHex(byte[] value) 
+   // Numbers in string presentation.  The ASCII codecs write the text of 
+   // numbers without creating strings, where the charset allows.
+   private class LongTextCodec extends ColumnCodec
    {
-      if (value == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         return null;
+         writeText(outputStream, ((Long) value).toString());
       }
 
-      final char[] hexCode = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
-      char[] hexChars = new char[value.length * 2];
-      
-      int outIndex = 0;
-      for (int i = 0;  i < value.length;  i++) 
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         int v = value[i] & 0xFF;
-         hexChars[outIndex++] = hexCode[v >>> 4];
-         hexChars[outIndex++] = hexCode[v & 0x0F];
+         return Long.valueOf(readText(buffer));
       }
-      return new String(hexChars);
    }
 
 
-   // Gets bytes from the ByteBuffer
-   private static byte[] getBytes(ByteBuffer buffer, int len) throws Exception
+   private class LongAsciiCodec extends LongTextCodec
    {
-      byte[] bytes = new byte[len];
-      for (int i = 0;  i < len;  i++)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         bytes[i] = buffer.get();
+         _numberText.writeLong(outputStream, ((Long) value).longValue());
       }
-      return bytes;
    }
 
 
-   // Parse a string value from the output card data.
-   private String parseString(ByteBuffer buffer, byte[] delimiter, int length, boolean fLastColumn) 
-                                throws ExhaustedDataException, UnsupportedEncodingException
+   private class IntegerCodec extends ColumnCodec
    {
-      String ret = null;
-
-      // If there is no delimiter, then use length to get fixed-width string
-      if (delimiter == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         byte[] bytes = _currentOutputStream.getByteArray();
-         int currentPos = buffer.position();
+         outputStream.writeInt(((Integer) value).intValue());
+      }
 
-         if (_traceWriter != null)
-         {
-            _traceWriter.println("   Offset "+currentPos+": Reading "+length+" characters.");
-         }
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Integer.valueOf(buffer.getInt());
+      }
+   }
 
-         if (_charset == null)
-         {
-            ret = new String(bytes, buffer.position(), buffer.remaining());
-         }
-         else
-         {
-            ret = new String(bytes, buffer.position(), buffer.remaining(), _charset);
-         }
-         ret = ret.substring(0, length);
 
-         // Adjust the position of the ByteBuffer - see how many bytes were consumed by the string
-         int consumed;
-         if (_charset == null)
-         {
-            consumed = ret.getBytes().length;
-         }
-         else
-         {
-            consumed = ret.getBytes(_charset).length;
-         }
-         buffer.position(currentPos+consumed);
-      }
-      else
+   private class IntegerTextCodec extends ColumnCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         int currentPos = buffer.position();
-         if (_traceWriter != null)
-         {
-            String delimString = (_charset == null) ? new String(delimiter) : new String(delimiter, _charset);
-            _traceWriter.println("   Offset "+currentPos+": Looking for delimiter '"+delimString+"'.");
-         }
-
-         int delimPos = findDelimiter(buffer, delimiter);
-         if (delimPos == -1)
-         {
-            if (_traceWriter != null)
-            {
-               _traceWriter.println("   Delimiter not found.");
-            }
+         writeText(outputStream, ((Integer) value).toString());
+      }
 
-            // If this is the last column of the row tolerate there not being a row delimiter.
-            if (!fLastColumn)
-            {
-               throw new ExhaustedDataException(currentPos);
-            }
-            else
-            {
-               delimPos = currentPos + buffer.remaining();
-            }
-         }
-         else if (_traceWriter != null)
-         {
-            _traceWriter.println("   Offset "+delimPos+": Delimiter found.");
-         }
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Integer.valueOf(readText(buffer));
+      }
+   }
 
-         int len = delimPos - currentPos;
-         int finalLen = len;
-         if (len > 0)
-         {
-            byte[] bytes = new byte[len];
-            for (int i = 0;  i < len;  i++)
-            {
-               bytes[i] = buffer.get();
-            }
 
-            // Scan the byte array and remove any release characters
-            if (_releaseCharBytes != null)
-            {
-               for (int i = 0;  i < len;  i++)
-               {
-                  if (bytes[i] == _releaseCharBytes[0])
-                  {
-                     // The first byte matches - check the rest
-                     boolean fFound = true;
-                     for (int j = 1;  j < _releaseCharBytes.length;  j++)
-                     {
-                        if (bytes[i+j] != _releaseCharBytes[j])
-                        {
-                           fFound = false;
-                           break;
-                        }
-                     }
+   private class IntegerAsciiCodec extends IntegerTextCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         _numberText.writeLong(outputStream, ((Integer) value).intValue());
+      }
+   }
 
-                     if (fFound)
-                     {
-                        // move up all the bytes
-                        finalLen -= _releaseCharBytes.length;
-                        for (int j = i;  j < finalLen;  j++)
-                        {
-                           bytes[j] = bytes[j+_releaseCharBytes.length];
-                        }
-                     }
-                  }
-               }
-            }
 
-            if (_charset != null)
-            {
-               ret = new String(bytes, 0, finalLen, _charset);
-            }
-            else
-            {
-               ret = new String(bytes, 0, finalLen);
-            }
-         }
+   private class ShortCodec extends ColumnCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         outputStream.writeShort(((Short) value).shortValue());
       }
 
-      return ret;
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Short.valueOf(buffer.getShort());
+      }
    }
 
 
-   // Find the specified delimiter in the data.
-   private int findDelimiter(ByteBuffer buffer, byte[] delim)
+   private class ShortTextCodec extends ColumnCodec
    {
-      int pos = -1;
-      boolean fFound = false;
-      int savedPosition = buffer.position();
-
-      while (true)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         try
-         {
-            byte x = buffer.get();
-            if (x == delim[0])
-            {
-               pos = buffer.position()-1;
-               fFound = true;
-
-               // First byte matched, compare the rest
-               for (int j = 1;  j < delim.length;  j++)
-               {
-                  if (buffer.get() != delim[j])
-                  {
-                     fFound = false;
-                     buffer.position(pos+1);
-                     break;
-                  }
-               }
+         writeText(outputStream, ((Short) value).toString());
+      }
 
-               if (fFound && _releaseCharBytes != null)
-               {
-                  // Check for release characters.  First make sure there are
-                  // enough potential chars before the delimiter to hold the 
-                  // release
-                  if ((pos - savedPosition) >= _releaseCharBytes.length)
-                  {
-                     buffer.position(pos - _releaseCharBytes.length);
-                     boolean fFoundRelease = true;
-                     for (int r = 0;  r < _releaseCharBytes.length;  r++)
-                     {
-                        if (buffer.get() != _releaseCharBytes[r])
-                        {
-                           fFoundRelease = false;
-                           break;
-                        }
-                     }
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Short.valueOf(readText(buffer));
+      }
+   }
 
-                     if (fFoundRelease)
-                     {
-                        // We found a release, so we didn't really find the 
-                        // delimiter.
-                        fFound = false;
-                        buffer.position(pos+1);
-                     }
-                  }
-               }
 
-               if (fFound)
-               {
-                  // We're done - we found the delimiter.
-                  break;
-               }
-            }
-         }
-         catch (BufferUnderflowException e)
-         {
-            // Did not find the delimiter
-            fFound = false;
-            break;
-         }
+   private class ShortAsciiCodec extends ShortTextCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         _numberText.writeLong(outputStream, ((Short) value).shortValue());
       }
+   }
 
-      buffer.position(savedPosition);
 
-      if (!fFound)
+   private class DoubleCodec extends ColumnCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         pos = -1;
+         outputStream.writeDouble(((Double) value).doubleValue());
       }
 
-      return pos;
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Double.valueOf(buffer.getDouble());
+      }
    }
 
 
-   // Get bytes from the String value using the specified charset
-   private byte[] getBytesFromString(String value) throws UnsupportedEncodingException
+   private class DoubleTextCodec extends ColumnCodec
    {
-      byte[] bytesValue = null;
-      if (value != null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         if (_charset == null)
-         {
-            bytesValue = value.getBytes();
-         }
-         else
-         {
-            bytesValue = value.getBytes(_charset);
-         }
+         writeText(outputStream, ((Double) value).toString());
+      }
+
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Double.valueOf(readText(buffer));
+      }
+   }
+
+
+   private class DoubleAsciiCodec extends DoubleTextCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         _numberText.writeDouble(outputStream, ((Double) value).doubleValue());
       }
-      return bytesValue;
    }
 
 
-   // Replace escaped syntax in the output data
-   private String escapeSyntax(String source)
+   private class FloatCodec extends ColumnCodec
    {
-      // If no release char is defined then do nothing
-      if (_releaseCharBytes == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         return source;
+         outputStream.writeFloat(((Float) value).floatValue());
       }
 
-      // Substitute the release char itself
-      String result = source.replaceAll(_releaseCharSearchPattern, _releaseCharReplacement);
-
-      // Substitute the row delimiter
-      if (_terminatorBytes != null)
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         result = result.replaceAll(_terminatorSearchPattern, _terminatorReplacement);
+         return Float.valueOf(buffer.getFloat());
       }
+   }
+
 
-      // Substitute the column delimiter
-      if (_delimiterBytes != null)
+   private class FloatTextCodec extends ColumnCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         result = result.replaceAll(_delimiterSearchPattern, _delimiterReplacement);
+         writeText(outputStream, ((Float) value).toString());
       }
 
-      return result;
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return Float.valueOf(readText(buffer));
+      }
    }
 
 
-   // Gather the property values from the configuration
-   private void processProperties(Configuration config) throws Exception
+   private class FloatAsciiCodec extends FloatTextCodec
    {
-      // Get the stage properties
-      Properties properties = config.getUserProperties();
-      _mapFile = getProperty(properties, "MapFile", true);
-      _logDirectory = getProperty(properties, "LogDir", false);
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         _numberText.writeFloat(outputStream, ((Float) value).floatValue());
+      }
+   }
 
-      _resourceFile = getProperty(properties, "ResourceFile", false);
-      _failOnWarning = getBooleanProperty(properties, "FailOnWarning", false, false);
-      _fDebug = getBooleanProperty(properties, "Debug", false, false);
-      _traceFile = getProperty(properties, "TraceFile", false);
 
-      if (getProperty(properties, "MapTrace", false) != null)
+   // Fixed length binary
+   private class BinaryCodec extends ColumnCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         _fMapTrace = getBooleanProperty(properties, "MapTrace", false, false);
+         outputStream.write((byte[]) value, 0, ((byte[]) value).length);
       }
 
-      if (getProperty(properties, "MapAudit", false) != null)
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         _fMapAudit = getBooleanProperty(properties, "MapAudit", false, false);
+         return readBytes(buffer);
       }
+   }
 
-      _fRunEachRow = false;
-      String runEach = getProperty(properties, "RunEach", false);
-      if (runEach != null)
+
+   // Variable length binary is preceded by its size as a 4 byte integer and a
+   // column delimiter
+   private class VarBinaryCodec extends ColumnCodec
+   {
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         if (runEach.equalsIgnoreCase("Row"))
-         {
-            _fRunEachRow = true;
-            if (config.getInputLinks().size() > 1)
-            {
-               throw new Exception("RunEach cannot be set to 'Row' if there are multiple input links.");
-            }
-         }
-         else if (!runEach.equalsIgnoreCase("Wave"))
-         {
-            throw new Exception("Property 'RunEach' must have value 'Row' or 'Wave'");
-         }
+         byte[] bytes = (byte[]) value;
+         writeSize(outputStream, bytes.length);
+         outputStream.write(bytes, 0, bytes.length);
       }
 
-      // Process all the input links
-      for (int i = 0;  i < _inputLinkCount;  i++)
+      void encodeNull(WTXCardWriter outputStream) throws Exception
       {
-         Link link = config.getInputLink(i);
-         properties = link.getUserProperties();
-
-         Integer cardNum = getIntegerProperty(properties, "Card", true);
-         WTXInputCard card = new WTXInputCard(i, cardNum);
-         _inputCard[i] = card;
-         setCardProperties(properties, card);
+         writeSize(outputStream, 0);
       }
 
-      // Process all the output links
-      for (int i = 0;  i < _outputLinkCount;  i++)
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         Link link = config.getOutputLink(i);
-         properties = link.getUserProperties();
-
-         Integer cardNum = getIntegerProperty(properties, "Card", true);
-         WTXOutputCard card = new WTXOutputCard(i, cardNum);
-         _outputCard[i] = card;
-         setCardProperties(properties, card);
+         // Get the size and the column delimiter
+         int len = buffer.getInt();
+         skipDelimiter(buffer, _cardDelimiter, _fEndOfOutput);
+         return getBytes(buffer, len);
       }
    }
 
 
-   // Store the properties for the card
-   private void setCardProperties(Properties properties, WTXCard card) throws Exception
+   // Binary in string presentation is in hex.  A null varbinary item is still
+   // written as a zero size and a delimiter, as in binary presentation, since
+   // that is what maps built for the stage have always been given.
+   private class HexCodec extends ColumnCodec
    {
-      String val;
-      val = getProperty(properties, "Delimiter", false);
-      if (val != null)
-      {
-         val = substituteEscapes(val);
-         card.setDelimiter(val);
-      }
+      private boolean _fVarying;
 
-      val = getProperty(properties, "Terminator", false);
-      if (val != null)
+      HexCodec(boolean fVarying)
       {
-         val = substituteEscapes(val);
-         card.setTerminator(val);
+         _fVarying = fVarying;
       }
 
-      val = getProperty(properties, "ReleaseChar", false);
-      if (val != null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         val = substituteEscapes(val);
-         card.setReleaseChar(val);
+         writeText(outputStream, convertToHex((byte[]) value));
       }
 
-      val = getProperty(properties, "Location", false);
-      if (val != null)
+      void encodeNull(WTXCardWriter outputStream) throws Exception
       {
-         // Ensure the location property is one of prefix, postfix or infix
-         int location = DELIM_LOCATION_INFIX;
-         if (val.equalsIgnoreCase("infix"))
-         {
-            location = DELIM_LOCATION_INFIX;
-         }
-         else if (val.equalsIgnoreCase("prefix"))
-         {
-            location = DELIM_LOCATION_PREFIX;
-         }
-         else if (val.equalsIgnoreCase("postfix"))
-         {
-            location = DELIM_LOCATION_POSTFIX;
-         }
-         else
+         if (_fVarying)
          {
-            throw new Exception("Property 'Location' must have value 'Infix', 'Prefix' or 'Postfix'.");
+            writeSize(outputStream, 0);
          }
-         card.setDelimiterLocation(location);
       }
 
-      card.setCharset(getProperty(properties, "Charset", false));
-      card.setUseStrings(getBooleanProperty(properties, "UseStrings", false, false));
-
-      // Get the Columns property
-      boolean transferAll = true;
-      String columns = properties.getProperty("Columns");
-      if (columns != null)
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         if (columns.equalsIgnoreCase("Selected"))
-         {
-            transferAll = false;
-         }
-         else if (!columns.equalsIgnoreCase("All"))
-         {
-            throw new Exception("Property 'Columns' must have value 'All' or 'Selected'.");
-         }
+         return convertFromHex(readText(buffer));
       }
-      card.setTransferAll(transferAll);
    }
 
 
-   // Replace special syntax characters with their character value
-   private String substituteEscapes(String escape)
+   // Hex that is converted straight between bytes and the card data
+   private class HexAsciiCodec extends HexCodec
    {
-      String literal = escape;
-
-      // Special case for new line - get platform specific line separator
-      if (escape.equals("[NL]") || escape.equals("<NL>"))
+      HexAsciiCodec(boolean fVarying)
       {
-         literal = System.getProperty("line.separator");
+         super(fVarying);
       }
-      else
+
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         // Convert the literals to the character equivalent
-         for (int i = 0;  i < _escapeLiterals.length;  i++)
-         {
-            if (_escapeLiterals[i][0].equals(escape))
-            {
-               literal = _escapeLiterals[i][1];
-               break;
-            }
-         }
+         writeHex(outputStream, (byte[]) value);
       }
 
-      return literal;
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         return readHex(buffer);
+      }
    }
 
 
-   private String getProperty(Properties props, String propertyName, boolean fRequired) throws Exception
+   private class BigIntegerCodec extends ColumnCodec
    {
-      String value = props.getProperty(propertyName);
-      if (value != null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         value = value.trim();
-         if (value.length() == 0)
-         {
-            value = null;
-         }
+         writeText(outputStream, ((BigInteger) value).toString());
       }
 
-      if (value == null && fRequired)
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         throw new Exception ("Property \""+propertyName+"\" was not specified.");
+         String text = readText(buffer);
+         return (text == null) ? null : new BigInteger(text);
       }
-      return value;
    }
 
 
-   private Integer getIntegerProperty(Properties props, String propertyName, boolean fRequired) throws Exception
+   private class BigIntegerAsciiCodec extends BigIntegerCodec
    {
-      Integer integerVal = null;
-      String val = getProperty(props, propertyName, fRequired);
-      if (val != null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         try
-         {
-            integerVal = new Integer(val);
-         }
-         catch (NumberFormatException nfe)
-         {
-            throw new Exception("Property \"" + propertyName + "\" must have an integral value");
-         }
+         _numberText.writeBigInteger(outputStream, (BigInteger) value);
       }
-      return integerVal;
    }
 
 
-   private boolean getBooleanProperty(Properties props, 
-             String propertyName,
-             boolean fRequired,
-             boolean fDefault) throws Exception
+   private class BigDecimalCodec extends ColumnCodec
    {
-      boolean boolVal;
-      String val = getProperty(props, propertyName, fRequired);
-      if (val == null)
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         boolVal = fDefault;
+         writeText(outputStream, ((BigDecimal) value).toString());
       }
-      else
+
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         if (val.equalsIgnoreCase("true") || val.equalsIgnoreCase("on") || val.equals("1"))
-         {
-            boolVal = true;
-         }
-         else if (val.equalsIgnoreCase("false") || val.equalsIgnoreCase("off") || val.equals("0"))
+         String text = readText(buffer);
+         return (text == null) ? null : new BigDecimal(text);
+      }
+   }
+
+
+   // Dates, times and timestamps are written straight to the card data when
+   // its charset encodes them as ASCII
+   private abstract class TemporalCodec extends ColumnCodec
+   {
+      private boolean _fAscii;
+      protected byte[] _text = new byte[WTXTemporalText.MAX_LENGTH];
+
+      TemporalCodec(boolean fAscii)
+      {
+         _fAscii = fAscii;
+      }
+
+      protected void writeTemporal(WTXCardWriter outputStream, int length) throws Exception
+      {
+         if (_fAscii)
          {
-            boolVal = false;
+            outputStream.write(_text, 0, length);
          }
          else
          {
-            throw new Exception("Property \"" + propertyName + "\" must have value \"true\" or \"false\"");
+            writeText(outputStream, WTXTemporalText.toString(_text, length));
          }
       }
-      return boolVal;
-   }
-
-
-   private static void logMessage(String message)
-   {
-      Logger.debug("--- " + message);
    }
 
 
-   private static void logEntry()
+   private class DateCodec extends TemporalCodec
    {
-      Logger.debug("->> " + Thread.currentThread().getStackTrace()[3].toString());
-   }
+      DateCodec(boolean fAscii)
+      {
+         super(fAscii);
+      }
 
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
+      {
+         writeTemporal(outputStream, _temporalText.formatDate((Date) value, _text));
+      }
 
-   private static void logExit()
-   {
-      Logger.debug("<<- " + Thread.currentThread().getStackTrace()[3].toString());
+      Object decode(ByteBuffer buffer) throws Exception
+      {
+         String text = readText(buffer);
+         return (text == null) ? null : _temporalText.parseDate(text);
+      }
    }
 
 
-   private static void logException(Throwable t)
+   private class TimeCodec extends TemporalCodec
    {
-      StringWriter sw = new StringWriter();
-      PrintWriter pw = new PrintWriter(sw, true);
-      t.printStackTrace(pw);
-      pw.flush();
-      sw.flush();
-      Logger.information("Exception occurred: " + sw.toString());
-   }
+      private boolean _fMicroseconds;
 
+      TimeCodec(boolean fMicroseconds, boolean fAscii)
+      {
+         super(fAscii);
+         _fMicroseconds = fMicroseconds;
+      }
 
-   // Subclass to provide direct access to the underlying buffer to avoid
-   // a copy.  ByteArrayOutputStream.getByteArray makes a copy of the byte[]
-   public class DirectByteArrayOutputStream extends ByteArrayOutputStream 
-   {
-      public DirectByteArrayOutputStream()
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         super();
+         writeTemporal(outputStream, _temporalText.formatTime((Time) value, _fMicroseconds, _text));
       }
-      
-      public DirectByteArrayOutputStream(int size)
+
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         super(size);
+         String text = readText(buffer);
+         return (text == null) ? null : _temporalText.parseTime(text);
       }
-      
-      public synchronized byte[] getByteArray()
+   }
+
+
+   private class TimestampCodec extends TemporalCodec
+   {
+      private boolean _fMicroseconds;
+
+      TimestampCodec(boolean fMicroseconds, boolean fAscii)
       {
-         return buf;
+         super(fAscii);
+         _fMicroseconds = fMicroseconds;
       }
-      
-      public synchronized int getCount()
+
+      void encode(WTXCardWriter outputStream, Object value) throws Exception
       {
-         return count;
+         writeTemporal(outputStream, _temporalText.formatTimestamp((Timestamp) value, _fMicroseconds, _text));
       }
-      
-      public synchronized byte[] swap(byte[] newBuf)
+
+      Object decode(ByteBuffer buffer) throws Exception
       {
-         byte[] oldBuf = buf;
-         buf = newBuf;
-         reset();
-         return oldBuf;
+         String text = readText(buffer);
+         return (text == null) ? null : _temporalText.parseTimestamp(text);
       }
    }
 
-   public class DirectByteArrayInputStream extends ByteArrayInputStream 
-   {
-
-       public DirectByteArrayInputStream(byte buf[])
-       {
-          super(buf);
-       }
-       
-       public DirectByteArrayInputStream(byte buf[], int offset, int length)
-       {
-          super(buf, offset, length);
-       }
-       
-       public synchronized void setByteArray(byte[] buf)
-       {
-           this.buf = buf;
-           this.pos = 0;
-           this.count = buf.length;
-           this.mark = 0;
-       }
-       
-       public synchronized void setByteArray(byte[] buf, int offset, int length)
-       {
-           this.buf = buf;
-           this.pos = offset;
-           this.count = Math.min( offset + length, buf.length );
-           this.mark = offset;
-       }
-   }
 
    // Exception class that returns the position of the data
    public class ExhaustedDataException extends Exception
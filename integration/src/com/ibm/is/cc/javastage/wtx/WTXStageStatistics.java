@@ -0,0 +1,221 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.Logger;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+// Counts the work done by a stage instance.  The counters are updated by the 
+// processing thread and the map workers as rows are processed, and can be read
+// at any time through the platform MBean server once the instance has been
+// registered.  Each instance is registered under its own name:
+//
+//    com.ibm.is.cc.javastage.wtx:type=WTXStage,map=<map file>,id=<n>
+public class WTXStageStatistics implements WTXStageStatisticsMBean
+{
+   private AtomicLongArray _inputLinkRows;
+   private AtomicLongArray _inputCardBytes;
+   private AtomicLongArray _outputLinkRows;
+   private AtomicLong      _rejectedRows = new AtomicLong();
+   private AtomicLong      _mapRuns = new AtomicLong();
+   private AtomicLong      _mapWarnings = new AtomicLong();
+   private AtomicLong      _mapErrors = new AtomicLong();
+   private AtomicLong      _serializationNanos = new AtomicLong();
+   private AtomicLong      _engineNanos = new AtomicLong();
+   private AtomicLong      _parseNanos = new AtomicLong();
+   private ObjectName      _name = null;
+
+   private final static String DOMAIN = "com.ibm.is.cc.javastage.wtx";
+
+   // Numbers the instances registered in this JVM
+   private static AtomicInteger _instanceCount = new AtomicInteger();
+
+
+   public WTXStageStatistics(int inputLinkCount, int outputLinkCount)
+   {
+      _inputLinkRows = new AtomicLongArray(inputLinkCount);
+      _inputCardBytes = new AtomicLongArray(inputLinkCount);
+      _outputLinkRows = new AtomicLongArray(outputLinkCount);
+   }
+
+
+   // Publish the statistics for the map run by the stage
+   public void register(String mapFile) throws Exception
+   {
+      String mapName = (mapFile != null) ? new File(mapFile).getName() : "";
+      ObjectName name = new ObjectName(DOMAIN+":type=WTXStage,map="+ObjectName.quote(mapName)+
+                                       ",id="+_instanceCount.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      _name = name;
+   }
+
+
+   public void unregister()
+   {
+      if (_name == null)
+      {
+         return;
+      }
+
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try
+      {
+         server.unregisterMBean(_name);
+      }
+      catch (Exception e)
+      {
+         Logger.warning("Could not unregister the stage statistics "+_name+" from the MBean server: "+
+                        e.getMessage());
+      }
+      _name = null;
+   }
+
+
+   public ObjectName getName()
+   {
+      return _name;
+   }
+
+
+   public void addInputRow(int linkNum, long nanos)
+   {
+      _inputLinkRows.incrementAndGet(linkNum);
+      _serializationNanos.addAndGet(nanos);
+   }
+
+
+   public void addInputCardBytes(int linkNum, long count)
+   {
+      _inputCardBytes.addAndGet(linkNum, count);
+   }
+
+
+   public void addOutputRow(int linkNum)
+   {
+      _outputLinkRows.incrementAndGet(linkNum);
+   }
+
+
+   public void addRejectedRow()
+   {
+      _rejectedRows.incrementAndGet();
+   }
+
+
+   public void addMapRun(WTXMapExecutionResults results, long nanos)
+   {
+      _mapRuns.incrementAndGet();
+      if (results.isWarning())
+      {
+         _mapWarnings.incrementAndGet();
+      }
+      else if (results.isError())
+      {
+         _mapErrors.incrementAndGet();
+      }
+      _engineNanos.addAndGet(nanos);
+   }
+
+
+   public void addParseTime(long nanos)
+   {
+      _parseNanos.addAndGet(nanos);
+   }
+
+
+   public long[] getInputLinkRows()
+   {
+      return toArray(_inputLinkRows);
+   }
+
+
+   public long[] getInputCardBytes()
+   {
+      return toArray(_inputCardBytes);
+   }
+
+
+   public long[] getOutputLinkRows()
+   {
+      return toArray(_outputLinkRows);
+   }
+
+
+   public long getRejectedRows()
+   {
+      return _rejectedRows.get();
+   }
+
+
+   public long getMapRuns()
+   {
+      return _mapRuns.get();
+   }
+
+
+   public long getMapWarnings()
+   {
+      return _mapWarnings.get();
+   }
+
+
+   public long getMapErrors()
+   {
+      return _mapErrors.get();
+   }
+
+
+   public long getSerializationNanos()
+   {
+      return _serializationNanos.get();
+   }
+
+
+   public long getEngineNanos()
+   {
+      return _engineNanos.get();
+   }
+
+
+   public long getParseNanos()
+   {
+      return _parseNanos.get();
+   }
+
+
+   private static long[] toArray(AtomicLongArray counters)
+   {
+      long[] values = new long[counters.length()];
+      for (int i = 0;  i < values.length;  i++)
+      {
+         values[i] = counters.get(i);
+      }
+      return values;
+   }
+}
@@ -0,0 +1,56 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+
+// The statistics of a WTX stage instance that are published through JMX.  
+// Times are the total nanoseconds spent in each phase since the stage was 
+// initialized.
+public interface WTXStageStatisticsMBean
+{
+   // Rows read from each input link
+   long[] getInputLinkRows();
+
+   // Bytes of card data serialized from each input link
+   long[] getInputCardBytes();
+
+   // Rows written to each output link
+   long[] getOutputLinkRows();
+
+   // Rows written to the reject link
+   long getRejectedRows();
+
+   long getMapRuns();
+
+   long getMapWarnings();
+
+   long getMapErrors();
+
+   // Time spent converting input rows to card data.  It is only measured 
+   // when the TimeRows property of the stage is 'true'.
+   long getSerializationNanos();
+
+   // Time spent running maps, not counting output parsed as it is read
+   long getEngineNanos();
+
+   // Time spent converting card data to output rows
+   long getParseNanos();
+}
@@ -0,0 +1,286 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+// A map engine that runs in the JVM without WebSphere TX, so the connector
+// can be profiled and load tested on any machine.  It does not read the map.
+// Each output card receives the data of the input card at the same position
+// in card number order, optionally transformed; output cards without a
+// matching input card are empty.  A run can be made to take a fixed time, and
+// to fail when its input contains a given text, which is encoded in the
+// charset of each input card.
+public class WTXStandInEngine implements WTXMapEngine
+{
+   // Transforms applied to the card data
+   public final static int TRANSFORM_ECHO = 1;
+   public final static int TRANSFORM_UPPER = 2;
+   public final static int TRANSFORM_LOWER = 3;
+
+   private TreeMap<Integer,WTXInputCard>  _inputCards = new TreeMap<Integer,WTXInputCard>();
+   private TreeMap<Integer,WTXOutputCard> _outputCards = new TreeMap<Integer,WTXOutputCard>();
+   private HashMap<Integer,ByteArrayOutputStream> _streamedInputs = new HashMap<Integer,ByteArrayOutputStream>();
+   private int    _transform;
+   private long   _latencyNanos;
+   private String _failOn;
+   private HashMap<Integer,byte[]> _failOnBytes = new HashMap<Integer,byte[]>();
+   private String _mapFile;
+
+   private static final AtomicInteger _mapInstance = new AtomicInteger();
+
+   // Result code and message of a run that fails
+   private final static int    FAILED_RESULT_CODE = 8;
+   private final static String FAILED_MESSAGE = "One or more inputs was invalid";
+
+   // Output card data is written to the output streams in pages of this size
+   private final static int OUTPUT_PAGE_SIZE = 64 * 1024;
+
+
+   // latencyMicros is the time each run takes; failOn, if not null, is the
+   // text that makes a run fail.
+   public WTXStandInEngine(int transform, long latencyMicros, String failOn)
+   {
+      _transform = transform;
+      _latencyNanos = latencyMicros * 1000;
+      _failOn = failOn;
+   }
+
+
+   public void loadMap(String mapFile)
+   {
+      _mapFile = mapFile;
+      Logger.information("Using the stand-in map engine in place of map file "+mapFile);
+   }
+
+
+   // There are no map instances to reuse
+   public void setReuseInstances(boolean fReuseInstances)
+   {
+   }
+
+
+   // A run either succeeds or fails, it never returns a warning
+   public void setFailOnWarning(boolean fFailOnWarning)
+   {
+   }
+
+
+   public void overrideInput(WTXInputCard override) throws Exception
+   {
+      _inputCards.put(override.getCardNumber(), override);
+      if (_failOn != null)
+      {
+         Charset charset = override.getTextEncoding().getCharset();
+         _failOnBytes.put(override.getCardNumber(), _failOn.getBytes(charset));
+      }
+   }
+
+
+   public void overrideOutput(WTXOutputCard override)
+   {
+      _outputCards.put(override.getCardNumber(), override);
+   }
+
+
+   public WTXPagedCardWriter openInputCard(int cardNum, int pageSize) throws Exception
+   {
+      if (!_inputCards.containsKey(cardNum))
+      {
+         throw new Exception("Input card number "+cardNum+" is not overridden for map "+_mapFile);
+      }
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      _streamedInputs.put(cardNum, stream);
+      return new WTXPagedCardWriter(stream, pageSize);
+   }
+
+
+   public WTXMapExecutionResults executeMap() throws Exception
+   {
+      WTXMapExecutionResults executionResults = new WTXMapExecutionResults();
+      executionResults.setMapInstance(_mapInstance.incrementAndGet());
+
+      // Get the data of the input cards in card number order.  There is no
+      // map instance to create or unload.
+      long start = System.nanoTime();
+      ArrayList<byte[]> inputs = new ArrayList<byte[]>();
+      ArrayList<byte[]> failOn = new ArrayList<byte[]>();
+      for (Integer cardNum : _inputCards.keySet())
+      {
+         byte[] input = getInputData(cardNum);
+         inputs.add(input);
+         failOn.add(_failOnBytes.get(cardNum));
+         executionResults.setInputCardBytes(cardNum, input.length);
+      }
+      _streamedInputs.clear();
+      long end = System.nanoTime();
+      executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_WRITE_INPUT, end - start);
+
+      start = end;
+      spin();
+
+      for (int position = 0;  position < inputs.size();  position++)
+      {
+         if (failOn.get(position) != null && indexOf(inputs.get(position), failOn.get(position)) != -1)
+         {
+            executionResults.setResultCode(FAILED_RESULT_CODE);
+            executionResults.setResponseMessage(FAILED_MESSAGE);
+            executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_RUN_MAP, System.nanoTime() - start);
+            return executionResults;
+         }
+      }
+      end = System.nanoTime();
+      executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_RUN_MAP, end - start);
+
+      start = end;
+      int position = 0;
+      for (Map.Entry<Integer,WTXOutputCard> output : _outputCards.entrySet())
+      {
+         byte[] data = (position < inputs.size()) ? inputs.get(position) : new byte[0];
+         writeOutput(data, output.getValue().getOutputStream());
+         executionResults.setOutputCardBytes(output.getKey(), data.length);
+         position++;
+      }
+      executionResults.setPhaseNanos(WTXMapExecutionResults.PHASE_READ_OUTPUT, System.nanoTime() - start);
+
+      executionResults.setResultCode(0);
+      executionResults.setResponseMessage("Map completed successfully");
+      return executionResults;
+   }
+
+
+   public void cancelRun()
+   {
+      _streamedInputs.clear();
+   }
+
+
+   public void unload()
+   {
+   }
+
+
+   public void close()
+   {
+   }
+
+
+   private byte[] getInputData(Integer cardNum) throws IOException
+   {
+      ByteArrayOutputStream streamed = _streamedInputs.get(cardNum);
+      if (streamed != null)
+      {
+         return streamed.toByteArray();
+      }
+
+      WTXInputCard card = _inputCards.get(cardNum);
+      if (card.getInputBuffer() != null)
+      {
+         ByteArrayOutputStream data = new ByteArrayOutputStream();
+         card.getInputBuffer().writeTo(data);
+         return data.toByteArray();
+      }
+      if (card.getInputData() == null)
+      {
+         return new byte[0];
+      }
+
+      byte[] data = new byte[card.getInputDataCount()];
+      System.arraycopy(card.getInputData(), card.getInputDataOffset(), data, 0, data.length);
+      return data;
+   }
+
+
+   // Writes the transformed data to an output card in pages, as the map
+   // runner does
+   private void writeOutput(byte[] data, OutputStream out) throws IOException
+   {
+      for (int offset = 0;  offset < data.length;  offset += OUTPUT_PAGE_SIZE)
+      {
+         int count = Math.min(OUTPUT_PAGE_SIZE, data.length - offset);
+         if (_transform != TRANSFORM_ECHO)
+         {
+            transform(data, offset, count);
+         }
+         out.write(data, offset, count);
+      }
+   }
+
+
+   // Changes the case of ASCII letters
+   private void transform(byte[] data, int offset, int count)
+   {
+      byte from = (byte) ((_transform == TRANSFORM_UPPER) ? 'a' : 'A');
+      byte to = (byte) ((_transform == TRANSFORM_UPPER) ? 'z' : 'Z');
+      int shift = (_transform == TRANSFORM_UPPER) ? ('A' - 'a') : ('a' - 'A');
+      for (int i = offset;  i < offset + count;  i++)
+      {
+         if (data[i] >= from && data[i] <= to)
+         {
+            data[i] += shift;
+         }
+      }
+   }
+
+
+   // Keeps the CPU busy for the latency of a run, as a map run would
+   private void spin()
+   {
+      if (_latencyNanos <= 0)
+      {
+         return;
+      }
+      long end = System.nanoTime() + _latencyNanos;
+      while (System.nanoTime() - end < 0)
+      {
+         ;
+      }
+   }
+
+
+   private static int indexOf(byte[] data, byte[] text)
+   {
+      for (int i = 0;  i <= data.length - text.length;  i++)
+      {
+         int j = 0;
+         while (j < text.length && data[i+j] == text[j])
+         {
+            j++;
+         }
+         if (j == text.length)
+         {
+            return i;
+         }
+      }
+      return -1;
+   }
+}
@@ -0,0 +1,452 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.IOException;
+import java.sql.Date;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.TimeZone;
+
+
+// Converts dates, times and timestamps to and from the fixed layouts used in
+// card data: "YYYY-MM-DD", "HH:MM:SS[.FFFFFF]" and 
+// "YYYY-MM-DD HH:MM:SS[.FFFFFF]".  Values are formatted digit by digit into 
+// a byte array supplied by the caller, and parsed character by character, in
+// the default time zone as the java.sql classes do.  Fractions of a second 
+// have six digits.  Timestamps keep all of them; times keep milliseconds, 
+// which is all a Time holds.
+//
+// Formatted text is ASCII, so the bytes are only card data for charsets that
+// isAsciiCompatible() accepts.  A converter holds no state that changes and
+// is safe to share between threads.
+//
+// Dates before the Gregorian calendar starts in 1582 are converted through 
+// GregorianCalendar, which switches to the Julian calendar as the java.sql
+// classes do.  Text in any other layout, or a local time close to a change
+// of the zone's offset, is parsed by the valueOf() methods of the java.sql
+// classes.
+public class WTXTemporalText
+{
+   private TimeZone _timeZone;
+
+   // Lengths of the layouts, for years of four digits
+   public final static int DATE_LENGTH = 10;
+   public final static int TIME_LENGTH = 8;
+   public final static int TIME_MICROSECONDS_LENGTH = 15;
+   public final static int TIMESTAMP_LENGTH = 19;
+   public final static int TIMESTAMP_MICROSECONDS_LENGTH = 26;
+
+   // Enough for any layout with the longest year a Date can hold
+   public final static int MAX_LENGTH = 32;
+
+   // The characters that can appear in the text of a value
+   private final static String TEMPORAL_CHARS = "0123456789-:. ";
+
+   private final static long MILLIS_PER_DAY = 86400000L;
+
+   // 1582-10-15, the first day of the Gregorian calendar, in days from 1970
+   private final static long GREGORIAN_START_DAY = -141427;
+
+
+   public WTXTemporalText()
+   {
+      _timeZone = TimeZone.getDefault();
+   }
+
+
+   // Returns true if the charset encodes the characters of dates and times 
+   // as ASCII.  A null charset is the platform default.
+   public static boolean isAsciiCompatible(String charset) throws IOException
+   {
+      return WTXNumberText.isAsciiCompatible(charset, TEMPORAL_CHARS);
+   }
+
+
+   // Returns the text in a string, for charsets that are not ASCII compatible
+   public static String toString(byte[] bytes, int length)
+   {
+      char[] chars = new char[length];
+      for (int i = 0;  i < length;  i++)
+      {
+         chars[i] = (char) bytes[i];
+      }
+      return new String(chars);
+   }
+
+
+   // Writes "YYYY-MM-DD".  Returns the number of bytes written.
+   public int formatDate(Date value, byte[] bytes)
+   {
+      long local = toLocal(value.getTime());
+      if (floorDiv(local, MILLIS_PER_DAY) < GREGORIAN_START_DAY)
+      {
+         Calendar calendar = toCalendar(value.getTime());
+         return writeDate(bytes, 0, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+                          calendar.get(Calendar.DAY_OF_MONTH));
+      }
+      return writeDate(bytes, 0, local);
+   }
+
+
+   // Writes "HH:MM:SS" or "HH:MM:SS.FFFFFF".  Returns the number of bytes 
+   // written.
+   public int formatTime(Time value, boolean fMicroseconds, byte[] bytes)
+   {
+      long local = toLocal(value.getTime());
+      int end = writeTime(bytes, 0, floorMod(local, MILLIS_PER_DAY) / 1000);
+      if (fMicroseconds)
+      {
+         end = writeFraction(bytes, end, (int) floorMod(local, 1000) * 1000);
+      }
+      return end;
+   }
+
+
+   // Writes "YYYY-MM-DD HH:MM:SS" or "YYYY-MM-DD HH:MM:SS.FFFFFF".  Returns
+   // the number of bytes written.
+   public int formatTimestamp(Timestamp value, boolean fMicroseconds, byte[] bytes)
+   {
+      long local = toLocal(value.getTime());
+      int end;
+      if (floorDiv(local, MILLIS_PER_DAY) < GREGORIAN_START_DAY)
+      {
+         Calendar calendar = toCalendar(value.getTime());
+         end = writeDate(bytes, 0, calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+                         calendar.get(Calendar.DAY_OF_MONTH));
+      }
+      else
+      {
+         end = writeDate(bytes, 0, local);
+      }
+      bytes[end++] = ' ';
+      end = writeTime(bytes, end, floorMod(local, MILLIS_PER_DAY) / 1000);
+      if (fMicroseconds)
+      {
+         end = writeFraction(bytes, end, value.getNanos() / 1000);
+      }
+      return end;
+   }
+
+
+   public Date parseDate(String text)
+   {
+      if (text.length() == DATE_LENGTH && isDateLayout(text, 0))
+      {
+         long days = parseDays(text, 0);
+         if (days >= GREGORIAN_START_DAY)
+         {
+            long millis = toUTC(days * MILLIS_PER_DAY);
+            if (millis != Long.MIN_VALUE)
+            {
+               return new Date(millis);
+            }
+         }
+      }
+      return Date.valueOf(text);
+   }
+
+
+   // Parses "HH:MM:SS", with a fraction of a second of up to nine digits
+   public Time parseTime(String text)
+   {
+      int fractionDigits = getFractionDigits(text, TIME_LENGTH);
+      if (fractionDigits >= 0 && isTimeLayout(text, 0))
+      {
+         long millis = toUTC(parseSeconds(text, 0) * 1000);
+         if (millis != Long.MIN_VALUE)
+         {
+            return new Time(millis + parseNanos(text, TIME_LENGTH + 1, fractionDigits) / 1000000);
+         }
+      }
+
+      // Other layouts are parsed without the fraction of a second
+      int fraction = text.indexOf('.');
+      if (fraction > 0 && fractionDigits >= 0)
+      {
+         Time time = Time.valueOf(text.substring(0, fraction));
+         time.setTime(time.getTime() + parseNanos(text, fraction + 1, fractionDigits) / 1000000);
+         return time;
+      }
+      return Time.valueOf(text);
+   }
+
+
+   // Parses "YYYY-MM-DD HH:MM:SS", with a fraction of a second of up to nine
+   // digits
+   public Timestamp parseTimestamp(String text)
+   {
+      int fractionDigits = getFractionDigits(text, TIMESTAMP_LENGTH);
+      if (fractionDigits >= 0 && isDateLayout(text, 0) && text.charAt(DATE_LENGTH) == ' ' &&
+          isTimeLayout(text, DATE_LENGTH + 1))
+      {
+         long days = parseDays(text, 0);
+         if (days >= GREGORIAN_START_DAY)
+         {
+            long millis = toUTC(days * MILLIS_PER_DAY + parseSeconds(text, DATE_LENGTH + 1) * 1000);
+            if (millis != Long.MIN_VALUE)
+            {
+               Timestamp timestamp = new Timestamp(millis);
+               timestamp.setNanos(parseNanos(text, TIMESTAMP_LENGTH + 1, fractionDigits));
+               return timestamp;
+            }
+         }
+      }
+      return Timestamp.valueOf(text);
+   }
+
+
+   // The local time of an instant in the default time zone
+   private long toLocal(long millis)
+   {
+      return millis + _timeZone.getOffset(millis);
+   }
+
+
+   // The instant of a local time in the default time zone.  Where the offset
+   // of the zone changes within a day of the time, returns Long.MIN_VALUE
+   // for the calendar to decide which instant is meant.
+   private long toUTC(long local)
+   {
+      long standard = local - _timeZone.getRawOffset();
+      int offset = _timeZone.getOffset(standard - MILLIS_PER_DAY);
+      if (_timeZone.getOffset(standard + MILLIS_PER_DAY) != offset)
+      {
+         return Long.MIN_VALUE;
+      }
+      return local - offset;
+   }
+
+
+   private Calendar toCalendar(long millis)
+   {
+      Calendar calendar = new GregorianCalendar(_timeZone);
+      calendar.setTimeInMillis(millis);
+      return calendar;
+   }
+
+
+   // Writes the date of a local time in the Gregorian calendar
+   private static int writeDate(byte[] bytes, int offset, long local)
+   {
+      // Days from 1 March 0000, so leap days fall at the end of the year
+      long z = floorDiv(local, MILLIS_PER_DAY) + 719468;
+      long era = floorDiv(z, 146097);
+      int dayOfEra = (int) (z - era * 146097);
+      int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+      int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+      int monthFromMarch = (5 * dayOfYear + 2) / 153;
+      int day = dayOfYear - (153 * monthFromMarch + 2) / 5 + 1;
+      int month = (monthFromMarch < 10) ? monthFromMarch + 3 : monthFromMarch - 9;
+      long year = yearOfEra + era * 400 + ((month <= 2) ? 1 : 0);
+      return writeDate(bytes, offset, (int) year, month, day);
+   }
+
+
+   private static int writeDate(byte[] bytes, int offset, int year, int month, int day)
+   {
+      int end = writeYear(bytes, offset, year);
+      bytes[end] = '-';
+      writeTwoDigits(bytes, end + 1, month);
+      bytes[end + 3] = '-';
+      writeTwoDigits(bytes, end + 4, day);
+      return end + 6;
+   }
+
+
+   // Years have at least four digits
+   private static int writeYear(byte[] bytes, int offset, int year)
+   {
+      int digits = 4;
+      for (int limit = 10000;  year >= limit && digits < 10;  limit *= 10)
+      {
+         digits++;
+      }
+      for (int i = offset + digits - 1;  i >= offset;  i--)
+      {
+         bytes[i] = (byte) ('0' + year % 10);
+         year /= 10;
+      }
+      return offset + digits;
+   }
+
+
+   private static int writeTime(byte[] bytes, int offset, long secondOfDay)
+   {
+      int seconds = (int) secondOfDay;
+      writeTwoDigits(bytes, offset, seconds / 3600);
+      bytes[offset + 2] = ':';
+      writeTwoDigits(bytes, offset + 3, seconds / 60 % 60);
+      bytes[offset + 5] = ':';
+      writeTwoDigits(bytes, offset + 6, seconds % 60);
+      return offset + 8;
+   }
+
+
+   private static int writeFraction(byte[] bytes, int offset, int microseconds)
+   {
+      bytes[offset] = '.';
+      for (int i = offset + 6;  i > offset;  i--)
+      {
+         bytes[i] = (byte) ('0' + microseconds % 10);
+         microseconds /= 10;
+      }
+      return offset + 7;
+   }
+
+
+   private static void writeTwoDigits(byte[] bytes, int offset, int value)
+   {
+      bytes[offset] = (byte) ('0' + value / 10);
+      bytes[offset + 1] = (byte) ('0' + value % 10);
+   }
+
+
+   // Checks for "DDDD-DD-DD" with a month and day in range
+   private static boolean isDateLayout(String text, int offset)
+   {
+      if (!isDigits(text, offset, 4) || text.charAt(offset + 4) != '-' || 
+          !isDigits(text, offset + 5, 2) || text.charAt(offset + 7) != '-' ||
+          !isDigits(text, offset + 8, 2))
+      {
+         return false;
+      }
+      int month = parseDigits(text, offset + 5, 2);
+      int day = parseDigits(text, offset + 8, 2);
+      return month >= 1 && month <= 12 && day >= 1 && day <= 31;
+   }
+
+
+   // Checks for "DD:DD:DD".  As with Time.valueOf() the fields are not 
+   // checked against their ranges; a time past the end of the day goes on
+   // into the next.
+   private static boolean isTimeLayout(String text, int offset)
+   {
+      return isDigits(text, offset, 2) && text.charAt(offset + 2) == ':' &&
+             isDigits(text, offset + 3, 2) && text.charAt(offset + 5) == ':' &&
+             isDigits(text, offset + 6, 2);
+   }
+
+
+   // Returns the number of digits in the fraction of a second after a value
+   // of the given length, or -1 if the text is not the value and a fraction 
+   // of one to nine digits
+   private static int getFractionDigits(String text, int length)
+   {
+      if (text.length() == length)
+      {
+         return 0;
+      }
+      int digits = text.length() - length - 1;
+      if (digits < 1 || digits > 9 || text.charAt(length) != '.' || !isDigits(text, length + 1, digits))
+      {
+         return -1;
+      }
+      return digits;
+   }
+
+
+   // The days from 1970 of a checked date.  Days past the end of the month
+   // go on into the next, as with Date.valueOf().
+   private static long parseDays(String text, int offset)
+   {
+      int year = parseDigits(text, offset, 4);
+      int month = parseDigits(text, offset + 5, 2);
+      int day = parseDigits(text, offset + 8, 2);
+
+      // Count from 1 March so leap days fall at the end of the year
+      if (month <= 2)
+      {
+         year--;
+      }
+      int era = (year >= 0 ? year : year - 399) / 400;
+      int yearOfEra = year - era * 400;
+      int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+      int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+      return era * 146097L + dayOfEra - 719468;
+   }
+
+
+   private static long parseSeconds(String text, int offset)
+   {
+      return parseDigits(text, offset, 2) * 3600L + parseDigits(text, offset + 3, 2) * 60L +
+             parseDigits(text, offset + 6, 2);
+   }
+
+
+   private static int parseNanos(String text, int offset, int digits)
+   {
+      int nanos = parseDigits(text, offset, digits);
+      for (int i = digits;  i < 9;  i++)
+      {
+         nanos *= 10;
+      }
+      return nanos;
+   }
+
+
+   private static boolean isDigits(String text, int offset, int count)
+   {
+      if (offset + count > text.length())
+      {
+         return false;
+      }
+      for (int i = offset;  i < offset + count;  i++)
+      {
+         char c = text.charAt(i);
+         if (c < '0' || c > '9')
+         {
+            return false;
+         }
+      }
+      return true;
+   }
+
+
+   private static int parseDigits(String text, int offset, int count)
+   {
+      int value = 0;
+      for (int i = offset;  i < offset + count;  i++)
+      {
+         value = value * 10 + (text.charAt(i) - '0');
+      }
+      return value;
+   }
+
+
+   private static long floorDiv(long x, long y)
+   {
+      long quotient = x / y;
+      if ((x % y != 0) && ((x < 0) != (y < 0)))
+      {
+         quotient--;
+      }
+      return quotient;
+   }
+
+
+   private static long floorMod(long x, long y)
+   {
+      return x - floorDiv(x, y) * y;
+   }
+}
@@ -0,0 +1,223 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+
+// Converts string values to and from the bytes of a card's charset.  The
+// charset is looked up once and kept with the card instead of being found by
+// name for every value, and its encoder and decoder are created once.
+//
+// US-ASCII, ISO-8859-1 and UTF-8 are converted by the String methods that
+// take a Charset, which the JVM has its own fast paths for.  The number of
+// bytes a value takes in these charsets is counted by hand, without encoding
+// it.  Other charsets go through the cached encoder and decoder.
+//
+// The results are the same as String.getBytes() and new String() with the
+// charset: characters that cannot be encoded become the charset's
+// replacement bytes, and bytes that cannot be decoded become U+FFFD.  An
+// encoding is not safe to use from more than one thread.
+public class WTXTextEncoding
+{
+   private Charset        _charset;
+   private int            _kind;
+   private CharsetEncoder _encoder;
+   private CharsetDecoder _decoder;
+
+   // Charsets with a fast path
+   private final static int KIND_OTHER = 0;
+   private final static int KIND_ASCII = 1;
+   private final static int KIND_LATIN1 = 2;
+   private final static int KIND_UTF8 = 3;
+
+
+   // Get the encoding for a charset name.  A null name is the platform
+   // default.
+   public static WTXTextEncoding forName(String charsetName) throws UnsupportedEncodingException
+   {
+      if (charsetName == null)
+      {
+         return new WTXTextEncoding(Charset.defaultCharset());
+      }
+
+      try
+      {
+         return new WTXTextEncoding(Charset.forName(charsetName));
+      }
+      catch (IllegalArgumentException e)
+      {
+         throw new UnsupportedEncodingException(charsetName);
+      }
+   }
+
+
+   public WTXTextEncoding(Charset charset)
+   {
+      _charset = charset;
+      _encoder = charset.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+      _decoder = charset.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+      String name = charset.name();
+      if (name.equals("US-ASCII"))
+      {
+         _kind = KIND_ASCII;
+      }
+      else if (name.equals("ISO-8859-1"))
+      {
+         _kind = KIND_LATIN1;
+      }
+      else if (name.equals("UTF-8"))
+      {
+         _kind = KIND_UTF8;
+      }
+      else
+      {
+         _kind = KIND_OTHER;
+      }
+   }
+
+
+   public Charset getCharset()
+   {
+      return _charset;
+   }
+
+
+   // Returns true if every character is encoded in a single byte
+   public boolean isSingleByte()
+   {
+      return _kind == KIND_ASCII || _kind == KIND_LATIN1 || _encoder.maxBytesPerChar() == 1.0f;
+   }
+
+
+   public byte[] encode(String value)
+   {
+      if (_kind != KIND_OTHER)
+      {
+         return value.getBytes(_charset);
+      }
+
+      try
+      {
+         ByteBuffer buffer = _encoder.encode(CharBuffer.wrap(value));
+         byte[] bytes = new byte[buffer.remaining()];
+         buffer.get(bytes);
+         return bytes;
+      }
+      catch (CharacterCodingException e)
+      {
+         // Cannot happen as errors are replaced
+         throw new IllegalStateException(e);
+      }
+   }
+
+
+   public String decode(byte[] bytes, int offset, int length)
+   {
+      if (_kind != KIND_OTHER)
+      {
+         return new String(bytes, offset, length, _charset);
+      }
+
+      try
+      {
+         return _decoder.decode(ByteBuffer.wrap(bytes, offset, length)).toString();
+      }
+      catch (CharacterCodingException e)
+      {
+         // Cannot happen as errors are replaced
+         throw new IllegalStateException(e);
+      }
+   }
+
+
+   // The number of bytes encode() returns for a value
+   public int getEncodedLength(String value)
+   {
+      int length = value.length();
+      switch (_kind)
+      {
+         case KIND_ASCII:
+         case KIND_LATIN1:
+         {
+            // A surrogate pair is one character to the encoder, so it is
+            // replaced by a single byte
+            int count = length;
+            for (int i = 0;  i < length - 1;  i++)
+            {
+               if (Character.isHighSurrogate(value.charAt(i)) &&
+                   Character.isLowSurrogate(value.charAt(i+1)))
+               {
+                  count--;
+                  i++;
+               }
+            }
+            return count;
+         }
+         case KIND_UTF8:
+         {
+            int count = 0;
+            for (int i = 0;  i < length;  i++)
+            {
+               char c = value.charAt(i);
+               if (c < 0x80)
+               {
+                  count += 1;
+               }
+               else if (c < 0x800)
+               {
+                  count += 2;
+               }
+               else if (!Character.isSurrogate(c))
+               {
+                  count += 3;
+               }
+               else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                        Character.isLowSurrogate(value.charAt(i+1)))
+               {
+                  count += 4;
+                  i++;
+               }
+               else
+               {
+                  // An unpaired surrogate is replaced by a single byte
+                  count += 1;
+               }
+            }
+            return count;
+         }
+         default:
+            return encode(value).length;
+      }
+   }
+}
@@ -0,0 +1,257 @@
+//***************************************************************************
+// (c) Copyright IBM Corp. 2013 All rights reserved.
+// 
+// The following sample of source code ("JDBCStage") is owned by International 
+// Business Machines Corporation or one of its subsidiaries ("IBM") and is 
+// copyrighted and licensed, not sold. You may use, copy, modify, and 
+// distribute the Sample in any form without payment to IBM, for the purpose of 
+// assisting you in the development of your applications.
+// 
+// The Sample code is provided to you on an "AS IS" basis, without warranty of 
+// any kind. IBM HEREBY EXPRESSLY DISCLAIMS ALL WARRANTIES, EITHER EXPRESS OR 
+// IMPLIED, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF 
+// MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE. Some jurisdictions do 
+// not allow for the exclusion or limitation of implied warranties, so the above 
+// limitations or exclusions may not apply to you. IBM shall not be liable for 
+// any damages you suffer as a result of using, copying, modifying or 
+// distributing the Sample, even if IBM has been advised of the possibility of 
+// such damages.
+//***************************************************************************
+
+package com.ibm.is.cc.javastage.wtx;
+
+import com.ibm.is.cc.javastage.api.Logger;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// Writes the trace file of the stage.  Each traced row is a single line of
+// tab separated fields: the direction, the link, the row number, the offset
+// of the row in the card data and then name=value for each column.  Other
+// events, such as the size of a card, are lines of the same form.  Tabs, line
+// ends and backslashes in values are escaped with a backslash, and a null 
+// value is written as \N.
+//
+// Only sampled rows are traced: either one row in every N, or a percentage of
+// the rows picked by a hash of the row number.  Either way the choice depends
+// only on the row number, so a row is sampled the same way each time it is
+// looked at, and the input and output rows with the same number are sampled
+// together.
+//
+// Lines are queued and written to the file by a thread of the writer.  The 
+// queue is bounded: if the file falls behind, lines are dropped and counted
+// rather than holding up the stage.
+public class WTXTraceWriter
+{
+   private String                _fileName;
+   private int                   _every;
+   private int                   _percent;
+   private BlockingQueue<String> _queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+   private AtomicLong            _dropCount = new AtomicLong();
+   private Writer                _out;
+   private Thread                _writer;
+
+   // Owned by the writer thread
+   private String                _error = null;
+
+   // The number of lines that can wait to be written
+   private final static int QUEUE_SIZE = 4096;
+
+   // Queued after the last line to stop the writer.  It is compared by
+   // identity, so it cannot be mistaken for a line of the trace.
+   private final static String END = new String("END");
+
+
+   // Traces one row in every 'every', or if percent is more than zero that
+   // percentage of the rows
+   public WTXTraceWriter(String fileName, int every, int percent) throws IOException
+   {
+      _fileName = fileName;
+      _every = every;
+      _percent = percent;
+      _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fileName, false), "UTF-8"));
+
+      _writer = new Thread(new Runnable()
+      {
+         public void run()
+         {
+            writeLines();
+         }
+      }, "WTXTraceWriter");
+      _writer.setDaemon(true);
+      _writer.start();
+   }
+
+
+   public boolean isSampled(long row)
+   {
+      if (_percent > 0)
+      {
+         // Spread the row numbers over 0 to 99 
+         long hash = row * 0x9E3779B97F4A7C15L;
+         return ((hash >>> 32) % 100) < _percent;
+      }
+      return row % _every == 0;
+   }
+
+
+   // Starts the line of a row that begins at the given offset in the card 
+   // data.  Columns are added with addField().
+   public StringBuilder newRow(String direction, int linkNum, long row, long offset)
+   {
+      StringBuilder line = new StringBuilder(128);
+      line.append(direction).append("\tlink=").append(linkNum).append("\trow=").append(row);
+      line.append("\toffset=").append(offset);
+      return line;
+   }
+
+
+   public static void addField(StringBuilder line, String name, String value)
+   {
+      line.append('\t').append(name).append('=');
+      if (value == null)
+      {
+         line.append("\\N");
+         return;
+      }
+      for (int i = 0;  i < value.length();  i++)
+      {
+         char c = value.charAt(i);
+         switch (c)
+         {
+         case '\t':  line.append("\\t");   break;
+         case '\n':  line.append("\\n");   break;
+         case '\r':  line.append("\\r");   break;
+         case '\\':  line.append("\\\\");  break;
+         default:    line.append(c);
+         }
+      }
+   }
+
+
+   public void write(StringBuilder line)
+   {
+      write(line.toString());
+   }
+
+
+   // Queues a line to be written, unless the queue is full
+   public void write(String line)
+   {
+      if (!_queue.offer(line))
+      {
+         _dropCount.incrementAndGet();
+      }
+   }
+
+
+   // Writes the lines still queued and closes the file
+   public void close()
+   {
+      try
+      {
+         _queue.put(END);
+         _writer.join();
+      }
+      catch (InterruptedException e)
+      {
+         _writer.interrupt();
+         Thread.currentThread().interrupt();
+      }
+
+      if (_dropCount.get() > 0)
+      {
+         Logger.warning(_dropCount.get()+" lines were left out of trace file "+_fileName+
+                        ", because the file fell behind.");
+      }
+      if (_error != null)
+      {
+         Logger.warning("Could not write trace file "+_fileName+": "+_error);
+      }
+   }
+
+
+   // Runs on the writer thread.  The file is flushed whenever the queue is 
+   // empty, so the trace is up to date while the stage waits for data.
+   private void writeLines()
+   {
+      ArrayList<String> lines = new ArrayList<String>();
+      try
+      {
+         boolean fEnd = false;
+         while (!fEnd)
+         {
+            lines.add(_queue.take());
+            _queue.drainTo(lines);
+            for (String line : lines)
+            {
+               if (line == END)
+               {
+                  fEnd = true;
+                  break;
+               }
+               write(_out, line);
+            }
+            lines.clear();
+            flush(_out);
+         }
+      }
+      catch (InterruptedException e)
+      {
+      }
+
+      try
+      {
+         _out.close();
+      }
+      catch (IOException e)
+      {
+         setError(e);
+      }
+   }
+
+
+   private void write(Writer out, String line)
+   {
+      try
+      {
+         out.write(line);
+         out.write('\n');
+      }
+      catch (IOException e)
+      {
+         setError(e);
+      }
+   }
+
+
+   private void flush(Writer out)
+   {
+      try
+      {
+         out.flush();
+      }
+      catch (IOException e)
+      {
+         setError(e);
+      }
+   }
+
+
+   // Keeps the first failure to report when the trace is closed
+   private void setError(IOException e)
+   {
+      if (_error == null)
+      {
+         _error = e.getMessage();
+      }
+   }
+}